@@ -25,7 +25,9 @@ import java.util.List;
 import java.util.Locale;
 
 /**
- *
+ * Counts lines of a file (e.g. lines selected from a log by grep) per minute.
+ * When analyzing profiling logs, {@link com.evolveum.midpoint.analyzer.profiling.ThroughputAnalysis} does the same
+ * without the separate file and the separate pass.
  */
 public class ThroughputExtractor {
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.LogTextCache;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import com.evolveum.midpoint.collector.ThroughputCollector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Date;
+
+/**
+ * What an analysis can learn about the logs being read (besides the callbacks).
+ * Symbol tables can be used at any time; the other information reflects the reading done so far, so it is complete
+ * only in {@link ProfilingAnalysis#end()}.
+ */
+public class AnalysisContext {
+
+	@NotNull private final ProfilingEntryReader reader;
+
+	AnalysisContext(@NotNull ProfilingEntryReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Ids of methods in profiling items.
+	 */
+	@NotNull
+	public SymbolTable getMethodSymbols() {
+		return reader.getMethodSymbols();
+	}
+
+	/**
+	 * Ids of threads in profiling items.
+	 */
+	@NotNull
+	public SymbolTable getThreadSymbols() {
+		return reader.getThreadSymbols();
+	}
+
+	/**
+	 * Timestamp of the first log entry; null before anything is read.
+	 */
+	public Date getFirstTimestamp() {
+		return reader.getFirstTimestamp();
+	}
+
+	/**
+	 * Where to get the texts of arguments and return values from (if they are not kept in items).
+	 */
+	@Nullable
+	public LogTextCache getTextCache() {
+		return reader.getTextCache();
+	}
+
+	public ThroughputCollector getThroughputCollector() {
+		return reader.getThroughputCollector();
+	}
+
+	public int getTotalLines() {
+		return reader.getTotalLines();
+	}
+
+	public int getLogEntries() {
+		return reader.getLogEntries();
+	}
+}
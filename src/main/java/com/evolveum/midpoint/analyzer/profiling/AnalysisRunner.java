@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Reads the profiling items once and passes them to all registered analyses.
+ */
+public class AnalysisRunner {
+
+	private static final Trace LOGGER = TraceManager.getTrace(AnalysisRunner.class);
+
+	@NotNull private final ProfilingEntryReader reader;
+	@NotNull private final ProfilingItemSource itemSource;
+	private final List<ProfilingAnalysis> analyses = new ArrayList<>();
+	private Predicate<ProfilingItem> itemFilter;
+
+	private long refreshInterval;               // 0 if the results are not refreshed while reading
+	private ProfilingAnalysis[] running;        // null if not running
+	private long nextRefresh;
+	private int linesAtLastRefresh;
+
+	public AnalysisRunner(@NotNull ProfilingEntryReader reader) {
+		this(reader, reader);
+	}
+
+	/**
+	 * @param itemSource Source of the items read by the reader (e.g. the reader itself, or a pipelined reader).
+	 */
+	AnalysisRunner(@NotNull ProfilingEntryReader reader, @NotNull ProfilingItemSource itemSource) {
+		this.reader = reader;
+		this.itemSource = itemSource;
+	}
+
+	public void addAnalysis(@NotNull ProfilingAnalysis analysis) {
+		analyses.add(analysis);
+	}
+
+	/**
+	 * Only the items matching the filter are passed to the analyses. (New batches and log entries are not filtered.)
+	 */
+	public void setItemFilter(Predicate<ProfilingItem> itemFilter) {
+		this.itemFilter = itemFilter;
+	}
+
+	/**
+	 * The results of the analyses will be refreshed (see {@link ProfilingAnalysis#refresh()}) at most this often
+	 * (in milliseconds) while reading, e.g. in follow mode.
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * Refreshes the results of all analyses, if the refresh interval has elapsed since the last refresh and something
+	 * new was read. Called between items; to be called also when the reader waits for new lines. Must be called
+	 * in the thread running the analyses, so not with a pipelined reader.
+	 */
+	public void refresh() throws IOException {
+		if (running == null || refreshInterval <= 0) {
+			return;
+		}
+		int lines = reader.getTotalLines();
+		if (System.currentTimeMillis() >= nextRefresh && lines != linesAtLastRefresh) {
+			for (ProfilingAnalysis analysis : running) {
+				analysis.refresh();
+			}
+			LOGGER.info("Results refreshed: {} lines processed", lines);
+			nextRefresh = System.currentTimeMillis() + refreshInterval;
+			linesAtLastRefresh = lines;
+		}
+	}
+
+	public void run() throws IOException {
+		if (analyses.isEmpty()) {
+			throw new IllegalStateException("No analyses to run");
+		}
+		ProfilingAnalysis[] analyses = this.analyses.toArray(new ProfilingAnalysis[0]);
+		ProfilingAnalysis[] entryAnalyses = this.analyses.stream()
+				.filter(ProfilingAnalysis::needsLogEntries)
+				.toArray(ProfilingAnalysis[]::new);
+
+		if (this.analyses.stream().anyMatch(ProfilingAnalysis::needsArgumentsFingerprints)) {
+			reader.setArgumentsFingerprints(true);
+		}
+
+		AnalysisContext context = new AnalysisContext(reader);
+		for (ProfilingAnalysis analysis : analyses) {
+			analysis.start(context);
+		}
+		if (entryAnalyses.length > 0) {
+			reader.setLogEntryListener(entry -> {
+				for (ProfilingAnalysis analysis : entryAnalyses) {
+					analysis.onLogEntry(entry);
+				}
+			});
+		}
+		itemSource.setNewBatchListener((batchNumber, logEntry) -> {
+			for (ProfilingAnalysis analysis : analyses) {
+				analysis.onNewBatch(batchNumber, logEntry);
+			}
+		});
+
+		running = analyses;
+		nextRefresh = System.currentTimeMillis() + refreshInterval;
+		ProfilingItem item;
+		long items = 0;
+		while ((item = itemSource.readItem()) != null) {
+			if (itemFilter == null || itemFilter.test(item)) {
+				for (ProfilingAnalysis analysis : analyses) {
+					analysis.onItem(item);
+				}
+				items++;
+			}
+			if (refreshInterval > 0) {
+				refresh();          // also when the lines keep coming
+			}
+		}
+		running = null;
+		LOGGER.info("Profiling items analyzed: {} (by {} analyses)", items, analyses.length);
+
+		for (ProfilingAnalysis analysis : analyses) {
+			analysis.end();
+		}
+	}
+}
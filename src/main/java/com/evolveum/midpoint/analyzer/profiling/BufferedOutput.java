@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.OrderedRecords;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the records of a shard until they are merged with the records of other shards; beyond the given number
+ * of records (of each kind), they are kept in temporary files.
+ * Long invocations are passed directly to the (shared) capture, as it orders them by their keys itself.
+ */
+class BufferedOutput implements Output, Closeable {
+
+	private static final OrderedRecords.Codec<String> STRING_CODEC = new OrderedRecords.Codec<String>() {
+		@Override
+		public void write(DataOutput out, String record) throws IOException {
+			CapturedInvocation.writeString(out, record);
+		}
+
+		@Override
+		public String read(DataInput in) throws IOException {
+			return CapturedInvocation.readString(in);
+		}
+	};
+
+	private static final OrderedRecords.Codec<String[]> STRING_PAIR_CODEC = new OrderedRecords.Codec<String[]>() {
+		@Override
+		public void write(DataOutput out, String[] record) throws IOException {
+			CapturedInvocation.writeString(out, record[0]);
+			CapturedInvocation.writeString(out, record[1]);
+		}
+
+		@Override
+		public String[] read(DataInput in) throws IOException {
+			return new String[] { CapturedInvocation.readString(in), CapturedInvocation.readString(in) };
+		}
+	};
+
+	private final OrderedRecords<String[]> allInvocations;
+	private final OrderedRecords<String> selectedInvocations;
+	private final OrderedRecords<String> neverExited;
+	private final InvocationCapture longInvocations;
+
+	BufferedOutput(int recordsInMemory, InvocationCapture longInvocations) {
+		this.allInvocations = new OrderedRecords<>(recordsInMemory, STRING_PAIR_CODEC);
+		this.selectedInvocations = new OrderedRecords<>(recordsInMemory, STRING_CODEC);
+		this.neverExited = new OrderedRecords<>(recordsInMemory, STRING_CODEC);
+		this.longInvocations = longInvocations;
+	}
+
+	@Override
+	public void allInvocations(long order, String header, String summary) {
+		add(allInvocations, order, new String[] { header, summary });
+	}
+
+	@Override
+	public void selectedInvocation(long order, String line) {
+		add(selectedInvocations, order, line);
+	}
+
+	@Override
+	public void neverExited(long order, String line) {
+		add(neverExited, order, line);
+	}
+
+	private static <T> void add(OrderedRecords<T> records, long order, T record) {
+		try {
+			records.add(order, record);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Couldn't store the record: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void longInvocation(long order, MethodInvocation invocation) {
+		Output.addLongInvocation(longInvocations, order, invocation);
+	}
+
+	/**
+	 * Passes the records of all outputs to the target, in the order given by their keys.
+	 */
+	static void merge(List<BufferedOutput> outputs, Output target) throws IOException {
+		OrderedRecords.merge(collect(outputs, o -> o.allInvocations), r -> target.allInvocations(0, r[0], r[1]));
+		OrderedRecords.merge(collect(outputs, o -> o.selectedInvocations), r -> target.selectedInvocation(0, r));
+		OrderedRecords.merge(collect(outputs, o -> o.neverExited), r -> target.neverExited(0, r));
+	}
+
+	@Override
+	public void close() throws IOException {
+		allInvocations.close();
+		selectedInvocations.close();
+		neverExited.close();
+	}
+
+	private static <T> List<OrderedRecords<T>> collect(List<BufferedOutput> outputs,
+			Function<BufferedOutput, OrderedRecords<T>> getter) {
+		return outputs.stream().map(getter).collect(Collectors.toList());
+	}
+}
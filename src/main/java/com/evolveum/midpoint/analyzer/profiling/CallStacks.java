@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Calls entered but not yet exited, per thread, reconstructed from the nesting of profiling entries and exits.
+ * An exit is matched to the entry by sequence number and method; calls entered after the matched one and not exited
+ * are dropped, as they will not be exited at all (e.g. because of an exception that was not logged).
+ * The listener creates frames (with any data it needs) at entries and is told about exits, with the self time
+ * of the call: its execution time minus the time of its direct children; and about dropped calls.
+ *
+ * Not thread-safe.
+ */
+class CallStacks<F extends CallStacks.Frame> {
+
+	static class Frame {
+		final int sequenceNumber;
+		final int methodId;
+		long childTime;                     // of direct children exited so far
+
+		Frame(@NotNull ProfilingItem entry) {
+			this.sequenceNumber = entry.sequenceNumber;
+			this.methodId = entry.methodId;
+		}
+	}
+
+	interface Listener<F> {
+		/**
+		 * Creates the frame for the entry.
+		 *
+		 * @param stack Open calls of the thread (the innermost first), not including the new one.
+		 */
+		@NotNull F onEntry(@NotNull ProfilingItem entry, @Nullable F parent, @NotNull Deque<F> stack);
+
+		void onExit(@NotNull F frame, long time, long selfTime, @Nullable F parent);
+
+		/**
+		 * The call will not be exited (see above), or there are too many open calls, or the stacks are cleared.
+		 */
+		default void onDrop(@NotNull F frame) {
+		}
+	}
+
+	private final int maxOpenCallsPerThread;
+	@NotNull private final Listener<F> listener;
+
+	private final IntObjectMap<Deque<F>> stacks = new IntObjectMap<>();        // thread id -> open calls
+	private long unmatchedExits;
+	private long unfinishedCalls;
+
+	CallStacks(int maxOpenCallsPerThread, @NotNull Listener<F> listener) {
+		this.maxOpenCallsPerThread = maxOpenCallsPerThread;
+		this.listener = listener;
+	}
+
+	void process(@NotNull ProfilingItem item) {
+		Deque<F> stack = stacks.get(item.threadId);
+		if (item.kind == ProfilingItem.Kind.ENTRY) {
+			if (stack == null) {
+				stack = new ArrayDeque<>();
+				stacks.put(item.threadId, stack);
+			} else if (stack.size() >= maxOpenCallsPerThread) {
+				// probably a lot of entries without exits; the outermost call is the least likely to be exited
+				listener.onDrop(stack.removeLast());
+				unfinishedCalls++;
+			}
+			stack.push(listener.onEntry(item, stack.peek(), stack));
+		} else if (stack != null && item.etime != null) {
+			F frame = popMatching(stack, item);
+			if (frame != null) {
+				long time = item.etime;
+				F parent = stack.peek();
+				if (parent != null) {
+					parent.childTime += time;
+				}
+				listener.onExit(frame, time, Math.max(0, time - frame.childTime), parent);
+			} else {
+				unmatchedExits++;
+			}
+		} else {
+			unmatchedExits++;
+		}
+	}
+
+	/**
+	 * Removes the call the exit belongs to, along with the calls above it.
+	 */
+	private F popMatching(Deque<F> stack, ProfilingItem exit) {
+		int depth = 0;
+		for (Iterator<F> iterator = stack.iterator(); iterator.hasNext(); depth++) {
+			F frame = iterator.next();
+			if (frame.sequenceNumber == exit.sequenceNumber && frame.methodId == exit.methodId) {
+				for (int i = 0; i < depth; i++) {
+					listener.onDrop(stack.pop());
+				}
+				stack.pop();
+				unfinishedCalls += depth;
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Drops all open calls, e.g. when a new batch starts (the calls will not be exited then).
+	 */
+	void clear() {
+		stacks.forEach((threadId, stack) -> {
+			unfinishedCalls += stack.size();
+			stack.forEach(listener::onDrop);
+		});
+		stacks.clear();
+	}
+
+	static boolean isOnStack(@NotNull Deque<? extends Frame> stack, int methodId) {
+		for (Frame frame : stack) {
+			if (frame.methodId == methodId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	long getUnmatchedExits() {
+		return unmatchedExits;
+	}
+
+	long getUnfinishedCalls() {
+		return unfinishedCalls;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reconstructs call trees from the nesting of method entries and exits in each thread, and computes inclusive
+ * and self (exclusive) time of the calls. Self time is the execution time minus the time of the directly called
+ * methods; so, unlike the per-method totals of the collector, it is not counted more times for nested calls.
+ *
+ * Calls are aggregated into a prefix tree of call paths (one node per distinct path, not per invocation), so memory
+ * is bounded by the number of distinct paths. Calls nested deeper than the depth limit are not kept as separate
+ * nodes: their time is included in the self time of their ancestor at the limit.
+ *
+ * Outputs:
+ * - self times of call paths in the collapsed stack format (one "a;b;c time" line per path), as used by flame graph tools;
+ * - per-method totals: calls, inclusive time (nested recursive calls counted once) and self time.
+ */
+public class CallTreeAnalysis implements ProfilingAnalysis {
+
+	private static final Trace LOGGER = TraceManager.getTrace(CallTreeAnalysis.class);
+
+	private static final int MAX_OPEN_CALLS_PER_THREAD = 1000;
+
+	@NotNull private final File collapsedFile;
+	@NotNull private final File methodsFile;
+	private final int maxDepth;
+
+	private SymbolTable methods;
+
+	private static class Node {
+		private final int methodId;
+		private final int depth;
+		private IntObjectMap<Node> children;        // created lazily
+		private long calls;
+		private long inclusiveTime;
+		private long selfTime;
+
+		private Node(int methodId, int depth) {
+			this.methodId = methodId;
+			this.depth = depth;
+		}
+	}
+
+	private static class Frame extends CallStacks.Frame {
+		private final Node node;                    // null if deeper than the limit
+		private final boolean recursive;            // the method is already on the stack
+		private long childTimeInTree;               // time of direct children that have their nodes
+
+		private Frame(ProfilingItem entry, Node node, boolean recursive) {
+			super(entry);
+			this.node = node;
+			this.recursive = recursive;
+		}
+	}
+
+	private final Node root = new Node(-1, 0);
+	private final CallStacks<Frame> stacks = new CallStacks<>(MAX_OPEN_CALLS_PER_THREAD, new CallStacks.Listener<Frame>() {
+		@NotNull
+		@Override
+		public Frame onEntry(@NotNull ProfilingItem entry, @Nullable Frame parent, @NotNull Deque<Frame> stack) {
+			Node parentNode = parent != null ? parent.node : root;
+			Node node = parentNode != null && parentNode.depth < maxDepth ? getChild(parentNode, entry.methodId) : null;
+			return new Frame(entry, node, CallStacks.isOnStack(stack, entry.methodId));
+		}
+
+		@Override
+		public void onExit(@NotNull Frame frame, long time, long selfTime, @Nullable Frame parent) {
+			exit(frame, time, selfTime, parent);
+		}
+	});
+	private int nodes;
+
+	// per-method totals, indexed by method id
+	private long[] methodCalls = new long[0];
+	private long[] methodInclusiveTimes = new long[0];
+	private long[] methodSelfTimes = new long[0];
+
+	public CallTreeAnalysis(@NotNull File collapsedFile, @NotNull File methodsFile, int maxDepth) {
+		if (maxDepth < 1) {
+			throw new IllegalArgumentException("Maximal depth must be positive: " + maxDepth);
+		}
+		this.collapsedFile = collapsedFile;
+		this.methodsFile = methodsFile;
+		this.maxDepth = maxDepth;
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) {
+		methods = context.getMethodSymbols();
+	}
+
+	/**
+	 * Calls not exited before a new batch will not be exited at all (see {@link ProfilingEntryReader}).
+	 */
+	@Override
+	public void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+		stacks.clear();
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		stacks.process(item);
+	}
+
+	private Node getChild(Node parent, int methodId) {
+		if (parent.children == null) {
+			parent.children = new IntObjectMap<>();
+		}
+		Node child = parent.children.get(methodId);
+		if (child == null) {
+			child = new Node(methodId, parent.depth + 1);
+			parent.children.put(methodId, child);
+			nodes++;
+		}
+		return child;
+	}
+
+	private void exit(Frame frame, long time, long selfTime, Frame parent) {
+		if (frame.node != null) {
+			frame.node.calls++;
+			frame.node.inclusiveTime += time;
+			frame.node.selfTime += Math.max(0, time - frame.childTimeInTree);
+			if (parent != null) {
+				parent.childTimeInTree += time;
+			}
+		}
+		int methodId = frame.methodId;
+		if (methodId >= methodCalls.length) {
+			int length = Math.max(methodId + 1, methodCalls.length * 2);
+			methodCalls = Arrays.copyOf(methodCalls, length);
+			methodInclusiveTimes = Arrays.copyOf(methodInclusiveTimes, length);
+			methodSelfTimes = Arrays.copyOf(methodSelfTimes, length);
+		}
+		methodCalls[methodId]++;
+		if (!frame.recursive) {
+			methodInclusiveTimes[methodId] += time;
+		}
+		methodSelfTimes[methodId] += selfTime;
+	}
+
+	@Override
+	public void refresh() throws IOException {
+		writeResults();
+	}
+
+	@Override
+	public void end() throws IOException {
+		writeResults();
+		LOGGER.info("Call tree: {} distinct call paths; {} calls not finished, {} exits without entries",
+				nodes, stacks.getUnfinishedCalls(), stacks.getUnmatchedExits());
+	}
+
+	private void writeResults() throws IOException {
+		PrintWriter pwCollapsed = new PrintWriter(new FileWriter(collapsedFile));
+		writeCollapsed(pwCollapsed, root, new StringBuilder());
+		pwCollapsed.close();
+
+		List<Integer> methodIds = new ArrayList<>();
+		for (int i = 0; i < methodCalls.length; i++) {
+			if (methodCalls[i] > 0) {
+				methodIds.add(i);
+			}
+		}
+		methodIds.sort(Comparator.comparingLong((Integer id) -> -methodSelfTimes[id]).thenComparing(methods::getName));
+		PrintWriter pwMethods = new PrintWriter(new FileWriter(methodsFile));
+		pwMethods.println("Method;Calls;InclusiveMicros;SelfMicros");
+		for (int id : methodIds) {
+			pwMethods.println(methods.getName(id) + ";" + methodCalls[id] + ";" + methodInclusiveTimes[id] + ";" + methodSelfTimes[id]);
+		}
+		pwMethods.close();
+	}
+
+	/**
+	 * Writes self times of the node's descendants, ordered by method names (for stable output).
+	 */
+	private void writeCollapsed(PrintWriter pw, Node node, StringBuilder path) {
+		if (node.children == null) {
+			return;
+		}
+		List<Node> children = new ArrayList<>(node.children.size());
+		node.children.forEach((methodId, child) -> children.add(child));
+		children.sort(Comparator.comparing(child -> methods.getName(child.methodId)));
+		for (Node child : children) {
+			int length = path.length();
+			if (length > 0) {
+				path.append(';');
+			}
+			path.append(getFrameName(child.methodId));
+			if (child.selfTime > 0) {
+				pw.print(path);
+				pw.print(' ');
+				pw.println(child.selfTime);
+			}
+			writeCollapsed(pw, child, path);
+			path.setLength(length);
+		}
+	}
+
+	/**
+	 * Separators of the collapsed format must not appear in frame names.
+	 */
+	private String getFrameName(int methodId) {
+		return methods.getName(methodId).replace(';', ':').replace(' ', '_');
+	}
+}
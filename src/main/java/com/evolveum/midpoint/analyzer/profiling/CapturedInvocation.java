@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.function.Consumer;
+
+/**
+ * A long invocation as written to the output: categorized, with arguments and return value as texts.
+ * Unlike {@link MethodInvocation}, it can be written to a file and read back (see {@link SpillingInvocationCapture}).
+ */
+class CapturedInvocation {
+
+	static final Comparator<CapturedInvocation> SLOWEST_FIRST =
+			Comparator.comparingLong((CapturedInvocation c) -> -c.executionTime)
+					.thenComparingLong(c -> c.order);
+
+	final long order;
+	final long executionTime;
+	final long timestamp;
+	@NotNull final String threadName;
+	@NotNull final String methodName;
+	@Nullable final String categoryName;
+	@NotNull final String categorizationParameters;
+	@NotNull final String arguments;
+	@NotNull final String returnValue;
+
+	private CapturedInvocation(long order, long executionTime, long timestamp, @NotNull String threadName,
+			@NotNull String methodName, @Nullable String categoryName, @NotNull String categorizationParameters,
+			@NotNull String arguments, @NotNull String returnValue) {
+		this.order = order;
+		this.executionTime = executionTime;
+		this.timestamp = timestamp;
+		this.threadName = threadName;
+		this.methodName = methodName;
+		this.categoryName = categoryName;
+		this.categorizationParameters = categorizationParameters;
+		this.arguments = arguments;
+		this.returnValue = returnValue;
+	}
+
+	/**
+	 * Categorizes the invocation and reads its texts (possibly from the log file).
+	 */
+	static CapturedInvocation of(@NotNull InvocationCapture.Candidate candidate,
+			@NotNull Consumer<MethodInvocation> categorizer) {
+		MethodInvocation invocation = candidate.invocation;
+		String arguments = invocation.getArguments();
+		String returnValue = invocation.getReturnValue();
+		categorizer.accept(invocation);
+		return new CapturedInvocation(candidate.order, invocation.getExecutionTime(), invocation.getTimestamp().getTime(),
+				invocation.getThreadName(), invocation.getMethodName(), invocation.getCategoryName(),
+				String.valueOf(invocation.getCategorizationParameters()), arguments, returnValue);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeLong(order);
+		out.writeLong(executionTime);
+		out.writeLong(timestamp);
+		writeString(out, threadName);
+		writeString(out, methodName);
+		writeString(out, categoryName);
+		writeString(out, categorizationParameters);
+		writeString(out, arguments);
+		writeString(out, returnValue);
+	}
+
+	static CapturedInvocation read(DataInput in) throws IOException {
+		long order = in.readLong();
+		long executionTime = in.readLong();
+		long timestamp = in.readLong();
+		String threadName = readString(in);
+		String methodName = readString(in);
+		String categoryName = readString(in);
+		String categorizationParameters = readString(in);
+		String arguments = readString(in);
+		String returnValue = readString(in);
+		return new CapturedInvocation(order, executionTime, timestamp, threadName, methodName, categoryName,
+				categorizationParameters, arguments, returnValue);
+	}
+
+	// DataOutput.writeUTF is limited to 64 KB, which is not enough for arguments
+	static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.LogLinearHistogram;
+import com.evolveum.midpoint.analyzer.util.SymbolPredicate;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Detects when the processing slows down, i.e. where the per-method latency or the time per processed object
+ * (as told by the progress messages, see {@link com.evolveum.midpoint.analyzer.Constants#PROGRESS_PATTERN}) shifts
+ * upwards.
+ *
+ * The progress is divided into segments of a given number of objects. For each segment there is a point of the throughput
+ * series (microseconds per object) and, for each method with enough exits, a point of its latency series (the given
+ * percentile of its execution times). Methods with too few exits in a segment carry them over to the next one.
+ * Each series is watched by a one-sided CUSUM detector on logarithms of its values: the first {@link #WARM_UP} points
+ * establish the baseline (mean and standard deviation), then the sum of standardized deviations above the baseline
+ * (minus the allowance {@link #ALLOWANCE}) is accumulated; when it exceeds {@link #THRESHOLD}, a change point
+ * is reported, starting where the sum last left zero. Then the detector establishes a new baseline, so further
+ * slowdowns are detected as well.
+ *
+ * Change points are written ordered by their start, so the methods that degraded first come first. Baselines and levels
+ * are in microseconds (per object for the throughput); values below 1 microsecond are taken as 1. Memory per series
+ * is constant (a small histogram of the current segment and a few numbers).
+ */
+public class ChangePointAnalysis implements ProfilingAnalysis {
+
+	private static final Trace LOGGER = TraceManager.getTrace(ChangePointAnalysis.class);
+
+	private static final int PRECISION = 1;                     // significant digits of segment percentiles
+	private static final int WARM_UP = 16;                      // points
+	private static final double ALLOWANCE = 0.5;                // in standard deviations
+	private static final double THRESHOLD = 5.0;                // in standard deviations
+	private static final double MIN_DEVIATION = 0.05;           // of logarithms, i.e. ~5 %; flat baselines are not too sensitive
+
+	private static final String THROUGHPUT_SERIES = "(throughput)";
+
+	@NotNull private final File outputFile;
+	@NotNull private final Predicate<String> methodPredicate;
+	private final int progressStep;
+	private final double percentile;
+	private final int minSamples;
+
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+	private SymbolTable methods;
+	private SymbolPredicate selectedMethods;
+
+	/**
+	 * One-sided (upward) CUSUM over logarithms of the values.
+	 */
+	private static class Detector {
+		private int warmUpCount;
+		private double mean;
+		private double m2;                                      // sum of squared deviations from the mean (Welford)
+		private double deviation;
+
+		private double sum;                                     // the CUSUM statistic
+		private int startProgress;                              // where the sum last left zero
+		private long startTime;
+		private double startLogSum;                             // sum of logarithms since the start
+		private int startCount;
+
+		/**
+		 * Returns the change point if it was detected by this value.
+		 */
+		private ChangePoint add(double value, int progress, long time, int segmentStartProgress, long segmentStartTime) {
+			double x = Math.log(Math.max(value, 1.0));
+			if (warmUpCount < WARM_UP) {
+				warmUpCount++;
+				double delta = x - mean;
+				mean += delta / warmUpCount;
+				m2 += delta * (x - mean);
+				if (warmUpCount == WARM_UP) {
+					deviation = Math.max(Math.sqrt(m2 / (WARM_UP - 1)), MIN_DEVIATION);
+				}
+				return null;
+			}
+			if (sum == 0) {
+				startProgress = segmentStartProgress;
+				startTime = segmentStartTime;
+				startLogSum = 0;
+				startCount = 0;
+			}
+			sum = Math.max(0, sum + (x - mean) / deviation - ALLOWANCE);
+			startLogSum += x;
+			startCount++;
+			if (sum == 0) {
+				return null;
+			} else if (sum > THRESHOLD) {
+				ChangePoint changePoint = new ChangePoint(startProgress, startTime, progress, time,
+						Math.exp(mean), Math.exp(startLogSum / startCount));
+				reset();
+				return changePoint;
+			} else {
+				return null;
+			}
+		}
+
+		private void reset() {
+			warmUpCount = 0;
+			mean = 0;
+			m2 = 0;
+			sum = 0;
+		}
+	}
+
+	private static class ChangePoint {
+		private String series;
+		private final int startProgress;
+		private final long startTime;
+		private final int detectedProgress;
+		private final long detectedTime;
+		private final double baseline;                          // geometric means
+		private final double level;
+
+		private ChangePoint(int startProgress, long startTime, int detectedProgress, long detectedTime,
+				double baseline, double level) {
+			this.startProgress = startProgress;
+			this.startTime = startTime;
+			this.detectedProgress = detectedProgress;
+			this.detectedTime = detectedTime;
+			this.baseline = baseline;
+			this.level = level;
+		}
+	}
+
+	private static class MethodSeries {
+		private final int methodId;
+		private final LogLinearHistogram latencies = new LogLinearHistogram(PRECISION);
+		private int startProgress;                              // of the samples in the histogram
+		private long startTime;
+		private final Detector detector = new Detector();
+
+		private MethodSeries(int methodId) {
+			this.methodId = methodId;
+		}
+	}
+
+	private final IntObjectMap<MethodSeries> seriesMap = new IntObjectMap<>();      // method id -> series
+	private final List<MethodSeries> seriesList = new ArrayList<>();                // the same, in order of appearance
+	private final Detector throughputDetector = new Detector();
+	private final List<ChangePoint> changePoints = new ArrayList<>();
+
+	private int segmentStartProgress = -1;                      // -1 if there is no segment yet
+	private long segmentStartTime;
+
+	public ChangePointAnalysis(@NotNull File outputFile, @NotNull Predicate<String> methodPredicate, int progressStep,
+			double percentile, int minSamples) {
+		if (progressStep < 1) {
+			throw new IllegalArgumentException("Progress step must be positive: " + progressStep);
+		}
+		this.outputFile = outputFile;
+		this.methodPredicate = methodPredicate;
+		this.progressStep = progressStep;
+		this.percentile = percentile;
+		this.minSamples = minSamples;
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) {
+		methods = context.getMethodSymbols();
+		selectedMethods = new SymbolPredicate(methods, methodPredicate);
+	}
+
+	/**
+	 * A new batch is a different run, so the series start anew (detected change points are kept).
+	 */
+	@Override
+	public void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+		for (MethodSeries series : seriesList) {
+			series.latencies.reset();
+			series.detector.reset();
+		}
+		throughputDetector.reset();
+		segmentStartProgress = -1;
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		long time = item.firstLogEntry.timestamp.getTime();
+		if (segmentStartProgress < 0 || item.progress < segmentStartProgress) {
+			startSegment(item.progress, time);
+		} else if (item.progress >= segmentStartProgress + progressStep) {
+			closeSegment(item.progress, time);
+			startSegment(item.progress, time);
+		}
+		if (item.kind == ProfilingItem.Kind.EXIT && item.etime != null && selectedMethods.test(item.methodId)) {
+			MethodSeries series = seriesMap.get(item.methodId);
+			if (series == null) {
+				series = new MethodSeries(item.methodId);
+				seriesMap.put(item.methodId, series);
+				seriesList.add(series);
+			}
+			if (series.latencies.getTotalCount() == 0) {
+				series.startProgress = segmentStartProgress;
+				series.startTime = segmentStartTime;
+			}
+			series.latencies.recordValue(item.etime);
+		}
+	}
+
+	private void startSegment(int progress, long time) {
+		segmentStartProgress = progress;
+		segmentStartTime = time;
+	}
+
+	private void closeSegment(int progress, long time) {
+		// in microseconds, like method latencies; in milliseconds, fast processing would be below the clamp at 1
+		double microsPerObject = (time - segmentStartTime) * 1000.0 / (progress - segmentStartProgress);
+		addChangePoint(THROUGHPUT_SERIES,
+				throughputDetector.add(microsPerObject, progress, time, segmentStartProgress, segmentStartTime));
+		for (MethodSeries series : seriesList) {
+			if (series.latencies.getTotalCount() >= minSamples) {
+				long value = series.latencies.getValueAtPercentile(percentile);
+				addChangePoint(methods.getName(series.methodId),
+						series.detector.add(value, progress, time, series.startProgress, series.startTime));
+				series.latencies.reset();
+			}
+		}
+	}
+
+	private void addChangePoint(String series, ChangePoint changePoint) {
+		if (changePoint != null) {
+			changePoint.series = series;
+			changePoints.add(changePoint);
+		}
+	}
+
+	@Override
+	public void refresh() throws IOException {
+		writeResults();
+	}
+
+	@Override
+	public void end() throws IOException {
+		writeResults();
+		LOGGER.info("Change points: {} detected in {} series", changePoints.size(), seriesList.size() + 1);
+	}
+
+	private void writeResults() throws IOException {
+		changePoints.sort(Comparator.comparingLong((ChangePoint c) -> c.startTime).thenComparingLong(c -> c.detectedTime));
+		try (PrintWriter pw = new PrintWriter(new FileWriter(outputFile))) {
+			pw.println("Series;StartTime;StartProgress;DetectedTime;DetectedProgress;Baseline;Level;Ratio");
+			for (ChangePoint c : changePoints) {
+				pw.println(String.format(Locale.US, "%s;%s;%d;%s;%d;%.1f;%.1f;%.2f", c.series,
+						df.format(new Date(c.startTime)), c.startProgress, df.format(new Date(c.detectedTime)),
+						c.detectedProgress, c.baseline, c.level, c.level / c.baseline));
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.LogLinearHistogram;
+import com.evolveum.midpoint.analyzer.util.SymbolPredicate;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Number of threads executing selected methods ("in flight") over time, computed by sweeping over entries (+1)
+ * and exits (-1) in the order of their timestamps. For each method and window (a second) it reports maximal, mean
+ * and time-weighted 99th percentile of the in-flight count, along with the latency of invocations exited in the window;
+ * so it can be seen whether the latency grows with concurrency (e.g. when a connection pool is saturated).
+ *
+ * Entries and exits are matched by {@link CallStacks}, so an entry that is never exited (e.g. because of an exception
+ * that was not logged) stops being counted when an enclosing call exits. Memory is bounded: per method, only the current
+ * window is kept (time spent at each in-flight level), and per thread, the open calls. Rows are written as windows
+ * are closed.
+ */
+public class ConcurrencyTimelineAnalysis implements ProfilingAnalysis {
+
+	private static final long WINDOW = 1000L;                   // in milliseconds
+	private static final int LATENCY_PRECISION = 2;             // significant digits
+	private static final int MAX_OPEN_CALLS_PER_THREAD = 1000;
+
+	@NotNull private final File outputFile;
+	@NotNull private final Predicate<String> methodPredicate;
+
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+	private SymbolTable methods;
+	private SymbolPredicate selectedMethods;
+	private PrintWriter pw;
+
+	private static class MethodState {
+		private final int methodId;
+		private int inFlight;
+		private long lastChange;                                // when inFlight last changed (or was accounted)
+		private long[] timeAtLevel = new long[4];               // in the current window, in milliseconds
+		private int maxInFlight;                                // in the current window
+		private final LogLinearHistogram latencies = new LogLinearHistogram(LATENCY_PRECISION);
+		private long latencySum;
+
+		private MethodState(int methodId) {
+			this.methodId = methodId;
+		}
+
+		private void accountUntil(long time) {
+			if (time > lastChange) {
+				if (inFlight >= timeAtLevel.length) {
+					timeAtLevel = Arrays.copyOf(timeAtLevel, Math.max(inFlight + 1, timeAtLevel.length * 2));
+				}
+				timeAtLevel[inFlight] += time - lastChange;
+				lastChange = time;
+			}
+		}
+
+		private boolean isActive() {
+			return maxInFlight > 0 || latencies.getTotalCount() > 0;
+		}
+
+		private void resetWindow(long windowStart) {
+			Arrays.fill(timeAtLevel, 0);
+			maxInFlight = inFlight;
+			lastChange = windowStart;
+			latencies.reset();
+			latencySum = 0;
+		}
+	}
+
+	private final IntObjectMap<MethodState> states = new IntObjectMap<>();          // method id -> state
+	private final List<MethodState> stateList = new ArrayList<>();                  // the same, in order of appearance
+
+	private static class Frame extends CallStacks.Frame {
+		private final boolean selected;
+
+		private Frame(ProfilingItem entry, boolean selected) {
+			super(entry);
+			this.selected = selected;
+		}
+	}
+
+	// All calls are tracked (not only the selected ones), so that the exit of an enclosing call drops selected calls
+	// that will not be exited. Otherwise they would be counted as in flight until the end of the batch.
+	private final CallStacks<Frame> stacks = new CallStacks<>(MAX_OPEN_CALLS_PER_THREAD, new CallStacks.Listener<Frame>() {
+		@NotNull
+		@Override
+		public Frame onEntry(@NotNull ProfilingItem entry, @Nullable Frame parent, @NotNull Deque<Frame> stack) {
+			boolean selected = selectedMethods.test(entry.methodId);
+			if (selected) {
+				enter(entry.methodId);
+			}
+			return new Frame(entry, selected);
+		}
+
+		@Override
+		public void onExit(@NotNull Frame frame, long time, long selfTime, @Nullable Frame parent) {
+			if (frame.selected) {
+				MethodState state = leave(frame.methodId);
+				state.latencies.recordValue(time);
+				state.latencySum += time;
+			}
+		}
+
+		@Override
+		public void onDrop(@NotNull Frame frame) {
+			if (frame.selected) {
+				leave(frame.methodId);
+			}
+		}
+	});
+
+	private long windowStart = -1;                              // -1 if there is no current window
+	private long lastTime;                                      // of the last item that was accounted
+	private long currentTime;                                   // of the item being processed
+	private int methodsInFlight;                                // number of states with inFlight > 0
+
+	public ConcurrencyTimelineAnalysis(@NotNull File outputFile, @NotNull Predicate<String> methodPredicate) {
+		this.outputFile = outputFile;
+		this.methodPredicate = methodPredicate;
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) throws IOException {
+		methods = context.getMethodSymbols();
+		selectedMethods = new SymbolPredicate(methods, methodPredicate);
+		pw = new PrintWriter(new FileWriter(outputFile));
+		pw.println("Time;Method;MaxInFlight;MeanInFlight;P99InFlight;Exits;AvgLatencyMicros;P99LatencyMicros;MaxLatencyMicros");
+	}
+
+	/**
+	 * Entries not exited before a new batch will not be exited at all (see {@link ProfilingEntryReader}).
+	 */
+	@Override
+	public void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+		closeWindow(lastTime);
+		currentTime = lastTime;
+		stacks.clear();
+		windowStart = -1;
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		// items are ordered by timestamps only approximately (e.g. entries of the same millisecond in different threads)
+		currentTime = Math.max(item.firstLogEntry.timestamp.getTime(), lastTime);
+		// other items matter only if they can drop selected calls
+		if (methodsInFlight > 0 || selectedMethods.test(item.methodId)) {
+			lastTime = currentTime;
+			advanceTo(currentTime);
+		}
+		stacks.process(item);
+	}
+
+	private void enter(int methodId) {
+		MethodState state = getState(methodId, currentTime);
+		state.accountUntil(currentTime);
+		if (state.inFlight++ == 0) {
+			methodsInFlight++;
+		}
+		state.maxInFlight = Math.max(state.maxInFlight, state.inFlight);
+	}
+
+	private MethodState leave(int methodId) {
+		MethodState state = getState(methodId, currentTime);
+		state.accountUntil(currentTime);
+		if (--state.inFlight == 0) {
+			methodsInFlight--;
+		}
+		return state;
+	}
+
+	private MethodState getState(int methodId, long time) {
+		MethodState state = states.get(methodId);
+		if (state == null) {
+			state = new MethodState(methodId);
+			state.lastChange = time;
+			states.put(methodId, state);
+			stateList.add(state);
+		}
+		return state;
+	}
+
+	/**
+	 * Closes windows before the given time. Windows with nothing in flight are skipped.
+	 */
+	private void advanceTo(long time) {
+		while (windowStart >= 0 && time >= windowStart + WINDOW) {
+			closeWindow(windowStart + WINDOW);
+			windowStart = methodsInFlight > 0 ? windowStart + WINDOW : -1;
+		}
+		if (windowStart < 0) {
+			windowStart = time - time % WINDOW;
+			for (MethodState state : stateList) {
+				state.resetWindow(windowStart);
+			}
+		}
+	}
+
+	/**
+	 * Closes the current window; the in-flight counts are known until the given time (the rest of the window
+	 * is considered idle).
+	 */
+	private void closeWindow(long knownUntil) {
+		if (windowStart < 0) {
+			return;
+		}
+		long windowEnd = windowStart + WINDOW;
+		String timestamp = df.format(new Date(windowStart));
+		for (MethodState state : stateList) {
+			state.accountUntil(Math.min(knownUntil, windowEnd));
+			if (state.isActive()) {
+				writeRow(timestamp, state);
+			}
+			state.resetWindow(windowEnd);
+		}
+	}
+
+	private void writeRow(String timestamp, MethodState state) {
+		long weightedSum = 0;
+		long accounted = 0;
+		for (int level = 0; level < state.timeAtLevel.length; level++) {
+			weightedSum += level * state.timeAtLevel[level];
+			accounted += state.timeAtLevel[level];
+		}
+		// the lowest level such that the count was at or below it for at least 99 % of the window
+		long cumulative = WINDOW - accounted;               // time not accounted for is idle
+		int p99 = 0;
+		for (int level = 0; level < state.timeAtLevel.length; level++) {
+			cumulative += state.timeAtLevel[level];
+			p99 = level;
+			if (cumulative * 100 >= WINDOW * 99) {
+				break;
+			}
+		}
+		long exits = state.latencies.getTotalCount();
+		pw.println(String.format(Locale.US, "%s;%s;%d;%.2f;%d;%d;%s;%s;%s", timestamp, methods.getName(state.methodId),
+				state.maxInFlight, (double) weightedSum / WINDOW, p99, exits,
+				exits > 0 ? String.valueOf(state.latencySum / exits) : "",
+				exits > 0 ? String.valueOf(state.latencies.getValueAtPercentile(99)) : "",
+				exits > 0 ? String.valueOf(state.latencies.getMax()) : ""));
+	}
+
+	@Override
+	public void refresh() {
+		pw.flush();
+	}
+
+	@Override
+	public void end() {
+		closeWindow(lastTime);
+		pw.close();
+	}
+}
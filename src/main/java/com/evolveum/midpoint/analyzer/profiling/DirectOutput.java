@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes the records as they come; usable if they come in the correct order, i.e. from a single shard.
+ */
+class DirectOutput implements Output {
+
+	private final PrintWriter pwAllInvocations;
+	private final PrintWriter pwSelectedInvocations;
+	private final PrintWriter pwNeverExited;
+	private final InvocationCapture longInvocations;
+
+	DirectOutput(PrintWriter pwAllInvocations, PrintWriter pwSelectedInvocations, PrintWriter pwNeverExited,
+			InvocationCapture longInvocations) {
+		this.pwAllInvocations = pwAllInvocations;
+		this.pwSelectedInvocations = pwSelectedInvocations;
+		this.pwNeverExited = pwNeverExited;
+		this.longInvocations = longInvocations;
+	}
+
+	@Override
+	public void allInvocations(long order, String header, String summary) {
+		pwAllInvocations.println(header);
+		pwAllInvocations.println(summary);
+		pwAllInvocations.println();
+	}
+
+	@Override
+	public void selectedInvocation(long order, String line) {
+		pwSelectedInvocations.println(line);
+	}
+
+	@Override
+	public void neverExited(long order, String line) {
+		pwNeverExited.println(line);
+	}
+
+	@Override
+	public void longInvocation(long order, MethodInvocation invocation) {
+		Output.addLongInvocation(longInvocations, order, invocation);
+	}
+}
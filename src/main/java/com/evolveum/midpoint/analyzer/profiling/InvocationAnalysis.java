@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.*;
+import com.evolveum.midpoint.collector.EventsSummary;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * The main analysis: invocations of main methods with the methods called from them, execution times
+ * of methods (histogram), long invocations, never exited method entries.
+ *
+ * Items are routed to shards (see {@link ShardDispatcher}); this class keeps the log time and takes care
+ * of the outputs.
+ */
+class InvocationAnalysis implements ProfilingAnalysis {
+
+	@NotNull private final InvocationAnalysisSettings settings;
+	@NotNull private final InvocationCapture longInvocations;
+	@NotNull private final SimpleDateFormat df;
+	private final boolean pipeline;
+	private final boolean parallel;
+
+	private PrintWriter pwAllInvocations;
+	private PrintWriter pwSelectedInvocations;
+	private PrintWriter pwNeverExited;
+	private Output output;
+	private PipelinedOutput pipelinedOutput;
+
+	private AnalysisContext context;
+	private final List<InvocationShard> shards = new ArrayList<>();
+	private final List<BufferedOutput> bufferedOutputs = new ArrayList<>();
+	private ShardDispatcher dispatcher;
+
+	private long clock;                     // log time: the newest timestamp of the items analyzed so far
+	private int itemIndex;                  // index of the next item
+	private long nextAgeCheck;
+
+	InvocationAnalysis(@NotNull InvocationAnalysisSettings settings, @NotNull InvocationCapture longInvocations,
+			@NotNull SimpleDateFormat df) {
+		this.settings = settings;
+		this.longInvocations = longInvocations;
+		this.df = df;
+		this.pipeline = settings.pipeline;
+		// In parallel mode, the records produced by shards are kept (in memory or in temporary files) and merged at the end.
+		this.parallel = settings.shards > 1;
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) throws IOException {
+		this.context = context;
+
+		pwAllInvocations = new PrintWriter(new FileWriter(settings.allInvocationsFile));
+
+		pwSelectedInvocations = new PrintWriter(new FileWriter(settings.selectedInvocationsFile));
+		pwSelectedInvocations.print("Timestamp;Second;Thread;Progress");
+		for (String methodName : settings.extracting) {
+			pwSelectedInvocations.print(";"+StringUtils.substringAfter(methodName, "->"));
+		}
+		pwSelectedInvocations.println();
+
+		pwNeverExited = new PrintWriter(new FileWriter(settings.neverExitedInvocationsFile));
+		pwNeverExited.println("Timestamp;Thread;Method;Sequence;OpenMillis;Reason");
+
+		Output directOutput = new DirectOutput(pwAllInvocations, pwSelectedInvocations, pwNeverExited, longInvocations);
+		pipelinedOutput = pipeline ? new PipelinedOutput(directOutput) : null;
+		output = pipeline ? pipelinedOutput : directOutput;
+
+		SymbolTable methods = context.getMethodSymbols();
+		SymbolTable threads = context.getThreadSymbols();
+		int[] extractingIds = settings.extracting.stream().mapToInt(methods::getId).toArray();
+
+		for (int i = 0; i < settings.shards; i++) {
+			Output shardOutput = output;
+			if (parallel) {
+				BufferedOutput bufferedOutput = new BufferedOutput(settings.shardRecordsInMemory, longInvocations);
+				bufferedOutputs.add(bufferedOutput);
+				shardOutput = bufferedOutput;
+			}
+			shards.add(new InvocationShard(settings, methods, threads, extractingIds, context::getFirstTimestamp,
+					(SimpleDateFormat) df.clone(), shardOutput));
+		}
+		dispatcher = new ShardDispatcher(shards);
+	}
+
+	@Override
+	public void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+		dispatcher.onNewBatch(clock, order(itemIndex, false));
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		int index = itemIndex++;
+		clock = Math.max(clock, item.firstLogEntry.timestamp.getTime());
+		if (clock >= nextAgeCheck) {
+			dispatcher.checkAge(clock, order(index, false));
+			nextAgeCheck = clock + Math.max(settings.maxOpenEntryAge / 10, 1);
+		}
+		dispatcher.process(item, clock, order(index, true));
+	}
+
+	/**
+	 * Rewrites the results (in follow mode). Results of parallel shards are merged, and pipelined output is written,
+	 * only at the end.
+	 */
+	@Override
+	public void refresh() throws IOException {
+		if (parallel || pipeline) {
+			return;
+		}
+		pwAllInvocations.flush();
+		pwSelectedInvocations.flush();
+		pwNeverExited.flush();
+		InvocationShard shard = shards.get(0);
+		writeResults(shard.getHistogram(), shard.getInvocationsSummary());
+	}
+
+	@Override
+	public void end() throws IOException {
+		dispatcher.finish(clock, order(itemIndex, false));
+		dispatcher.close();
+
+		Histogram histogram;
+		EventsSummary invocationsSummary;                   // roll-up of all main method invocations
+		if (parallel) {
+			BufferedOutput.merge(bufferedOutputs, output);
+			for (BufferedOutput bufferedOutput : bufferedOutputs) {
+				bufferedOutput.close();
+			}
+			histogram = new Histogram(settings.histogramStep, settings.histogramUpperBoundary,
+					settings.histogramSignificantDigits);
+			invocationsSummary = new EventsSummary(context.getMethodSymbols()::getName);
+			for (InvocationShard shard : shards) {
+				histogram.merge(shard.getHistogram());
+				invocationsSummary.merge(shard.getInvocationsSummary());
+			}
+		} else {
+			histogram = shards.get(0).getHistogram();
+			invocationsSummary = shards.get(0).getInvocationsSummary();
+		}
+		if (pipeline) {
+			pipelinedOutput.close();
+		}
+		pwAllInvocations.close();
+		pwSelectedInvocations.close();
+		pwNeverExited.close();
+
+		writeResults(histogram, invocationsSummary);
+		longInvocations.close();
+	}
+
+	InvocationCapture getLongInvocations() {
+		return longInvocations;
+	}
+
+	List<PipelineStatistics> getPipelineStatistics() {
+		List<PipelineStatistics> rv = new ArrayList<>(dispatcher.getStatistics());
+		if (pipelinedOutput != null) {
+			rv.add(pipelinedOutput.getStatistics());
+		}
+		return rv;
+	}
+
+	/**
+	 * Order key of records produced when processing the item with the given index (or before it, in the case of events
+	 * concerning all threads). The thread id is added to the key by the producer of the record.
+	 */
+	static long order(int itemIndex, boolean itemItself) {
+		return (long) itemIndex << 32 | (itemItself ? 1L << 31 : 0);
+	}
+
+	/**
+	 * Writes the results that are computed from the data collected so far (i.e. not written continuously).
+	 */
+	private void writeResults(Histogram histogram, EventsSummary invocationsSummary) throws IOException {
+		PrintWriter pwInvocationsSummary = new PrintWriter(new FileWriter(settings.invocationsSummaryFile));
+		pwInvocationsSummary.println("Method calls for all entries:");
+		pwInvocationsSummary.println(invocationsSummary.dump());
+		pwInvocationsSummary.close();
+
+		PrintWriter pwPerMinute = new PrintWriter(new FileWriter(settings.objectsPerMinuteFile));
+		pwPerMinute.println("Minute;Objects");
+		int[] countsPerMinute = context.getThroughputCollector().getCountsPerMinute();
+		for (int i = 0; i < countsPerMinute.length; i++) {
+			pwPerMinute.println(i + ";" + countsPerMinute[i]);
+		}
+		pwPerMinute.close();
+
+		PrintWriter pwHistogram = new PrintWriter(new FileWriter(settings.histogramFile));
+		pwHistogram.print("Bucket;From;To;Millis");
+		for (String variableName : histogram.getVariableNames()) {
+			pwHistogram.print(";" + variableName);
+		}
+		pwHistogram.println();
+		int buckets = histogram.getBuckets();
+		for (int i = 0; i < buckets; i++) {
+			long lower = i * histogram.getBucketSize();
+			long upper = i < buckets - 1 ? (i + 1) * histogram.getBucketSize() - 1 : histogram.getAbsoluteMaximum();
+			double millis = (upper+1) / 1000.0;
+			pwHistogram.print(String.format(Locale.US, "%d;%d;%d;%f", i, lower, upper, millis));
+			int[] bucket = histogram.getBucket(i);
+			for (int count : bucket) {
+				pwHistogram.print(";" + count);
+			}
+			pwHistogram.println();
+		}
+		pwHistogram.close();
+
+		PrintWriter pwPercentiles = new PrintWriter(new FileWriter(settings.percentilesFile));
+		pwPercentiles.println("Variable;Count;Min;P50;P90;P99;P999;Max");
+		for (Histogram.Variable variable : histogram.getVariables()) {
+			LogLinearHistogram values = variable.getValues();
+			pwPercentiles.println(String.format(Locale.US, "%s;%d;%d;%d;%d;%d;%d;%d", variable.getName(), values.getTotalCount(),
+					values.getMin(), values.getValueAtPercentile(50), values.getValueAtPercentile(90),
+					values.getValueAtPercentile(99), values.getValueAtPercentile(99.9), values.getMax()));
+		}
+		pwPercentiles.close();
+
+		Counters<String> categoryCounters = new Counters<>();
+		PrintWriter pwLongInvocationsTxt = new PrintWriter(new FileWriter(settings.longInvocationsTxtFile));
+		PrintWriter pwLongInvocationsCsv = new PrintWriter(new FileWriter(settings.longInvocationsCsvFile));
+		longInvocations.forEachSlowest(invocation -> {
+			String timestamp = df.format(new Date(invocation.timestamp));
+			String method = invocation.methodName;
+			String thread = invocation.threadName;
+			long micros = invocation.executionTime;
+			String arguments = invocation.arguments;
+			String returnValue = invocation.returnValue;
+			String categoryName = invocation.categoryName;
+			String parameters = invocation.categorizationParameters;
+			pwLongInvocationsTxt.println(String.format(Locale.US, "%s %-30s %-60s %10d %-70s %-100s %s -> %s", timestamp, "["+thread+"]", method, micros, categoryName, parameters, arguments, returnValue));
+			pwLongInvocationsCsv.println(String.format(Locale.US, "%s;%s;%s;%d;%s;%s;%s;%s", timestamp, thread, method, micros, categoryName, parameters, arguments, returnValue));
+			categoryCounters.increment(categoryName);
+		});
+		pwLongInvocationsTxt.close();
+		pwLongInvocationsCsv.close();
+
+		PrintWriter pwQueryCategoryCounts = new PrintWriter(new FileWriter(settings.slowQueryCategoryCountsFile));
+		pwQueryCategoryCounts.println("Category;Count");
+		for (Map.Entry<String, Integer> entry : categoryCounters.getCountsMap().entrySet()) {
+			pwQueryCategoryCounts.println(entry.getKey() + ";" + entry.getValue());
+		}
+		pwQueryCategoryCounts.close();
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.Dimension;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * What the invocation analysis computes and where it writes the results. Filled in by {@link ProfilingLogAnalyzer}
+ * from its configuration.
+ */
+class InvocationAnalysisSettings {
+
+	// written continuously
+	File allInvocationsFile;
+	File selectedInvocationsFile;
+	File neverExitedInvocationsFile;
+
+	// written at the end (and when refreshed in follow mode)
+	File invocationsSummaryFile;
+	File objectsPerMinuteFile;
+	File histogramFile;
+	File percentilesFile;
+	File longInvocationsTxtFile;
+	File longInvocationsCsvFile;
+	File slowQueryCategoryCountsFile;
+
+	long histogramStep;                             // in microseconds
+	long histogramUpperBoundary;                    // in microseconds
+	int histogramSignificantDigits;
+	List<Set<Dimension>> histogramGroupBys;
+
+	Predicate<String> mainMethods;
+	Predicate<String> excludedFromHistogram;
+	Predicate<String> longTimesIncluded;
+	long longTimesThreshold;                        // in microseconds
+	List<String> extracting = Collections.emptyList();
+	List<CategoryDefinition> categoryDefinitions = Collections.emptyList();
+
+	long maxOpenEntryAge;                           // in milliseconds
+	int maxOpenEntriesPerThread;
+
+	// More than one shard means parallel analysis; the records of the shards are then kept (beyond shardRecordsInMemory
+	// in temporary files) and merged at the end.
+	int shards = 1;
+	int shardRecordsInMemory;
+	boolean pipeline;
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.function.Consumer;
+
+/**
+ * Keeps long (slow) method invocations for reporting, using memory that does not grow with their number.
+ *
+ * Invocations are reported from the slowest one; invocations with the same execution time are reported in the order
+ * of their order keys (i.e. in the order they appeared in the log), regardless of the order in which they were added.
+ * So the results do not depend on whether the log was analyzed sequentially or in parallel.
+ *
+ * Thread-safe.
+ */
+interface InvocationCapture extends Closeable {
+
+	/**
+	 * An invocation with its order key, before it is rendered for the output.
+	 */
+	final class Candidate {
+
+		static final Comparator<Candidate> SLOWEST_FIRST =
+				Comparator.comparingLong((Candidate c) -> -c.invocation.getExecutionTime())
+						.thenComparingLong(c -> c.order);
+
+		@NotNull final MethodInvocation invocation;
+		final long order;
+
+		Candidate(@NotNull MethodInvocation invocation, long order) {
+			this.invocation = invocation;
+			this.order = order;
+		}
+	}
+
+	void add(@NotNull MethodInvocation invocation, long order) throws IOException;
+
+	/**
+	 * Passes the kept invocations to the consumer, from the slowest one. Can be called repeatedly, e.g. to write
+	 * intermediate results.
+	 */
+	void forEachSlowest(@NotNull Consumer<CapturedInvocation> consumer) throws IOException;
+
+	/**
+	 * Number of invocations added (not only the kept ones).
+	 */
+	long getCount();
+
+	/**
+	 * Releases the resources (e.g. temporary files).
+	 */
+	@Override
+	void close() throws IOException;
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.*;
+import com.evolveum.midpoint.collector.Collector;
+import com.evolveum.midpoint.collector.CollectorImpl;
+import com.evolveum.midpoint.collector.EventsSummary;
+import com.evolveum.midpoint.collector.Times;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import static com.evolveum.midpoint.analyzer.profiling.ProfilingItem.Kind.ENTRY;
+import static com.evolveum.midpoint.analyzer.profiling.ProfilingItem.Kind.EXIT;
+
+/**
+ * Analysis of items of a subset of threads. All state kept while processing the items (method entries waiting
+ * for exits, main method invocations being collected, ...) is per thread, so threads can be analyzed independently
+ * and the results merged.
+ */
+class InvocationShard implements ShardDispatcher.Shard {
+
+	private static final Trace LOGGER = TraceManager.getTrace(InvocationShard.class);
+
+	@NotNull private final InvocationAnalysisSettings settings;
+	@NotNull private final Supplier<Date> firstTimestampSupplier;
+	@NotNull private final SimpleDateFormat df;
+	@NotNull private final Output output;
+
+	// Decisions about methods and threads are made once per method/thread id.
+	private final SymbolPredicate mainMethods;
+	private final SymbolPredicate excludedFromHistogram;
+	private final SymbolPredicate longTimesIncluded;
+	private final SymbolPredicate coordinatorThreads;
+	private final SymbolPredicate workerThreads;
+	private final int[] extractingIds;
+
+	private final Histogram histogram;
+	private final DimensionalAggregator aggregator;
+	private final SymbolTable nodes = new SymbolTable();
+	private final long[] coordinates = new long[Dimension.values().length];
+
+	private final IntObjectMap<ProfilingItem> currentlyCollecting = new IntObjectMap<>();     // thread id -> main method entry
+	private final OpenInvocations openMethodEntries;
+	private final Collector collector;
+	private final EventsSummary invocationsSummary;         // roll-up of all main method invocations
+
+	private long order;                                     // of the item (or event) being processed
+
+	InvocationShard(@NotNull InvocationAnalysisSettings settings, SymbolTable methods, SymbolTable threads,
+			int[] extractingIds, @NotNull Supplier<Date> firstTimestampSupplier, @NotNull SimpleDateFormat df,
+			@NotNull Output output) {
+		this.settings = settings;
+		this.firstTimestampSupplier = firstTimestampSupplier;
+		this.df = df;
+		this.output = output;
+		this.mainMethods = new SymbolPredicate(methods, settings.mainMethods);
+		this.excludedFromHistogram = new SymbolPredicate(methods, settings.excludedFromHistogram);
+		this.longTimesIncluded = new SymbolPredicate(methods, settings.longTimesIncluded);
+		this.coordinatorThreads = new SymbolPredicate(threads, thread -> ThreadType.determine(thread) == ThreadType.COORDINATOR);
+		this.workerThreads = new SymbolPredicate(threads, thread -> ThreadType.determine(thread) == ThreadType.WORKER);
+		this.extractingIds = extractingIds;
+		this.histogram = new Histogram(settings.histogramStep, settings.histogramUpperBoundary, settings.histogramSignificantDigits);
+		this.aggregator = new DimensionalAggregator(histogram, settings.histogramGroupBys,
+				(dimension, value) -> formatDimensionValue(dimension, value, methods, threads));
+		this.openMethodEntries = new OpenInvocations(settings.maxOpenEntryAge, settings.maxOpenEntriesPerThread,
+				(entry, openTime, reason) -> output.neverExited(order | entry.threadId,
+						String.format(Locale.US, "%s;%s;%s;%d;%d;%s", df.format(entry.firstLogEntry.timestamp),
+								entry.getThreadName(), entry.method, entry.sequenceNumber, openTime, reason)));
+		this.collector = new CollectorImpl(methods::getName);
+		this.invocationsSummary = new EventsSummary(methods::getName);
+	}
+
+	@Override
+	public void process(@NotNull ProfilingItem item, long clock, long order) {
+		this.order = order;
+		openMethodEntries.advanceTime(clock);
+
+		// generally useful information
+		int threadId = item.threadId;
+		String threadName = item.getThreadName();
+		Date timestamp = item.firstLogEntry.timestamp;
+		int profilingBatch = item.batch;
+		Date firstTimestamp = firstTimestampSupplier.get();
+		assert firstTimestamp != null;
+
+		// are we collecting?
+		ProfilingItem enclosingItem = currentlyCollecting.get(threadId);
+		if (enclosingItem == null) {
+			if (item.kind == ENTRY && mainMethods.test(item.methodId)) {
+				enclosingItem = item;
+				currentlyCollecting.put(threadId, item);
+			} else {
+				return;
+			}
+		}
+
+		int enclosingEntry = enclosingItem.sequenceNumber;
+
+		if (item.kind == ENTRY) {
+			openMethodEntries.open(item);
+		} else if (item.kind == EXIT) {
+
+			ProfilingItem methodEntry = openMethodEntries.close(item);
+			if (methodEntry == null) {
+				LOGGER.warn("Method exit without entry: {}", item);
+			} else {
+				if (item.etime >= settings.longTimesThreshold && longTimesIncluded.test(item.methodId)) {
+					output.longInvocation(order | threadId, new MethodInvocation(methodEntry, item));
+				}
+			}
+
+			ThreadType threadType = coordinatorThreads.test(threadId) ? ThreadType.COORDINATOR :
+					workerThreads.test(threadId) ? ThreadType.WORKER : ThreadType.OTHER;
+			if (!excludedFromHistogram.test(item.methodId)) {
+				coordinates[Dimension.METHOD.ordinal()] = item.methodId;
+				coordinates[Dimension.BATCH.ordinal()] = profilingBatch;
+				coordinates[Dimension.THREAD_TYPE.ordinal()] = threadType.ordinal();
+				coordinates[Dimension.THREAD.ordinal()] = threadId;
+				coordinates[Dimension.MINUTE.ordinal()] = (timestamp.getTime() - firstTimestamp.getTime()) / 60000;
+				if (aggregator.uses(Dimension.CATEGORY)) {
+					coordinates[Dimension.CATEGORY.ordinal()] = getCategory(methodEntry, item);
+				}
+				if (aggregator.uses(Dimension.NODE)) {
+					coordinates[Dimension.NODE.ordinal()] = nodes.getId(getNodeName(item));
+				}
+				aggregator.record(coordinates, item.etime);
+			}
+
+			collector.registerEvent(threadId, item.methodId, timestamp.getTime(), item.etime);
+
+			if (item.sequenceNumber == enclosingEntry) {
+				EventsSummary summary = collector.closeTag(threadId);
+				output.allInvocations(order | threadId,
+						String.format(Locale.US, "Method calls for entry #%d [%s] at %s (progress: %d):", enclosingEntry,
+								threadName, df.format(timestamp), item.progress),
+						summary.dump());
+				currentlyCollecting.remove(threadId);
+
+				StringBuilder selected = new StringBuilder(String.format("%s;%d;%s;%d",
+						df.format(timestamp), (timestamp.getTime() - firstTimestamp.getTime()) / 1000, threadName, item.progress));
+				for (int methodId : extractingIds) {
+					Times times = summary.get(methodId);
+					long max = times != null ? times.getMaxTime() : 0;
+					selected.append(String.format(";%d", max));
+				}
+				output.selectedInvocation(order | threadId, selected.toString());
+				invocationsSummary.merge(summary);
+				collector.recycle(summary);
+			}
+		} else {
+			throw new AssertionError("kind: " + item.kind);
+		}
+	}
+
+	@Override
+	public void onNewBatch(long clock, long order) {
+		this.order = order;
+		openMethodEntries.advanceTime(clock);
+		collector.reset();
+		currentlyCollecting.clear();
+		openMethodEntries.evictAll(OpenInvocations.EvictionReason.NEW_BATCH);
+	}
+
+	@Override
+	public void checkAge(long clock, long order) {
+		this.order = order;
+		openMethodEntries.advanceTime(clock);
+		openMethodEntries.evictTooOld();
+	}
+
+	@Override
+	public void finish(long clock, long order) {
+		this.order = order;
+		openMethodEntries.advanceTime(clock);
+		openMethodEntries.evictAll(OpenInvocations.EvictionReason.END_OF_LOG);
+	}
+
+	/**
+	 * Returns the histogram with roll-ups updated.
+	 */
+	Histogram getHistogram() {
+		aggregator.updateRollUps();
+		return histogram;
+	}
+
+	EventsSummary getInvocationsSummary() {
+		return invocationsSummary;
+	}
+
+	private String formatDimensionValue(Dimension dimension, long value, SymbolTable methods, SymbolTable threads) {
+		List<CategoryDefinition> categories = settings.categoryDefinitions;
+		switch (dimension) {
+			case METHOD: return methods.getName((int) value);
+			case BATCH: return String.format("%03d", value);
+			case THREAD_TYPE: return ThreadType.values()[(int) value].toString();
+			case THREAD: return threads.getName((int) value);
+			case CATEGORY: return value < categories.size() ? categories.get((int) value).name : "unknown";
+			case MINUTE: return String.valueOf(value);
+			case NODE: return nodes.getName((int) value);
+			default: throw new AssertionError("dimension: " + dimension);
+		}
+	}
+
+	/**
+	 * Returns the index of the category of the invocation in the category definitions, or the size of the list if it is
+	 * not known. Needs the arguments, so it is expensive; computed only if the category is used in histogram group-bys.
+	 */
+	private int getCategory(ProfilingItem entry, ProfilingItem exit) {
+		List<CategoryDefinition> categories = settings.categoryDefinitions;
+		if (entry == null) {
+			return categories.size();
+		}
+		MethodInvocation invocation = new MethodInvocation(entry, exit);
+		invocation.categorize(categories, Collections.emptyList());
+		CategoryDefinition definition = invocation.getCategoryDefinition();
+		return definition != null ? categories.indexOf(definition) : categories.size();
+	}
+
+	/**
+	 * Nodes are distinguished by directories containing their log files.
+	 */
+	private static String getNodeName(ProfilingItem item) {
+		File directory = item.firstLogEntry.position.getFile().getParentFile();
+		return directory != null ? directory.getName() : "";
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import com.evolveum.midpoint.analyzer.util.SymbolPredicate;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import com.evolveum.midpoint.collector.QuantileSketch;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Latency of selected methods over time, in buckets of a given resolution (1 second to 10 minutes) counted from
+ * the first log entry; so the buckets are aligned with the minutes of {@link com.evolveum.midpoint.collector.ThroughputCollector}
+ * (the Minute column is the minute the bucket starts in). For each bucket and method it writes the count, p50 and p99
+ * into the series file, and the counts in power-of-two latency bins into the heatmap file (a row per bucket and method).
+ *
+ * Each bucket keeps a {@link QuantileSketch} and the bin counts per method; both are mergeable, so the results
+ * of finer buckets could be combined. Items are ordered by timestamps only approximately, so the current and
+ * the previous bucket are kept open; older buckets are written and their aggregates reused. So the memory depends
+ * on the number of methods active in the open buckets, not on the length of the run. (Items older than the open
+ * buckets, if any, are counted into the oldest open one.)
+ */
+public class LatencyTimelineAnalysis implements ProfilingAnalysis {
+
+	private static final Trace LOGGER = TraceManager.getTrace(LatencyTimelineAnalysis.class);
+
+	public static final long MIN_RESOLUTION = 1000L;            // in milliseconds
+	public static final long MAX_RESOLUTION = 600_000L;
+
+	private static final int OPEN_BUCKETS = 2;
+	private static final int FIRST_BIN_MAGNITUDE = 7;           // the first bin is [0, 2^7) microseconds
+	private static final int HEATMAP_BINS = 22;                 // the last one is [2^27 us, infinity), i.e. from ~134 s
+
+	@NotNull private final File seriesFile;
+	@NotNull private final File heatmapFile;
+	@NotNull private final Predicate<String> methodPredicate;
+	private final long resolution;
+
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+	private AnalysisContext context;
+	private SymbolTable methods;
+	private SymbolPredicate selectedMethods;
+	private PrintWriter pwSeries;
+	private PrintWriter pwHeatmap;
+
+	private static class MethodAggregate {
+		private int methodId;
+		private final QuantileSketch sketch = new QuantileSketch();
+		private final long[] bins = new long[HEATMAP_BINS];
+
+		private void add(long latency) {
+			sketch.add(latency);
+			int magnitude = 64 - Long.numberOfLeadingZeros(Math.max(latency, 0));      // latency < 2^magnitude
+			bins[Math.max(0, Math.min(HEATMAP_BINS - 1, magnitude - FIRST_BIN_MAGNITUDE))]++;
+		}
+
+		private void reset() {
+			sketch.reset();
+			Arrays.fill(bins, 0);
+		}
+	}
+
+	private static class Bucket {
+		private final long index;
+		private final IntObjectMap<MethodAggregate> aggregates = new IntObjectMap<>();      // method id -> aggregate
+		private final List<MethodAggregate> aggregateList = new ArrayList<>();              // in order of appearance
+
+		private Bucket(long index) {
+			this.index = index;
+		}
+	}
+
+	private final Deque<Bucket> openBuckets = new ArrayDeque<>();                // oldest first
+	private final Deque<MethodAggregate> freeAggregates = new ArrayDeque<>();
+	private long origin = -1;                                   // -1 if not known yet
+	private int lateItems;
+
+	public LatencyTimelineAnalysis(@NotNull File seriesFile, @NotNull File heatmapFile,
+			@NotNull Predicate<String> methodPredicate, long resolution) {
+		if (resolution < MIN_RESOLUTION || resolution > MAX_RESOLUTION) {
+			throw new IllegalArgumentException("Resolution must be between " + MIN_RESOLUTION + " and "
+					+ MAX_RESOLUTION + " ms: " + resolution);
+		}
+		this.seriesFile = seriesFile;
+		this.heatmapFile = heatmapFile;
+		this.methodPredicate = methodPredicate;
+		this.resolution = resolution;
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) throws IOException {
+		this.context = context;
+		methods = context.getMethodSymbols();
+		selectedMethods = new SymbolPredicate(methods, methodPredicate);
+		pwSeries = new PrintWriter(new FileWriter(seriesFile));
+		pwSeries.println("Time;Minute;Method;Count;P50Micros;P99Micros");
+		pwHeatmap = new PrintWriter(new FileWriter(heatmapFile));
+		StringBuilder header = new StringBuilder("Time;Minute;Method");
+		for (int bin = 0; bin < HEATMAP_BINS; bin++) {
+			header.append(';').append(bin > 0 ? 1L << (FIRST_BIN_MAGNITUDE + bin - 1) : 0);       // lower bound in us
+		}
+		pwHeatmap.println(header);
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		if (item.kind != ProfilingItem.Kind.EXIT || item.etime == null || !selectedMethods.test(item.methodId)) {
+			return;
+		}
+		if (origin < 0) {
+			Date firstTimestamp = context.getFirstTimestamp();
+			origin = firstTimestamp != null ? firstTimestamp.getTime() : item.firstLogEntry.timestamp.getTime();
+		}
+		long index = Math.max(0, item.firstLogEntry.timestamp.getTime() - origin) / resolution;
+		Bucket bucket = getBucket(index);
+		MethodAggregate aggregate = bucket.aggregates.get(item.methodId);
+		if (aggregate == null) {
+			aggregate = freeAggregates.isEmpty() ? new MethodAggregate() : freeAggregates.pop();
+			aggregate.methodId = item.methodId;
+			bucket.aggregates.put(item.methodId, aggregate);
+			bucket.aggregateList.add(aggregate);
+		}
+		aggregate.add(item.etime);
+	}
+
+	private Bucket getBucket(long index) {
+		Bucket newest = openBuckets.peekLast();
+		if (newest == null || index > newest.index) {
+			while (!openBuckets.isEmpty() && openBuckets.peekFirst().index <= index - OPEN_BUCKETS) {
+				flush(openBuckets.pollFirst());
+			}
+			newest = new Bucket(index);
+			openBuckets.addLast(newest);
+			return newest;
+		}
+		for (Bucket bucket : openBuckets) {
+			if (bucket.index == index) {
+				return bucket;
+			}
+		}
+		lateItems++;
+		return openBuckets.peekFirst();
+	}
+
+	private void flush(Bucket bucket) {
+		long start = origin + bucket.index * resolution;
+		String prefix = df.format(new Date(start)) + ";" + (start - origin) / 60000 + ";";
+		for (MethodAggregate aggregate : bucket.aggregateList) {
+			String method = methods.getName(aggregate.methodId);
+			QuantileSketch sketch = aggregate.sketch;
+			pwSeries.println(prefix + method + ";" + sketch.getCount() + ";" + sketch.getValueAtPercentile(50) + ";"
+					+ sketch.getValueAtPercentile(99));
+			StringBuilder row = new StringBuilder(prefix).append(method);
+			for (long count : aggregate.bins) {
+				row.append(';').append(count);
+			}
+			pwHeatmap.println(row);
+			aggregate.reset();
+			freeAggregates.push(aggregate);
+		}
+	}
+
+	/**
+	 * Buckets are written only when they are closed, so the open ones are not in the files yet.
+	 */
+	@Override
+	public void refresh() {
+		pwSeries.flush();
+		pwHeatmap.flush();
+	}
+
+	@Override
+	public void end() {
+		while (!openBuckets.isEmpty()) {
+			flush(openBuckets.pollFirst());
+		}
+		pwSeries.close();
+		pwHeatmap.close();
+		if (lateItems > 0) {
+			LOGGER.info("Latency timeline: {} items were older than the open buckets", lateItems);
+		}
+	}
+}
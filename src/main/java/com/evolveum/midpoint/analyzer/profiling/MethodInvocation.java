@@ -16,7 +16,7 @@
 
 package com.evolveum.midpoint.analyzer.profiling;
 
-import org.apache.commons.lang3.StringUtils;
+import com.evolveum.midpoint.analyzer.util.LogText;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -24,52 +24,62 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 /**
- *
+ * A method invocation, i.e. matching entry and exit profiling items. Only the data needed for reporting is kept;
+ * in particular, arguments and return value are usually not kept in memory but re-read from the log file when needed.
  */
 public class MethodInvocation {
 
-	@NotNull private final ProfilingItem entry;
-	@NotNull private final ProfilingItem exit;
+	@NotNull private final Date timestamp;
+	@NotNull private final String methodName;
+	@NotNull private final String threadName;
+	private final long executionTime;
+	private final LogText arguments;
+	private final LogText returnValue;
 	private InvocationCategorization primaryCategorization;
 	private List<Subcategorization> secondaryCategorization = new ArrayList<>();
 
 	public MethodInvocation(@NotNull ProfilingItem entry, @NotNull ProfilingItem exit) {
-		this.entry = entry;
-		this.exit = exit;
+		this.timestamp = exit.firstLogEntry.timestamp;
+		this.methodName = entry.method;
+		this.threadName = entry.getThreadName();
+		this.executionTime = exit.etime;
+		this.arguments = entry.secondLogEntryText;
+		this.returnValue = exit.secondLogEntryText;
 	}
 
+	@NotNull
 	public Date getTimestamp() {
-		return exit.firstLogEntry.timestamp;
+		return timestamp;
 	}
 
+	@NotNull
 	public String getMethodName() {
-		return entry.method;
+		return methodName;
 	}
 
+	@NotNull
 	public String getThreadName() {
-		return entry.getThreadName();
+		return threadName;
 	}
 
 	public long getExecutionTime() {
-		return exit.etime;
+		return executionTime;
 	}
 
+	/**
+	 * Returns the arguments; this may mean reading them from the log file.
+	 */
 	@NotNull
 	public String getArguments() {
-		if (entry.secondLogEntry != null) {
-			return StringUtils.removeStart(entry.secondLogEntry.message, "###### args: ");
-		} else {
-			return "";
-		}
+		return arguments != null ? arguments.getText() : "";
 	}
 
+	/**
+	 * Returns the return value; this may mean reading it from the log file.
+	 */
 	@NotNull
 	public String getReturnValue() {
-		if (exit.secondLogEntry != null) {
-			return StringUtils.removeStart(exit.secondLogEntry.message, "###### retval: ");
-		} else {
-			return "";
-		}
+		return returnValue != null ? returnValue.getText() : "";
 	}
 
 	public void categorize(List<CategoryDefinition> categoryDefinitions,
@@ -133,6 +143,14 @@ public class MethodInvocation {
 		}
 	}
 
+	/**
+	 * The definition of the primary category, or null if the invocation is not categorized (yet or at all).
+	 */
+	@Nullable
+	public CategoryDefinition getCategoryDefinition() {
+		return primaryCategorization != null ? primaryCategorization.definition : null;
+	}
+
 	@NotNull
 	public Map<String, String> getCategorizationParameters() {
 		return primaryCategorization != null ? primaryCategorization.parameters : Collections.emptyMap();
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.LongObjectMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Method entries waiting for their exits: indexed by thread and sequence number, and kept in per-thread stacks
+ * (in the order of their entry).
+ *
+ * Entries that will apparently never be exited are evicted and reported to the listener:
+ *
+ * - entries above the exited one on the same thread stack (their exits are missing),
+ * - entries older than the maximum age ({@link #evictTooOld()}),
+ * - the oldest entries of a thread if it has more than the maximum count,
+ * - all entries when a new batch starts or the log ends ({@link #evictAll(EvictionReason)}).
+ *
+ * Nothing depends on entries of other threads (except for the log time, which is set from outside),
+ * so threads can be split among more instances without changing the results.
+ */
+class OpenInvocations {
+
+	enum EvictionReason {
+		INNER_OF_EXITED, TOO_OLD, TOO_MANY, NEW_BATCH, END_OF_LOG
+	}
+
+	@FunctionalInterface
+	interface EvictionListener {
+		/**
+		 * @param openTime How long was the entry open (until the time it was evicted, in log time), in milliseconds.
+		 */
+		void onEviction(@NotNull ProfilingItem entry, long openTime, @NotNull EvictionReason reason);
+	}
+
+	private final long maxAge;                  // in milliseconds
+	private final int maxCountPerThread;
+	@NotNull private final EvictionListener listener;
+
+	private final LongObjectMap<ProfilingItem> entries = new LongObjectMap<>();    // thread id + sequence number -> entry
+	private ProfilingItem[][] stacks = new ProfilingItem[16][];                    // thread id -> entries (bottom first)
+	private int[] stackSizes = new int[16];
+
+	private long now;                           // current log time
+
+	OpenInvocations(long maxAge, int maxCountPerThread, @NotNull EvictionListener listener) {
+		this.maxAge = maxAge;
+		this.maxCountPerThread = maxCountPerThread;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the current log time; it is used to determine the age of entries. It never goes back.
+	 */
+	void advanceTime(long timestamp) {
+		now = Math.max(now, timestamp);
+	}
+
+	void open(@NotNull ProfilingItem entry) {
+		entries.put(key(entry), entry);
+		push(entry);
+		if (stackSizes[entry.threadId] > maxCountPerThread) {
+			removeBottom(entry.threadId, 1, EvictionReason.TOO_MANY);
+		}
+	}
+
+	/**
+	 * Returns the entry corresponding to the exit (removing it), or null if there is none.
+	 */
+	ProfilingItem close(@NotNull ProfilingItem exit) {
+		ProfilingItem entry = entries.remove(key(exit));
+		if (entry != null) {
+			int thread = entry.threadId;
+			ProfilingItem[] stack = stacks[thread];
+			int size = stackSizes[thread];
+			int position = size - 1;
+			while (position >= 0 && stack[position] != entry) {
+				position--;
+			}
+			if (position >= 0) {
+				for (int i = size - 1; i > position; i--) {
+					forget(stack[i]);
+					evicted(stack[i], EvictionReason.INNER_OF_EXITED);
+					stack[i] = null;
+				}
+				stack[position] = null;
+				stackSizes[thread] = position;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Evicts all entries, e.g. when a new batch starts.
+	 */
+	void evictAll(@NotNull EvictionReason reason) {
+		for (int thread = 0; thread < stacks.length; thread++) {
+			ProfilingItem[] stack = stacks[thread];
+			for (int i = 0; i < stackSizes[thread]; i++) {
+				evicted(stack[i], reason);
+				stack[i] = null;
+			}
+			stackSizes[thread] = 0;
+		}
+		entries.clear();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	private void push(ProfilingItem entry) {
+		int thread = entry.threadId;
+		if (thread >= stacks.length) {
+			int length = Math.max(thread + 1, stacks.length * 2);
+			stacks = Arrays.copyOf(stacks, length);
+			stackSizes = Arrays.copyOf(stackSizes, length);
+		}
+		ProfilingItem[] stack = stacks[thread];
+		int size = stackSizes[thread];
+		if (stack == null) {
+			stack = stacks[thread] = new ProfilingItem[16];
+		} else if (size == stack.length) {
+			stack = stacks[thread] = Arrays.copyOf(stack, size * 2);
+		}
+		stack[size] = entry;
+		stackSizes[thread] = size + 1;
+	}
+
+	/**
+	 * Evicts entries older than the maximum age. The oldest entry of each thread is at the bottom of its stack;
+	 * so we look only there.
+	 */
+	void evictTooOld() {
+		for (int thread = 0; thread < stacks.length; thread++) {
+			int tooOld = 0;
+			while (tooOld < stackSizes[thread] && isTooOld(stacks[thread][tooOld])) {
+				tooOld++;
+			}
+			removeBottom(thread, tooOld, EvictionReason.TOO_OLD);
+		}
+	}
+
+	private boolean isTooOld(ProfilingItem entry) {
+		return now - entry.firstLogEntry.timestamp.getTime() > maxAge;
+	}
+
+	private void removeBottom(int thread, int count, EvictionReason reason) {
+		if (count == 0) {
+			return;
+		}
+		ProfilingItem[] stack = stacks[thread];
+		int size = stackSizes[thread];
+		for (int i = 0; i < count; i++) {
+			forget(stack[i]);
+			evicted(stack[i], reason);
+		}
+		System.arraycopy(stack, count, stack, 0, size - count);
+		Arrays.fill(stack, size - count, size, null);
+		stackSizes[thread] = size - count;
+	}
+
+	/**
+	 * Removes the entry from the map - unless the sequence number was reused in the meanwhile (e.g. after
+	 * a restart of the node).
+	 */
+	private void forget(ProfilingItem entry) {
+		long key = key(entry);
+		if (entries.get(key) == entry) {
+			entries.remove(key);
+		}
+	}
+
+	private void evicted(ProfilingItem entry, EvictionReason reason) {
+		listener.onEviction(entry, now - entry.firstLogEntry.timestamp.getTime(), reason);
+	}
+
+	/**
+	 * Sequence numbers are not unique when logs of more nodes (or of more runs of a node) are analyzed together;
+	 * but an exit always belongs to an entry of the same thread.
+	 */
+	private static long key(ProfilingItem item) {
+		return (long) item.threadId << 32 | item.sequenceNumber & 0xFFFFFFFFL;
+	}
+}
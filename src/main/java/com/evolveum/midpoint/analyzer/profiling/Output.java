@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Receives the records produced continuously by the shards of the invocation analysis. The order key tells where
+ * the record belongs in the output (see {@link InvocationAnalysis#order(int, boolean)}).
+ */
+interface Output {
+
+	void allInvocations(long order, String header, String summary);
+	void selectedInvocation(long order, String line);
+	void neverExited(long order, String line);
+	void longInvocation(long order, MethodInvocation invocation);
+
+	static void addLongInvocation(InvocationCapture longInvocations, long order, MethodInvocation invocation) {
+		try {
+			longInvocations.add(invocation, order);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Couldn't store long invocation: " + e.getMessage(), e);
+		}
+	}
+}
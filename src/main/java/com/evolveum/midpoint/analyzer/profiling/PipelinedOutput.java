@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.PipelineStatistics;
+import com.evolveum.midpoint.analyzer.util.RingBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+/**
+ * Passes the records to another output in a separate thread, so writing them overlaps with the analysis.
+ * Must be closed to write the remaining records.
+ */
+class PipelinedOutput implements Output, Closeable {
+
+	private static final int BATCH_SIZE = 1000;         // records
+	private static final int CAPACITY = 16;             // batches
+
+	private enum Kind {
+		ALL_INVOCATIONS, SELECTED_INVOCATION, NEVER_EXITED, LONG_INVOCATION
+	}
+
+	private static class RecordBatch {
+		private final Kind[] kinds = new Kind[BATCH_SIZE];
+		private final String[] lines = new String[BATCH_SIZE];          // header for ALL_INVOCATIONS
+		private final String[] summaries = new String[BATCH_SIZE];
+		private final MethodInvocation[] invocations = new MethodInvocation[BATCH_SIZE];
+		private final long[] orders = new long[BATCH_SIZE];
+		private int size;
+
+		private void clear() {
+			Arrays.fill(lines, 0, size, null);
+			Arrays.fill(summaries, 0, size, null);
+			Arrays.fill(invocations, 0, size, null);
+			size = 0;
+		}
+	}
+
+	private final Output target;
+	private final RingBuffer<RecordBatch> buffer;
+	private final Thread writer;
+	private RecordBatch filling;
+
+	PipelinedOutput(Output target) {
+		this.target = target;
+		this.buffer = new RingBuffer<>(CAPACITY, RecordBatch::new, new PipelineStatistics("output"));
+		this.writer = new Thread(this::write, "output-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void write() {
+		try {
+			RecordBatch batch;
+			while ((batch = buffer.take()) != null) {
+				for (int i = 0; i < batch.size; i++) {
+					switch (batch.kinds[i]) {
+						case ALL_INVOCATIONS: target.allInvocations(0, batch.lines[i], batch.summaries[i]); break;
+						case SELECTED_INVOCATION: target.selectedInvocation(0, batch.lines[i]); break;
+						case NEVER_EXITED: target.neverExited(0, batch.lines[i]); break;
+						case LONG_INVOCATION: target.longInvocation(batch.orders[i], batch.invocations[i]); break;
+						default: throw new AssertionError(batch.kinds[i]);
+					}
+				}
+				buffer.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			buffer.fail(t);             // the producer learns about it when closing the output
+			buffer.cancel();
+		}
+	}
+
+	private void add(Kind kind, long order, String line, String summary, MethodInvocation invocation) {
+		try {
+			if (filling == null) {
+				filling = buffer.claim();
+				if (filling == null) {
+					throw new IllegalStateException("Writing the records failed", buffer.getFailure());
+				}
+				filling.clear();
+			}
+			int i = filling.size++;
+			filling.kinds[i] = kind;
+			filling.lines[i] = line;
+			filling.summaries[i] = summary;
+			filling.invocations[i] = invocation;
+			filling.orders[i] = order;
+			if (filling.size == BATCH_SIZE) {
+				buffer.publish(filling.size);
+				filling = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while passing records to the writer");
+		}
+	}
+
+	@Override
+	public void allInvocations(long order, String header, String summary) {
+		add(Kind.ALL_INVOCATIONS, order, header, summary, null);
+	}
+
+	@Override
+	public void selectedInvocation(long order, String line) {
+		add(Kind.SELECTED_INVOCATION, order, line, null, null);
+	}
+
+	@Override
+	public void neverExited(long order, String line) {
+		add(Kind.NEVER_EXITED, order, line, null, null);
+	}
+
+	@Override
+	public void longInvocation(long order, MethodInvocation invocation) {
+		add(Kind.LONG_INVOCATION, order, null, null, invocation);
+	}
+
+	PipelineStatistics getStatistics() {
+		return buffer.getStatistics();
+	}
+
+	/**
+	 * Passes the remaining records to the writer and waits until all are written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (filling != null) {
+			buffer.publish(filling.size);
+			filling = null;
+		}
+		buffer.close();
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the writer");
+		}
+		Throwable failure = buffer.getFailure();
+		if (failure != null) {
+			throw new IOException("Couldn't write the records: " + failure.getMessage(), failure);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.PipelineStatistics;
+import com.evolveum.midpoint.analyzer.util.RingBuffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extracts profiling items (using a {@link ProfilingEntryReader}) in a separate thread, ahead of their processing.
+ * Items are passed through a {@link RingBuffer}, together with new batch notifications, which are delivered
+ * to the listener in the consumer's thread at the same place in the item stream as if the items were read directly.
+ *
+ * The thread is started when the first item is requested. After that, the reader must not be used directly,
+ * except for its symbol tables (see {@link com.evolveum.midpoint.analyzer.util.SymbolTable}) and the data
+ * available after all items are read.
+ */
+class PipelinedProfilingItemReader implements ProfilingItemSource, Closeable {
+
+	private static final int BATCH_SIZE = 1000;         // items and new batch notifications
+	private static final int CAPACITY = 16;             // batches
+
+	private static class ItemBatch {
+		private final ProfilingItem[] items = new ProfilingItem[BATCH_SIZE];      // null for new batch notifications
+		private final int[] batchNumbers = new int[BATCH_SIZE];
+		private final LogEntry[] batchEntries = new LogEntry[BATCH_SIZE];
+		private int size;
+
+		private void clear() {
+			Arrays.fill(items, 0, size, null);
+			Arrays.fill(batchEntries, 0, size, null);
+			size = 0;
+		}
+	}
+
+	@NotNull private final ProfilingEntryReader reader;
+	@NotNull private final RingBuffer<ItemBatch> buffer;
+	private Thread producer;
+	private ItemBatch filling;                          // used by the producer
+
+	private ProfilingEntryReader.NewBatchListener newBatchListener;
+	private ItemBatch current;                          // used by the consumer
+	private int position;
+
+	PipelinedProfilingItemReader(@NotNull ProfilingEntryReader reader) {
+		this.reader = reader;
+		this.buffer = new RingBuffer<>(CAPACITY, ItemBatch::new, new PipelineStatistics("profiling items"));
+	}
+
+	@Override
+	public void setNewBatchListener(ProfilingEntryReader.NewBatchListener newBatchListener) {
+		this.newBatchListener = newBatchListener;
+	}
+
+	private void produce() {
+		try {
+			// notifications come while an item is being read; they are passed before it
+			List<Integer> batchNumbers = new ArrayList<>();
+			List<LogEntry> batchEntries = new ArrayList<>();
+			reader.setNewBatchListener((batchNumber, logEntry) -> {
+				batchNumbers.add(batchNumber);
+				batchEntries.add(logEntry);
+			});
+			ProfilingItem item;
+			do {
+				item = reader.readItem();
+				for (int i = 0; i < batchNumbers.size(); i++) {
+					if (!add(null, batchNumbers.get(i), batchEntries.get(i))) {
+						return;
+					}
+				}
+				batchNumbers.clear();
+				batchEntries.clear();
+				if (item != null && !add(item, 0, null)) {
+					return;
+				}
+			} while (item != null);
+			if (filling != null && filling.size > 0) {
+				buffer.publish(filling.size);
+			}
+			buffer.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			buffer.fail(e);
+		} catch (Throwable t) {
+			buffer.fail(t);
+		}
+	}
+
+	/**
+	 * Returns false if the consumer has cancelled the processing.
+	 */
+	private boolean add(ProfilingItem item, int batchNumber, LogEntry batchEntry) throws InterruptedException {
+		if (filling == null) {
+			filling = buffer.claim();
+			if (filling == null) {
+				return false;
+			}
+			filling.clear();
+		}
+		int i = filling.size++;
+		filling.items[i] = item;
+		filling.batchNumbers[i] = batchNumber;
+		filling.batchEntries[i] = batchEntry;
+		if (filling.size == BATCH_SIZE) {
+			buffer.publish(filling.size);
+			filling = null;
+		}
+		return true;
+	}
+
+	@Override
+	public ProfilingItem readItem() throws IOException {
+		if (producer == null) {
+			producer = new Thread(this::produce, "profiling-reader");
+			producer.setDaemon(true);
+			producer.start();
+		}
+		for (;;) {
+			while (current == null || position == current.size) {
+				if (current != null) {
+					buffer.release();
+					current = null;
+				}
+				try {
+					current = buffer.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for profiling items");
+				}
+				if (current == null) {
+					Throwable failure = buffer.getFailure();
+					if (failure instanceof IOException) {
+						throw (IOException) failure;
+					} else if (failure != null) {
+						throw new IOException("Couldn't read profiling items: " + failure.getMessage(), failure);
+					}
+					return null;
+				}
+				position = 0;
+			}
+			int i = position++;
+			ProfilingItem item = current.items[i];
+			if (item != null) {
+				return item;
+			} else if (newBatchListener != null) {
+				newBatchListener.onNewBatch(current.batchNumbers[i], current.batchEntries[i]);
+			}
+		}
+	}
+
+	@NotNull
+	public PipelineStatistics getStatistics() {
+		return buffer.getStatistics();
+	}
+
+	/**
+	 * Stops the reading thread (if it is still running) and waits for it, so the reader can be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		buffer.cancel();
+		if (producer != null) {
+			try {
+				producer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while stopping the reading thread");
+			}
+		}
+	}
+}
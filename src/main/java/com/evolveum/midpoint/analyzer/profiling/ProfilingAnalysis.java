@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.LogEntryView;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * An analysis of the profiling log, fed by {@link AnalysisRunner}. The logs are read once and all registered analyses
+ * get the same callbacks, so adding an analysis does not add a pass over the logs.
+ *
+ * Callbacks are called in this order: {@link #start(AnalysisContext)}; then {@link #onNewBatch(int, LogEntry)}
+ * and {@link #onItem(ProfilingItem)} as the batches and items come, with {@link #refresh()} between them if the results
+ * are refreshed while reading (in follow mode); then {@link #end()}. All of them are called in a single thread.
+ *
+ * {@link #onLogEntry(LogEntryView)} is called for each log entry (not only profiling ones) if {@link #needsLogEntries()}
+ * returns true. It is called in the thread that extracts the items from log entries; if the reading is pipelined,
+ * this is not the thread calling the other methods, so the state shared with them must be synchronized. All entries
+ * preceding an item are seen before the item is.
+ */
+public interface ProfilingAnalysis {
+
+	/**
+	 * Called before the logs are read.
+	 */
+	default void start(@NotNull AnalysisContext context) throws IOException {
+	}
+
+	/**
+	 * Called when a new batch of profiling items starts, before the first item of the batch.
+	 */
+	default void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+	}
+
+	default boolean needsLogEntries() {
+		return false;
+	}
+
+	/**
+	 * If true, entries come with {@link ProfilingItem#argumentsFingerprint} computed.
+	 */
+	default boolean needsArgumentsFingerprints() {
+		return false;
+	}
+
+	/**
+	 * The view is valid only during the call.
+	 */
+	default void onLogEntry(@NotNull LogEntryView entry) {
+	}
+
+	default void onItem(@NotNull ProfilingItem item) {
+	}
+
+	/**
+	 * Called periodically while reading (in follow mode) to write the results computed so far, or at least to flush
+	 * the ones written continuously. The analysis goes on afterwards.
+	 */
+	default void refresh() throws IOException {
+	}
+
+	/**
+	 * Called after all items were processed; this is the place to write the results.
+	 */
+	default void end() throws IOException {
+	}
+}
@@ -17,30 +17,33 @@
 package com.evolveum.midpoint.analyzer.profiling;
 
 import com.evolveum.midpoint.analyzer.Constants;
+import com.evolveum.midpoint.analyzer.util.Fingerprint;
 import com.evolveum.midpoint.analyzer.util.LogEntry;
 import com.evolveum.midpoint.analyzer.util.LogEntryReader;
+import com.evolveum.midpoint.analyzer.util.LogEntrySource;
+import com.evolveum.midpoint.analyzer.util.LogEntryView;
+import com.evolveum.midpoint.analyzer.util.LogTextCache;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
 import com.evolveum.midpoint.collector.ThroughputCollector;
 import com.evolveum.midpoint.util.logging.Trace;
 import com.evolveum.midpoint.util.logging.TraceManager;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  *
  */
-public class ProfilingEntryReader {
+public class ProfilingEntryReader implements ProfilingItemSource {
 
 	private static final Trace LOGGER = TraceManager.getTrace(ProfilingEntryReader.class);
 
-	@NotNull private final LogEntryReader entryReader;
+	@NotNull private final LogEntrySource entryReader;
 	private ThroughputCollector throughputCollector = new ThroughputCollector();
 
 	private Date firstTimestamp;
@@ -50,16 +53,19 @@ public class ProfilingEntryReader {
 
 	private static final long GAP = 60000L;                                   // 1 minute
 
-	// entry.message is like: #### Entry: 83329    ...model.impl.sync.SynchronizationServiceImpl->notifyChange
-	// or ##### Exit: 1     ...task.quartzimpl.TaskManagerQuartzImpl->createTaskInstance etime: 1.314 ms
+	private final ProfilingMessageClassifier classifier = new ProfilingMessageClassifier();
 
-	private static final Pattern ENTRY_PATTERN = Pattern.compile("#### Entry: (?<seq>\\d+)\\s+\\.\\.\\.(?<method>\\S+)");
-	private static final Pattern EXIT_PATTERN = Pattern.compile("##### Exit: (?<seq>\\d+)\\s+\\.\\.\\.(?<method>\\S+) etime: (?<etime>\\S+) ms");
-	private static final String ENTRY_MARKER = "#### Entry: ";
-	private static final String EXIT_MARKER = "##### Exit: ";
+	private final SymbolTable methodSymbols = new SymbolTable();
+	private final SymbolTable threadSymbols = new SymbolTable();
+
+	// If set, args and retval texts are not kept in memory but re-read from log files when needed.
+	@Nullable private LogTextCache textCache;
+
+	// If set, fingerprints of args texts are computed while the texts are in the buffer (see Fingerprint).
+	private boolean argumentsFingerprints;
 
 	@SuppressWarnings("WeakerAccess")
-	public ProfilingEntryReader(@NotNull LogEntryReader entryReader) {
+	public ProfilingEntryReader(@NotNull LogEntrySource entryReader) {
 		this.entryReader = entryReader;
 	}
 
@@ -78,33 +84,53 @@ public class ProfilingEntryReader {
 
 	private NewBatchListener newBatchListener;
 
+	/**
+	 * Gets all log entries read (not only profiling ones), in the thread calling {@link #readItem()}.
+	 */
+	@FunctionalInterface
+	public interface LogEntryListener {
+		void onLogEntry(LogEntryView entry);
+	}
+
+	private LogEntryListener logEntryListener;
+
 	private final Map<String, ProfilingItem> openItems = new HashMap<>();
 
+	@Override
 	public ProfilingItem readItem() throws IOException {
 
-		LogEntry entry;
-		while ((entry = entryReader.readEntry()) != null) {
+		LogEntryView entryView;
+		while ((entryView = entryReader.readEntryView()) != null) {
 
-			//System.out.println("Entry: " + entry);
+			//System.out.println("Entry: " + entryView);
 
 			if (firstTimestamp == null) {
-				firstTimestamp = entry.timestamp;
+				firstTimestamp = new Date(entryView.getTimestamp());
+			}
+			if (logEntryListener != null) {
+				logEntryListener.onLogEntry(entryView);
 			}
-			Matcher progressMatcher = Constants.PROGRESS_PATTERN.matcher(entry.message);
-			if (progressMatcher.matches()) {
-				lastProgress = Integer.parseInt(progressMatcher.group("total"));
-				long fromStart = entry.timestamp.getTime() - firstTimestamp.getTime();
+			CharSequence messageView = entryView.getMessageView();
+			ProfilingMessageClassifier.MessageKind messageKind = classifier.classify(messageView);
+			if (classifier.getProgress() >= 0) {
+				lastProgress = classifier.getProgress();
+				long fromStart = entryView.getTimestamp() - firstTimestamp.getTime();
 				throughputCollector.registerProgress(fromStart);
 			}
 
-			if (!Constants.PROFILING.equals(entry.logger)) {
+			if (!Constants.PROFILING.equals(entryView.getLogger())) {
 				continue;
 			}
 
-			ProfilingItem existingOpenItem = openItems.get(entry.threadName);
+			ProfilingItem existingOpenItem = openItems.get(entryView.getThreadName());
 
-			ProfilingItem.Kind kind = getKind(entry.message);
+			ProfilingItem.Kind kind = getKind(messageKind);
+			if (kind == null && existingOpenItem == null) {
+				LOGGER.info("Unexpected profiling continuation line: {}, ignoring", entryView);
+				continue;
+			}
 			if (kind != null) {
+				LogEntry entry = entryView.copy();          // only entries that become parts of profiling items are kept
 				boolean newBatch;
 				if (lastProfilingTimestamp == null || entry.timestamp.getTime() - lastProfilingTimestamp.getTime() >= GAP) {
 					profilingBatch++;
@@ -122,27 +148,15 @@ public class ProfilingEntryReader {
 				}
 				lastProfilingTimestamp = entry.timestamp;
 
-				Pattern pattern;
-				switch (kind) {
-					case ENTRY: pattern = ENTRY_PATTERN; break;
-					case EXIT: pattern = EXIT_PATTERN; break;
-					default: throw new AssertionError();
-				}
-				Matcher matcher = pattern.matcher(entry.message);
-				if (!matcher.matches()) {
+				if (!classifier.isWellFormed()) {
 					LOGGER.warn("Profiling entry/exit message does not match the corresponding pattern: '{}' in {}", entry.message, entry);
 				} else {
-					int seq = Integer.parseInt(matcher.group("seq"));
-					String method = matcher.group("method");
-					Long etime;
-					if (kind == ProfilingItem.Kind.EXIT) {
-						String etimeString = matcher.group("etime");
-						BigDecimal time = new BigDecimal(etimeString);
-						etime = time.multiply(new BigDecimal(1000)).longValue();
-					} else {
-						etime = null;
-					}
-					ProfilingItem currentItem = new ProfilingItem(kind, seq, method, etime, entry, lastProgress, profilingBatch, newBatch);
+					int seq = classifier.getSequenceNumber();
+					int methodId = methodSymbols.getId(entry.message, classifier.getMethodStart(), classifier.getMethodEnd());
+					int threadId = threadSymbols.getId(entry.threadName);
+					Long etime = kind == ProfilingItem.Kind.EXIT ? classifier.getEtime() : null;
+					ProfilingItem currentItem = new ProfilingItem(kind, seq, methodId, methodSymbols.getName(methodId), threadId,
+							etime, entry, lastProgress, profilingBatch, newBatch);
 					if (existingOpenItem != null) {
 						LOGGER.info("Unexpected open item {} (got {})", existingOpenItem, entry);
 						openItems.put(entry.threadName, currentItem);
@@ -152,38 +166,85 @@ public class ProfilingEntryReader {
 				}
 			} else {
 				// a continuation
-				if (existingOpenItem != null) {
-					existingOpenItem.secondLogEntry = entry;
-					openItems.remove(entry.threadName);
-					return existingOpenItem;
-				} else {
-					LOGGER.info("Unexpected profiling continuation line: {}, ignoring", entry);
+				int payloadStart = getPayloadStart(existingOpenItem, messageKind);
+				existingOpenItem.secondLogEntryText = entryView.getMessageText(payloadStart, textCache);
+				if (argumentsFingerprints && messageKind == ProfilingMessageClassifier.MessageKind.ARGS
+						&& existingOpenItem.kind == ProfilingItem.Kind.ENTRY) {
+					CharSequence message = entryView.getMessageView();
+					existingOpenItem.argumentsFingerprint = Fingerprint.of(message, payloadStart, message.length());
 				}
+				openItems.remove(existingOpenItem.getThreadName());
+				return existingOpenItem;
 			}
 		}
 
 		return null;
 	}
 
-	private ProfilingItem.Kind getKind(String message) {
-		if (message.contains(ENTRY_MARKER)) {
-			return ProfilingItem.Kind.ENTRY;
-		} else if (message.contains(EXIT_MARKER)) {
-			return ProfilingItem.Kind.EXIT;
+	private ProfilingItem.Kind getKind(ProfilingMessageClassifier.MessageKind messageKind) {
+		switch (messageKind) {
+			case ENTRY: return ProfilingItem.Kind.ENTRY;
+			case EXIT: return ProfilingItem.Kind.EXIT;
+			default: return null;           // args, retval or anything else is a continuation
+		}
+	}
+
+	/**
+	 * Start of the text to be kept: the args marker is skipped for entries and the retval marker for exits.
+	 */
+	private int getPayloadStart(ProfilingItem item, ProfilingMessageClassifier.MessageKind messageKind) {
+		if (item.kind == ProfilingItem.Kind.ENTRY && messageKind == ProfilingMessageClassifier.MessageKind.ARGS ||
+				item.kind == ProfilingItem.Kind.EXIT && messageKind == ProfilingMessageClassifier.MessageKind.RETVAL) {
+			return classifier.getPayloadStart();
 		} else {
-			return null;
+			return 0;
 		}
 	}
 
+	/**
+	 * Ids of methods in profiling items.
+	 */
+	public SymbolTable getMethodSymbols() {
+		return methodSymbols;
+	}
+
+	/**
+	 * Ids of threads in profiling items.
+	 */
+	public SymbolTable getThreadSymbols() {
+		return threadSymbols;
+	}
+
+	@Nullable
+	public LogTextCache getTextCache() {
+		return textCache;
+	}
+
+	public void setTextCache(@Nullable LogTextCache textCache) {
+		this.textCache = textCache;
+	}
+
+	/**
+	 * If set, {@link ProfilingItem#argumentsFingerprint} is computed for entries.
+	 */
+	public void setArgumentsFingerprints(boolean argumentsFingerprints) {
+		this.argumentsFingerprints = argumentsFingerprints;
+	}
+
 	@SuppressWarnings("unused")
 	public NewBatchListener getNewBatchListener() {
 		return newBatchListener;
 	}
 
+	@Override
 	public void setNewBatchListener(NewBatchListener newBatchListener) {
 		this.newBatchListener = newBatchListener;
 	}
 
+	public void setLogEntryListener(LogEntryListener logEntryListener) {
+		this.logEntryListener = logEntryListener;
+	}
+
 	public ThroughputCollector getThroughputCollector() {
 		return throughputCollector;
 	}
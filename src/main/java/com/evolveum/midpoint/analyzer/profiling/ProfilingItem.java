@@ -17,6 +17,7 @@
 package com.evolveum.midpoint.analyzer.profiling;
 
 import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.LogText;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -30,20 +31,25 @@ public class ProfilingItem {
 
 	@NotNull public final Kind kind;
 	public final int sequenceNumber;
-	public final String method;
+	public final int methodId;                      // see ProfilingEntryReader.getMethodSymbols()
+	public final String method;                     // the name from the symbol table (not a copy)
+	public final int threadId;                      // see ProfilingEntryReader.getThreadSymbols()
 	public final Long etime;
 	@NotNull public final LogEntry firstLogEntry;
-	public LogEntry secondLogEntry;
+	public LogText secondLogEntryText;              // arguments (for entry) or return value (for exit), without the marker
+	public long argumentsFingerprint;               // of the arguments (for entry) if requested, see ProfilingEntryReader
 	@NotNull public final int progress;
 	public final int batch;
 	public final boolean newBatch;
 
-	public ProfilingItem(@NotNull Kind kind, int sequenceNumber, String method, Long etime,
+	public ProfilingItem(@NotNull Kind kind, int sequenceNumber, int methodId, String method, int threadId, Long etime,
 			@NotNull LogEntry firstLogEntry,
 			int progress, int batch, boolean newBatch) {
 		this.kind = kind;
 		this.sequenceNumber = sequenceNumber;
+		this.methodId = methodId;
 		this.method = method;
+		this.threadId = threadId;
 		this.etime = etime;
 		this.firstLogEntry = firstLogEntry;
 		this.progress = progress;
@@ -58,6 +64,6 @@ public class ProfilingItem {
 	@Override
 	public String toString() {
 		return kind + " #" + sequenceNumber + " (" + method + ":" + etime + ") p:" + progress + ", b:" + batch +
-				(newBatch ? " (new)" : " ") + firstLogEntry + " / " + secondLogEntry;
+				(newBatch ? " (new)" : " ") + firstLogEntry + " / " + secondLogEntryText;
 	}
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import java.io.IOException;
+
+/**
+ * A stream of profiling items.
+ */
+interface ProfilingItemSource {
+
+	/**
+	 * Returns the next item or null if there are no more items.
+	 */
+	ProfilingItem readItem() throws IOException;
+
+	/**
+	 * The listener is called (in the thread reading the items) when a new batch is detected, before the next item
+	 * is returned.
+	 */
+	void setNewBatchListener(ProfilingEntryReader.NewBatchListener newBatchListener);
+}
@@ -16,24 +16,19 @@
 
 package com.evolveum.midpoint.analyzer.profiling;
 
-import com.evolveum.midpoint.analyzer.util.Counters;
-import com.evolveum.midpoint.analyzer.util.Histogram;
-import com.evolveum.midpoint.collector.*;
+import com.evolveum.midpoint.analyzer.util.*;
 import com.evolveum.midpoint.util.logging.Trace;
 import com.evolveum.midpoint.util.logging.TraceManager;
-import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import static com.evolveum.midpoint.analyzer.Constants.LOG_FILE_TIMESTAMP_FORMAT;
-import static com.evolveum.midpoint.analyzer.profiling.ProfilingItem.Kind.ENTRY;
-import static com.evolveum.midpoint.analyzer.profiling.ProfilingItem.Kind.EXIT;
 
 /**
  *
@@ -49,25 +44,138 @@ public class ProfilingLogAnalyzer {
 	private static final String BATCH_DESC = BATCH_FROM != null && BATCH_TO != null ? "-"+BATCH_FROM+"-"+BATCH_TO :
 			(BATCH_FROM != null ? "-"+BATCH_FROM+"-end" : (BATCH_TO != null ? "-begin-" + BATCH_TO : ""));
 
+	// Time interval to be analyzed (in LOG_FILE_TIMESTAMP_FORMAT). Files outside of it are not read at all, and reading
+	// of the first file starts directly at TIME_FROM; so batches are numbered from the beginning of the interval.
+	// This is much cheaper than selecting batches by BATCH_FROM, as those require reading everything before them.
+	private static final String TIME_FROM = null;
+	private static final String TIME_TO = null;
+
 
 	private static final File DIRECTORY = new File("d:\\midpoint\\tmp\\uwo-slowing-recon\\" + RUN + "\\logs\\");
 	private static final File ALL_INVOCATIONS_FILE = new File(DIRECTORY, "../invocations-all" + BATCH_DESC + ".txt");
 	private static final File SELECTED_INVOCATIONS_FILE = new File(DIRECTORY, "../invocations-selected" + BATCH_DESC + ".csv");
+	private static final File NEVER_EXITED_INVOCATIONS_FILE = new File(DIRECTORY, "../invocations-never-exited" + BATCH_DESC + ".csv");
+	private static final File INVOCATIONS_SUMMARY_FILE = new File(DIRECTORY, "../invocations-summary" + BATCH_DESC + ".txt");
 	private static final File OBJECTS_PER_MINUTE_FILE = new File(DIRECTORY, "../per-minute" + BATCH_DESC + ".csv");
 	private static final String LONG_INVOCATIONS_TXT_FILE_NAME_FORMAT = "../invocations-long-%d" + BATCH_DESC + ".txt";
 	private static final String LONG_INVOCATIONS_CSV_FILE_NAME_FORMAT = "../invocations-long-%d" + BATCH_DESC + ".csv";
 	private static final String PERFORMANCE_HISTOGRAM_FILE_NAME_FORMAT = "../methods-performance-histogram-%d%s%s" + BATCH_DESC + ".csv";
+	private static final String PERFORMANCE_PERCENTILES_FILE_NAME_FORMAT = "../methods-performance-percentiles%s%s" + BATCH_DESC + ".csv";
+	private static final File CALL_TREE_COLLAPSED_FILE = new File(DIRECTORY, "../call-tree-collapsed" + BATCH_DESC + ".txt");
+	private static final File CALL_TREE_METHODS_FILE = new File(DIRECTORY, "../call-tree-methods" + BATCH_DESC + ".csv");
+	private static final File TAIL_ATTRIBUTION_FILE = new File(DIRECTORY, "../tail-attribution" + BATCH_DESC + ".csv");
+	private static final File CONCURRENCY_TIMELINE_FILE = new File(DIRECTORY, "../concurrency-timeline" + BATCH_DESC + ".csv");
+	private static final File CHANGE_POINTS_FILE = new File(DIRECTORY, "../change-points" + BATCH_DESC + ".csv");
+	private static final File LATENCY_TIMELINE_FILE = new File(DIRECTORY, "../latency-timeline" + BATCH_DESC + ".csv");
+	private static final File LATENCY_HEATMAP_FILE = new File(DIRECTORY, "../latency-heatmap" + BATCH_DESC + ".csv");
+	private static final File REDUNDANT_CALLS_FILE = new File(DIRECTORY, "../redundant-calls" + BATCH_DESC + ".csv");
+	private static final File REDUNDANT_CALLS_SUMMARY_FILE = new File(DIRECTORY, "../redundant-calls-summary" + BATCH_DESC + ".csv");
+	private static final File THROUGHPUT_FILE = new File(DIRECTORY, "../throughput" + BATCH_DESC + ".csv");
 	private static final String SLOW_QUERY_CATEGORY_COUNTS_FILE_NAME_FORMAT = "../slow-query-category-counts-%d" + BATCH_DESC + ".csv";
 
 	private static final long HISTOGRAM_STEP = 10_000L;                         // in microseconds
 	private static final long HISTOGRAM_UPPER_BOUNDARY = 1_000_000L;            // in microseconds
+	private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 2;                  // precision of percentiles (1 %)
 	private static final long LONG_TIMES_THRESHOLD = 20_000L;                   // in microseconds
+	// Which long invocations are reported: all of them (sorted on disk if there are more than LONG_INVOCATIONS_IN_MEMORY),
+	// or only the slowest LONG_INVOCATIONS_TOP_K ones per method or per category (slow query category counts then cover
+	// only these). Memory use is bounded in all cases.
+	private static final LongInvocationsMode LONG_INVOCATIONS_MODE = LongInvocationsMode.ALL;
+	private static final int LONG_INVOCATIONS_IN_MEMORY = 50_000;
+	private static final int LONG_INVOCATIONS_TOP_K = 100;
+
+	// Log entries with messages matching this regex (e.g. the ones marking processed objects) are counted per minute
+	// into THROUGHPUT_FILE, in the same pass over the logs; null means no counting.
+	private static final String THROUGHPUT_MESSAGE = null;
+
+	// Call trees with self times (see CallTreeAnalysis), written to CALL_TREE_COLLAPSED_FILE (for flame graphs)
+	// and CALL_TREE_METHODS_FILE.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean CALL_TREE = false;
+	private static final int CALL_TREE_MAX_DEPTH = 64;
+
+	// What the slow invocations of main methods spend their extra time on (see TailAttributionAnalysis); invocations
+	// are divided into bands by these percentiles of their execution times.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean TAIL_ATTRIBUTION = false;
+	private static final double[] TAIL_ATTRIBUTION_BANDS = { 50, 90, 99 };
+
+	// Number of threads executing these methods, per second, along with their latency (see ConcurrencyTimelineAnalysis).
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean CONCURRENCY_TIMELINE = false;
+	private static final List<Pattern> CONCURRENCY_TIMELINE_INCLUDE = Arrays.asList(
+			Pattern.compile(".*SqlRepositoryServiceImpl->.*"));
+
+	// Detection of slowdowns (see ChangePointAnalysis): the throughput and this percentile of method execution times
+	// are followed per this number of processed objects (methods with fewer exits carry them over to the next segment).
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean CHANGE_POINTS = false;
+	private static final int CHANGE_POINTS_PROGRESS_STEP = 100;
+	private static final double CHANGE_POINTS_PERCENTILE = 90;
+	private static final int CHANGE_POINTS_MIN_SAMPLES = 20;
+
+	// Latency of these methods over time (see LatencyTimelineAnalysis), in buckets of this length (1 s to 10 min),
+	// aligned with OBJECTS_PER_MINUTE_FILE.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean LATENCY_TIMELINE = false;
+	private static final List<Pattern> LATENCY_TIMELINE_INCLUDE = Arrays.asList(
+			Pattern.compile(".*"));
+	private static final long LATENCY_TIMELINE_RESOLUTION = 60_000L;           // in milliseconds
+
+	// Calls of these methods repeated with the same arguments within a main method invocation (see RedundantCallAnalysis);
+	// the signatures with the most time wasted are reported. Arguments of all entries have to be fingerprinted for it.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean REDUNDANT_CALLS = false;
+	private static final List<Pattern> REDUNDANT_CALLS_INCLUDE = Arrays.asList(
+			Pattern.compile(".*(RepositoryCache|SqlRepositoryServiceImpl)->(get|search|count|list).*"));
+	private static final int REDUNDANT_CALLS_TOP = 100;
+
+	// Method entries without exits (e.g. because the thread was killed or the log is truncated) are evicted
+	// after this time or when a thread has too many of them; they are reported in NEVER_EXITED_INVOCATIONS_FILE.
+	private static final long MAX_OPEN_ENTRY_AGE = 3_600_000L;                  // in milliseconds
+	private static final int MAX_OPEN_ENTRIES_PER_THREAD = 10_000;
+
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean MEMORY_MAPPED_READER = true;
+	// Log files are parsed by more threads and merged by timestamps (see MergingLogEntryReader). Each file is parsed
+	// by a single thread, so this helps only if there are more files (e.g. rotated ones, or logs of more nodes).
+	// Not in follow mode.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean PARALLEL_READING = false;
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean USE_CATALOG = true;
+	// Members of tar.gz archives that are not read in the order they are stored in are extracted into temporary files
+	// (instead of decompressing the archive again for each of them).
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean SPILL_ARCHIVE_MEMBERS = false;
+	// Items are analyzed by more threads (each taking care of a subset of midPoint threads), with the same results.
+	// Not in follow mode.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean PARALLEL_ANALYSIS = false;
+	private static final int SHARD_RECORDS_IN_MEMORY = 10_000;                 // per shard and output file; the rest is spilled
+	// Reading lines, parsing entries, extracting profiling items, analyzing them and writing the records run
+	// in separate threads, connected by bounded buffers. Not in follow mode.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean PIPELINE = false;
 
+	// Follow mode: the active log file is tailed (until the analyzer is stopped, e.g. by Ctrl+C, or is idle for too long)
+	// and the results are rewritten periodically. When stopped, the final results are written as usual.
+	@SuppressWarnings("FieldCanBeLocal")
+	private static boolean FOLLOW = false;
+	private static final long FOLLOW_POLL_INTERVAL = 1000L;                    // in milliseconds
+	private static final long FOLLOW_REFRESH_INTERVAL = 30_000L;               // in milliseconds
+	private static final long FOLLOW_IDLE_TIMEOUT = 0L;                        // in milliseconds; 0 = follow until stopped
+	private static final long FOLLOW_STOP_TIMEOUT = 60_000L;                   // how long to wait for the final results when stopped
 	@SuppressWarnings("FieldCanBeLocal")
 	private static boolean HISTOGRAM_PER_BATCH = false;
 	@SuppressWarnings("FieldCanBeLocal")
 	private static boolean HISTOGRAM_PER_THREAD_TYPE = true;
 
+	// Breakdowns of execution times kept in the histogram. Besides the ones implied by the above flags, any sets of
+	// dimensions can be added here, e.g. EnumSet.of(Dimension.METHOD, Dimension.MINUTE). Coarser sets are computed
+	// from the finer ones, so adding e.g. (method) to (method, thread) costs nothing while processing the log.
+	private static final List<Set<Dimension>> HISTOGRAM_GROUP_BYS = getHistogramGroupBys();
+
 	private static final List<String> MAIN_METHODS = Arrays.asList(
 			"model.impl.sync.SynchronizationServiceImpl->notifyChange",
 			"repo.sql.SqlRepositoryServiceImpl->searchObjects");
@@ -123,186 +231,206 @@ public class ProfilingLogAnalyzer {
 			new SubcategoryDefinition("after-oid-X", "paging", "PAGING: M: ##{}##,, after OID: ##{:(?!null.*).*}##")
 	);
 
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws IOException, ParseException {
 
 		SimpleDateFormat df = new SimpleDateFormat(LOG_FILE_TIMESTAMP_FORMAT, Locale.US);
-
-		Histogram histogram = new Histogram(HISTOGRAM_STEP, HISTOGRAM_UPPER_BOUNDARY);
-
-		Collector collector = new CollectorImpl();
-		Map<String, Integer> currentlyCollecting = new HashMap<>();
-		Map<Integer, ProfilingItem> openMethodEntries = new HashMap<>();
-
-		List<MethodInvocation> longInvocations = new ArrayList<>();
-
-		PrintWriter pwAllInvocations = new PrintWriter(new FileWriter(ALL_INVOCATIONS_FILE));
-
-		PrintWriter pwSelectedInvocations = new PrintWriter(new FileWriter(SELECTED_INVOCATIONS_FILE));
-		pwSelectedInvocations.print("Timestamp;Second;Thread;Progress");
-		for (String methodName : EXTRACTING) {
-			pwSelectedInvocations.print(";"+StringUtils.substringAfter(methodName, "->"));
+		//noinspection ConstantConditions
+		Long timeFrom = TIME_FROM != null ? df.parse(TIME_FROM).getTime() : null;
+		//noinspection ConstantConditions
+		Long timeTo = TIME_TO != null ? df.parse(TIME_TO).getTime() : null;
+
+		boolean pipeline = PIPELINE && !FOLLOW;
+
+		LogFileCatalog catalog = USE_CATALOG ? LogFileCatalog.forDirectory(DIRECTORY) : null;
+		LogLineReader lineReader = MEMORY_MAPPED_READER ? new MappedLogLineReader(DIRECTORY, catalog) : new LogLineReader(DIRECTORY, catalog);
+		lineReader.restrictToInterval(timeFrom, timeTo);
+		if (timeFrom != null) {
+			lineReader.seek(timeFrom);
+		}
+		if (pipeline) {
+			lineReader.enablePipelining();
+		}
+		if (SPILL_ARCHIVE_MEMBERS) {
+			lineReader.enableArchiveSpilling();
+		}
+		MergingLogEntryReader mergingReader = PARALLEL_READING && !FOLLOW ?
+				new MergingLogEntryReader(lineReader, Runtime.getRuntime().availableProcessors()) : null;
+		LogEntrySource entrySource = mergingReader != null ? mergingReader : new LogEntryReader(lineReader);
+		PipelinedLogEntrySource pipelinedEntrySource = pipeline ? new PipelinedLogEntrySource(entrySource) : null;
+		ProfilingEntryReader profilingEntryReader = new ProfilingEntryReader(pipeline ? pipelinedEntrySource : entrySource);
+		// The pipelined reader takes the items from the profiling entry reader in its own thread; so, while reading,
+		// the latter can be asked only for its symbols.
+		PipelinedProfilingItemReader pipelinedItemReader = pipeline ? new PipelinedProfilingItemReader(profilingEntryReader) : null;
+		// Arguments and return values of long invocations are re-read from the log files when the results are written.
+		// Not in follow mode, as the active log file can be rotated in the meanwhile.
+		LogTextCache textCache = FOLLOW ? null : new LogTextCache();
+		profilingEntryReader.setTextCache(textCache);
+
+		// All analyses get the items from a single pass over the logs.
+		AnalysisRunner runner = new AnalysisRunner(profilingEntryReader, pipeline ? pipelinedItemReader : profilingEntryReader);
+		runner.setItemFilter(item -> isSelected(item, timeFrom, timeTo));
+		InvocationAnalysis invocationAnalysis = new InvocationAnalysis(createInvocationAnalysisSettings(pipeline),
+				createLongInvocationsCapture(), df);
+		runner.addAnalysis(invocationAnalysis);
+		getAdditionalAnalyses().forEach(runner::addAnalysis);
+		if (FOLLOW) {
+			runner.setRefreshInterval(FOLLOW_REFRESH_INTERVAL);
+			lineReader.follow(FOLLOW_POLL_INTERVAL, FOLLOW_IDLE_TIMEOUT, runner::refresh);
+			Thread mainThread = Thread.currentThread();
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				lineReader.stopFollowing();
+				try {
+					mainThread.join(FOLLOW_STOP_TIMEOUT);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "follow-stop"));
 		}
-		pwSelectedInvocations.println();
-
-		ProfilingEntryReader profilingEntryReader = new ProfilingEntryReader(DIRECTORY);
-		profilingEntryReader.setNewBatchListener(((batchNumber, logEntry) -> {
-			collector.reset();
-			currentlyCollecting.clear();
-			openMethodEntries.clear();
-		}));
 
+		runner.run();
 
-		ProfilingItem item;
-		while ((item = profilingEntryReader.readItem()) != null) {
+		if (pipeline) {
+			pipelinedItemReader.close();
+			pipelinedEntrySource.close();
+		}
+		if (mergingReader != null) {
+			mergingReader.close();
+		}
+		if (textCache != null) {
+			textCache.close();
+		}
 
-			//noinspection ConstantConditions
-			if (BATCH_FROM != null && item.batch < BATCH_FROM) {
-				continue;
-			} else //noinspection ConstantConditions
-				if (BATCH_TO != null && item.batch > BATCH_TO) {
-				continue;
-			}
+		int totalLines = profilingEntryReader.getTotalLines();
+		int logEntries = profilingEntryReader.getLogEntries();
+		LOGGER.info("Total lines: {}, log entry lines: {}, continuation lines: {}", totalLines, logEntries, totalLines-logEntries);
+		LOGGER.info("Histogram written to: {}", getHistogramFile());
+		LOGGER.info("Long invocations: {}", invocationAnalysis.getLongInvocations().getCount());
+		if (pipeline) {
+			List<PipelineStatistics> statistics = new ArrayList<>();
+			statistics.add(lineReader.getPipelineStatistics());
+			statistics.add(pipelinedEntrySource.getStatistics());
+			statistics.add(pipelinedItemReader.getStatistics());
+			statistics.addAll(invocationAnalysis.getPipelineStatistics());
+			statistics.forEach(s -> LOGGER.info("Pipeline stage {}", s));
+		}
+	}
 
-			// generally useful information
-			String threadName = item.getThreadName();
-			Date timestamp = item.firstLogEntry.timestamp;
-			int profilingBatch = item.batch;
-			Date firstTimestamp = profilingEntryReader.getFirstTimestamp();
-			assert firstTimestamp != null;
-
-			// are we collecting?
-			if (!currentlyCollecting.containsKey(threadName)) {
-				if (item.kind == ENTRY && isMainMethod(item.method)) {
-					currentlyCollecting.put(threadName, item.sequenceNumber);
-				} else {
-					continue;
-				}
-			}
+	private static InvocationAnalysisSettings createInvocationAnalysisSettings(boolean pipeline) {
+		InvocationAnalysisSettings settings = new InvocationAnalysisSettings();
+		settings.allInvocationsFile = ALL_INVOCATIONS_FILE;
+		settings.selectedInvocationsFile = SELECTED_INVOCATIONS_FILE;
+		settings.neverExitedInvocationsFile = NEVER_EXITED_INVOCATIONS_FILE;
+		settings.invocationsSummaryFile = INVOCATIONS_SUMMARY_FILE;
+		settings.objectsPerMinuteFile = OBJECTS_PER_MINUTE_FILE;
+		settings.histogramFile = getHistogramFile();
+		settings.percentilesFile = getPercentilesFile();
+		long thresholdMillis = LONG_TIMES_THRESHOLD / 1000;
+		settings.longInvocationsTxtFile = new File(DIRECTORY, String.format(LONG_INVOCATIONS_TXT_FILE_NAME_FORMAT, thresholdMillis));
+		settings.longInvocationsCsvFile = new File(DIRECTORY, String.format(LONG_INVOCATIONS_CSV_FILE_NAME_FORMAT, thresholdMillis));
+		settings.slowQueryCategoryCountsFile = new File(DIRECTORY, String.format(SLOW_QUERY_CATEGORY_COUNTS_FILE_NAME_FORMAT, thresholdMillis));
+		settings.histogramStep = HISTOGRAM_STEP;
+		settings.histogramUpperBoundary = HISTOGRAM_UPPER_BOUNDARY;
+		settings.histogramSignificantDigits = HISTOGRAM_SIGNIFICANT_DIGITS;
+		settings.histogramGroupBys = HISTOGRAM_GROUP_BYS;
+		settings.mainMethods = ProfilingLogAnalyzer::isMainMethod;
+		settings.excludedFromHistogram = method -> matches(method, EXCLUDE_FROM_HISTOGRAM);
+		settings.longTimesIncluded = method -> matches(method, LONG_TIMES_INCLUDE) && !matches(method, LONG_TIMES_EXCLUDE);
+		settings.longTimesThreshold = LONG_TIMES_THRESHOLD;
+		settings.extracting = EXTRACTING;
+		settings.categoryDefinitions = CATEGORY_DEFINITIONS;
+		settings.maxOpenEntryAge = MAX_OPEN_ENTRY_AGE;
+		settings.maxOpenEntriesPerThread = MAX_OPEN_ENTRIES_PER_THREAD;
+		settings.shards = PARALLEL_ANALYSIS && !FOLLOW ? Runtime.getRuntime().availableProcessors() : 1;
+		settings.shardRecordsInMemory = SHARD_RECORDS_IN_MEMORY;
+		settings.pipeline = pipeline;
+		return settings;
+	}
 
-			assert currentlyCollecting.containsKey(threadName);
-			int enclosingEntry = currentlyCollecting.get(threadName);
-
-			if (item.kind == ENTRY) {
-				openMethodEntries.put(item.sequenceNumber, item);
-			} else if (item.kind == EXIT) {
-
-				ProfilingItem methodEntry = openMethodEntries.get(item.sequenceNumber);
-				if (methodEntry == null) {
-					LOGGER.warn("Method exit without entry: {}", item);
-				} else {
-					if (item.etime >= LONG_TIMES_THRESHOLD && matches(item.method, LONG_TIMES_INCLUDE) && !matches(item.method, LONG_TIMES_EXCLUDE)) {
-						longInvocations.add(new MethodInvocation(methodEntry, item));
-					}
-					openMethodEntries.remove(item.sequenceNumber);
-				}
+	private enum LongInvocationsMode {
+		ALL, TOP_PER_METHOD, TOP_PER_CATEGORY
+	}
 
-				ThreadType threadType = ThreadType.determine(threadName);
-				if (!matches(item.method, EXCLUDE_FROM_HISTOGRAM)) {
-					if (HISTOGRAM_PER_BATCH) {
-						if (HISTOGRAM_PER_THREAD_TYPE) {
-							histogram.addValue(String.format("%s:%03d:%s", item.method, profilingBatch, threadType), item.etime);
-						}
-						histogram.addValue(String.format("%s:%03d", item.method, profilingBatch), item.etime);
-					} else if (HISTOGRAM_PER_THREAD_TYPE) {
-						histogram.addValue(String.format("%s:%s", item.method, threadType), item.etime);
-					}
-					histogram.addValue(String.format("%s", item.method), item.etime);
-				}
+	private static InvocationCapture createLongInvocationsCapture() {
+		Consumer<MethodInvocation> categorizer = invocation -> invocation.categorize(CATEGORY_DEFINITIONS, SUBCATEGORY_DEFINITIONS);
+		switch (LONG_INVOCATIONS_MODE) {
+			case ALL: return new SpillingInvocationCapture(LONG_INVOCATIONS_IN_MEMORY, categorizer);
+			case TOP_PER_METHOD: return new TopInvocationCapture(LONG_INVOCATIONS_TOP_K, MethodInvocation::getMethodName, false,
+					categorizer);
+			case TOP_PER_CATEGORY: return new TopInvocationCapture(LONG_INVOCATIONS_TOP_K,
+					invocation -> String.valueOf(invocation.getCategoryName()), true, categorizer);
+			default: throw new AssertionError(LONG_INVOCATIONS_MODE);
+		}
+	}
 
-				collector.registerEvent(threadName, new Event(item.method, timestamp.getTime(), item.etime));
-
-				if (item.sequenceNumber == enclosingEntry) {
-					EventsSummary summary = collector.closeTag(threadName);
-					pwAllInvocations.println(String.format(Locale.US, "Method calls for entry #%d [%s] at %s (progress: %d):", enclosingEntry, threadName,
-							df.format(timestamp), item.progress));
-					pwAllInvocations.println(summary.dump());
-					pwAllInvocations.println();
-					currentlyCollecting.remove(threadName);
-
-					pwSelectedInvocations.print(String.format("%s;%d;%s;%d",
-							df.format(timestamp), (timestamp.getTime() - firstTimestamp.getTime()) / 1000, threadName, item.progress));
-					for (String methodName : EXTRACTING) {
-						Times times = summary.get(methodName);
-						long max = times != null && times.getMaxTime() != null ? times.getMaxTime() : 0;
-						pwSelectedInvocations.print(String.format(";%d", max));
-					}
-					pwSelectedInvocations.println();
-				}
-			} else {
-				throw new AssertionError("kind: " + item.kind);
-			}
+	/**
+	 * Analyses run along with the invocation analysis, in the same pass over the logs.
+	 */
+	private static List<ProfilingAnalysis> getAdditionalAnalyses() {
+		List<ProfilingAnalysis> rv = new ArrayList<>();
+		if (CALL_TREE) {
+			rv.add(new CallTreeAnalysis(CALL_TREE_COLLAPSED_FILE, CALL_TREE_METHODS_FILE, CALL_TREE_MAX_DEPTH));
 		}
-		pwAllInvocations.close();
-		pwSelectedInvocations.close();
-
-		PrintWriter pwPerMinute = new PrintWriter(new FileWriter(OBJECTS_PER_MINUTE_FILE));
-		pwPerMinute.println("Minute;Objects");
-		int[] countsPerMinute = profilingEntryReader.getThroughputCollector().getCountsPerMinute();
-		for (int i = 0; i < countsPerMinute.length; i++) {
-			pwPerMinute.println(i + ";" + countsPerMinute[i]);
+		if (TAIL_ATTRIBUTION) {
+			rv.add(new TailAttributionAnalysis(TAIL_ATTRIBUTION_FILE, ProfilingLogAnalyzer::isMainMethod, TAIL_ATTRIBUTION_BANDS));
 		}
-		pwPerMinute.close();
-
-		String histogramFileName = String.format(PERFORMANCE_HISTOGRAM_FILE_NAME_FORMAT, HISTOGRAM_STEP,
-				HISTOGRAM_PER_BATCH ? "-batch" : "", HISTOGRAM_PER_THREAD_TYPE ? "-thread" : "");
-		File histogramFile = new File(DIRECTORY, histogramFileName);
-		PrintWriter pwHistogram = new PrintWriter(new FileWriter(histogramFile));
-		pwHistogram.print("Bucket;From;To;Millis");
-		for (String variableName : histogram.getVariableNames()) {
-			pwHistogram.print(";" + variableName);
+		if (CONCURRENCY_TIMELINE) {
+			rv.add(new ConcurrencyTimelineAnalysis(CONCURRENCY_TIMELINE_FILE, method -> matches(method, CONCURRENCY_TIMELINE_INCLUDE)));
 		}
-		pwHistogram.println();
-		int buckets = histogram.getBuckets();
-		for (int i = 0; i < buckets; i++) {
-			long lower = i * histogram.getBucketSize();
-			long upper = i < buckets - 1 ? (i + 1) * histogram.getBucketSize() - 1 : histogram.getAbsoluteMaximum();
-			double millis = (upper+1) / 1000.0;
-			pwHistogram.print(String.format(Locale.US, "%d;%d;%d;%f", i, lower, upper, millis));
-			int[] bucket = histogram.getBucket(i);
-			for (int count : bucket) {
-				pwHistogram.print(";" + count);
-			}
-			pwHistogram.println();
+		if (CHANGE_POINTS) {
+			rv.add(new ChangePointAnalysis(CHANGE_POINTS_FILE, method -> true, CHANGE_POINTS_PROGRESS_STEP,
+					CHANGE_POINTS_PERCENTILE, CHANGE_POINTS_MIN_SAMPLES));
+		}
+		if (LATENCY_TIMELINE) {
+			rv.add(new LatencyTimelineAnalysis(LATENCY_TIMELINE_FILE, LATENCY_HEATMAP_FILE,
+					method -> matches(method, LATENCY_TIMELINE_INCLUDE), LATENCY_TIMELINE_RESOLUTION));
+		}
+		if (REDUNDANT_CALLS) {
+			rv.add(new RedundantCallAnalysis(REDUNDANT_CALLS_FILE, REDUNDANT_CALLS_SUMMARY_FILE, ProfilingLogAnalyzer::isMainMethod,
+					method -> matches(method, REDUNDANT_CALLS_INCLUDE), REDUNDANT_CALLS_TOP));
 		}
-		pwHistogram.close();
+		//noinspection ConstantConditions
+		if (THROUGHPUT_MESSAGE != null) {
+			rv.add(new ThroughputAnalysis(THROUGHPUT_FILE, Pattern.compile(THROUGHPUT_MESSAGE)));
+		}
+		return rv;
+	}
 
-		Counters<String> categoryCounters = new Counters<>();
-		longInvocations.sort(Comparator.comparing(MethodInvocation::getExecutionTime, Comparator.reverseOrder()));
-		long thresholdMillis = LONG_TIMES_THRESHOLD / 1000;
-		File longInvocationsTxtFile = new File(DIRECTORY, String.format(LONG_INVOCATIONS_TXT_FILE_NAME_FORMAT, thresholdMillis));
-		File longInvocationsCsvFile = new File(DIRECTORY, String.format(LONG_INVOCATIONS_CSV_FILE_NAME_FORMAT, thresholdMillis));
-		PrintWriter pwLongInvocationsTxt = new PrintWriter(new FileWriter(longInvocationsTxtFile));
-		PrintWriter pwLongInvocationsCsv = new PrintWriter(new FileWriter(longInvocationsCsvFile));
-		for (MethodInvocation invocation : longInvocations) {
-			String timestamp = df.format(invocation.getTimestamp());
-			String method = invocation.getMethodName();
-			String thread = invocation.getThreadName();
-			long micros = invocation.getExecutionTime();
-			String arguments = invocation.getArguments();
-			String returnValue = invocation.getReturnValue();
-			invocation.categorize(CATEGORY_DEFINITIONS, SUBCATEGORY_DEFINITIONS);
-			String categoryName = invocation.getCategoryName();
-			String parameters = String.valueOf(invocation.getCategorizationParameters());
-			pwLongInvocationsTxt.println(String.format(Locale.US, "%s %-30s %-60s %10d %-70s %-100s %s -> %s", timestamp, "["+thread+"]", method, micros, categoryName, parameters, arguments, returnValue));
-			pwLongInvocationsCsv.println(String.format(Locale.US, "%s;%s;%s;%d;%s;%s;%s;%s", timestamp, thread, method, micros, categoryName, parameters, arguments, returnValue));
-			categoryCounters.increment(categoryName);
+	private static boolean isSelected(ProfilingItem item, Long timeFrom, Long timeTo) {
+		//noinspection ConstantConditions
+		if (BATCH_FROM != null && item.batch < BATCH_FROM) {
+			return false;
+		} else //noinspection ConstantConditions
+			if (BATCH_TO != null && item.batch > BATCH_TO) {
+			return false;
 		}
-		pwLongInvocationsTxt.close();
-		pwLongInvocationsCsv.close();
-
-		File slowQueryCategoryCountsFile = new File(DIRECTORY, String.format(SLOW_QUERY_CATEGORY_COUNTS_FILE_NAME_FORMAT, thresholdMillis));
-		PrintWriter pwQueryCategoryCounts = new PrintWriter(new FileWriter(slowQueryCategoryCountsFile));
-		pwQueryCategoryCounts.println("Category;Count");
-		for (Map.Entry<String, Integer> entry : categoryCounters.getCountsMap().entrySet()) {
-			pwQueryCategoryCounts.println(entry.getKey() + ";" + entry.getValue());
+		long itemTime = item.firstLogEntry.timestamp.getTime();
+		return (timeFrom == null || itemTime >= timeFrom) && (timeTo == null || itemTime <= timeTo);
+	}
+
+	private static File getHistogramFile() {
+		String histogramFileName = String.format(PERFORMANCE_HISTOGRAM_FILE_NAME_FORMAT, HISTOGRAM_STEP,
+				HISTOGRAM_PER_BATCH ? "-batch" : "", HISTOGRAM_PER_THREAD_TYPE ? "-thread" : "");
+		return new File(DIRECTORY, histogramFileName);
+	}
+
+	private static List<Set<Dimension>> getHistogramGroupBys() {
+		List<Set<Dimension>> groupBys = new ArrayList<>();
+		groupBys.add(EnumSet.of(Dimension.METHOD));
+		if (HISTOGRAM_PER_BATCH) {
+			groupBys.add(EnumSet.of(Dimension.METHOD, Dimension.BATCH));
+			if (HISTOGRAM_PER_THREAD_TYPE) {
+				groupBys.add(EnumSet.of(Dimension.METHOD, Dimension.BATCH, Dimension.THREAD_TYPE));
+			}
+		} else if (HISTOGRAM_PER_THREAD_TYPE) {
+			groupBys.add(EnumSet.of(Dimension.METHOD, Dimension.THREAD_TYPE));
 		}
-		pwQueryCategoryCounts.close();
+		return groupBys;
+	}
 
-		int totalLines = profilingEntryReader.getTotalLines();
-		int logEntries = profilingEntryReader.getLogEntries();
-		LOGGER.info("Total lines: {}, log entry lines: {}, continuation lines: {}", totalLines, logEntries, totalLines-logEntries);
-		LOGGER.info("Histogram written to: {}", histogramFile);
-		LOGGER.info("Long invocations: {}", longInvocations.size());
+	private static File getPercentilesFile() {
+		String percentilesFileName = String.format(PERFORMANCE_PERCENTILES_FILE_NAME_FORMAT,
+				HISTOGRAM_PER_BATCH ? "-batch" : "", HISTOGRAM_PER_THREAD_TYPE ? "-thread" : "");
+		return new File(DIRECTORY, percentilesFileName);
 	}
 
 	@SuppressWarnings("SameParameterValue")
@@ -313,20 +441,4 @@ public class ProfilingLogAnalyzer {
 	private static boolean isMainMethod(String method) {
 		return MAIN_METHODS.contains(method);
 	}
-
-	enum ThreadType {
-		COORDINATOR, WORKER, OTHER;
-
-		public static ThreadType determine(String name) {
-			if (name.startsWith("midPointScheduler_Worker-")) {
-				return COORDINATOR;
-			} else if (name.startsWith("pool-")) {
-				return WORKER;
-			} else {
-				return OTHER;
-			}
-		}
-	}
-
-
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+/**
+ * Classifies log messages in a single left-to-right pass, without regular expressions. Recognizes:
+ *
+ * - method entry: "#### Entry: 83329    ...model.impl.sync.SynchronizationServiceImpl->notifyChange"
+ * - method exit: "##### Exit: 1     ...task.quartzimpl.TaskManagerQuartzImpl->createTaskInstance etime: 1.314 ms"
+ * - arguments and return value: "###### args: ..." and "###### retval: ..."
+ * - progress information at the end of a message: "... (total progress: 1, wall clock avg: 4098 ms)"
+ *
+ * As before, a message containing the entry (or exit) marker anywhere is considered to be an entry (exit),
+ * but it is well-formed only if it consists of the marker, sequence number and method (and execution time) alone.
+ *
+ * The results of the last {@link #classify(CharSequence)} call are available through getters. Not thread-safe;
+ * each reader has its own instance.
+ */
+class ProfilingMessageClassifier {
+
+	enum MessageKind {
+		ENTRY, EXIT, ARGS, RETVAL, OTHER
+	}
+
+	private static final String ENTRY_TEXT = " Entry: ";                   // after at least 4 hashes
+	private static final String EXIT_TEXT = " Exit: ";                     // after at least 5 hashes
+	private static final String ARGS_PREFIX = "###### args: ";
+	private static final String RETVAL_PREFIX = "###### retval: ";
+	private static final String PROGRESS_START = "(total progress: ";
+	private static final String PROGRESS_MIDDLE = ", wall clock avg: ";
+	private static final String PROGRESS_END = " ms)";
+	private static final String ETIME_TEXT = " etime: ";
+	private static final String ETIME_END = " ms";
+
+	private static final int ENTRY_HASHES = 4;
+	private static final int EXIT_HASHES = 5;
+
+	private MessageKind kind;
+	private boolean wellFormed;
+	private int sequenceNumber;
+	private int methodStart, methodEnd;
+	private long etime;
+	private int payloadStart;
+	private int progress;
+
+	/**
+	 * Classifies the message. Returns its kind.
+	 */
+	MessageKind classify(CharSequence message) {
+		kind = MessageKind.OTHER;
+		wellFormed = false;
+		sequenceNumber = -1;
+		methodStart = methodEnd = -1;
+		etime = -1;
+		payloadStart = -1;
+		progress = -1;
+
+		int length = message.length();
+		boolean entryMarker = false, exitMarker = false;
+		boolean entryWellFormed = false, exitWellFormed = false;
+		int i = 0;
+		while (i < length) {
+			char c = message.charAt(i);
+			if (c == '#') {
+				int runStart = i;
+				while (i < length && message.charAt(i) == '#') {
+					i++;
+				}
+				int hashes = i - runStart;
+				if (!entryMarker && hashes >= ENTRY_HASHES && regionMatches(message, i, ENTRY_TEXT)) {
+					entryMarker = true;
+					if (runStart == 0 && hashes == ENTRY_HASHES && parseInvocation(message, i + ENTRY_TEXT.length(), false)) {
+						entryWellFormed = true;
+						i = length;             // the whole message is parsed
+					}
+				} else if (!exitMarker && hashes >= EXIT_HASHES && regionMatches(message, i, EXIT_TEXT)) {
+					exitMarker = true;
+					if (runStart == 0 && hashes == EXIT_HASHES && parseInvocation(message, i + EXIT_TEXT.length(), true)) {
+						exitWellFormed = true;
+						i = length;
+					}
+				} else if (runStart == 0 && regionMatches(message, 0, ARGS_PREFIX)) {
+					kind = MessageKind.ARGS;
+					payloadStart = ARGS_PREFIX.length();
+				} else if (runStart == 0 && regionMatches(message, 0, RETVAL_PREFIX)) {
+					kind = MessageKind.RETVAL;
+					payloadStart = RETVAL_PREFIX.length();
+				}
+			} else {
+				if (c == '(' && regionMatches(message, i, PROGRESS_START)) {
+					parseProgress(message, i + PROGRESS_START.length());
+				}
+				i++;
+			}
+		}
+		if (entryMarker) {
+			kind = MessageKind.ENTRY;
+			wellFormed = entryWellFormed;
+		} else if (exitMarker) {
+			kind = MessageKind.EXIT;
+			wellFormed = exitWellFormed;
+		} else if (kind == MessageKind.ARGS || kind == MessageKind.RETVAL) {
+			wellFormed = true;
+		}
+		return kind;
+	}
+
+	/**
+	 * Parses "(seq)\s+...(method)" or "(seq)\s+...(method) etime: (etime) ms" up to the end of the message.
+	 * A well-formed entry or exit cannot contain anything else, so no further scanning is needed.
+	 */
+	private boolean parseInvocation(CharSequence message, int from, boolean exit) {
+		int length = message.length();
+		int i = from;
+		long seq = 0;
+		while (i < length && isDigit(message.charAt(i))) {
+			seq = seq * 10 + (message.charAt(i++) - '0');
+			if (seq > Integer.MAX_VALUE) {
+				return false;
+			}
+		}
+		if (i == from) {
+			return false;
+		}
+		int whitespaceStart = i;
+		while (i < length && Character.isWhitespace(message.charAt(i))) {
+			i++;
+		}
+		if (i == whitespaceStart || !regionMatches(message, i, "...")) {
+			return false;
+		}
+		i += 3;
+		int start = i;
+		while (i < length && !Character.isWhitespace(message.charAt(i))) {
+			i++;
+		}
+		if (i == start) {
+			return false;
+		}
+		int end = i;
+		if (exit) {
+			if (!regionMatches(message, i, ETIME_TEXT)) {
+				return false;
+			}
+			i += ETIME_TEXT.length();
+			int etimeEnd = length - ETIME_END.length();
+			if (etimeEnd <= i || !regionMatches(message, etimeEnd, ETIME_END)) {
+				return false;
+			}
+			long micros = parseMillisAsMicros(message, i, etimeEnd);
+			if (micros < 0) {
+				return false;
+			}
+			etime = micros;
+		} else if (i != length) {
+			return false;
+		}
+		sequenceNumber = (int) seq;
+		methodStart = start;
+		methodEnd = end;
+		return true;
+	}
+
+	/**
+	 * Parses a decimal number of milliseconds (like 7.708) to microseconds; further decimal places are truncated.
+	 * Returns -1 if the value is not a valid number.
+	 */
+	private static long parseMillisAsMicros(CharSequence message, int from, int to) {
+		long millis = 0;
+		int i = from;
+		while (i < to && isDigit(message.charAt(i))) {
+			millis = millis * 10 + (message.charAt(i++) - '0');
+			if (millis > Long.MAX_VALUE / 10_000) {
+				return -1;
+			}
+		}
+		boolean integerDigits = i > from;
+		long fraction = 0;
+		int fractionDigits = 0;
+		if (i < to && message.charAt(i) == '.') {
+			i++;
+			int fractionStart = i;
+			while (i < to && isDigit(message.charAt(i))) {
+				if (fractionDigits < 3) {
+					fraction = fraction * 10 + (message.charAt(i) - '0');
+					fractionDigits++;
+				}
+				i++;
+			}
+			if (!integerDigits && i == fractionStart) {
+				return -1;
+			}
+		} else if (!integerDigits) {
+			return -1;
+		}
+		if (i != to) {
+			return -1;
+		}
+		for (; fractionDigits < 3; fractionDigits++) {
+			fraction *= 10;
+		}
+		return millis * 1000 + fraction;
+	}
+
+	/**
+	 * Parses "(total), wall clock avg: (avg) ms)" that must end the message.
+	 */
+	private void parseProgress(CharSequence message, int from) {
+		int length = message.length();
+		int i = from;
+		long total = 0;
+		while (i < length && isDigit(message.charAt(i))) {
+			total = total * 10 + (message.charAt(i++) - '0');
+			if (total > Integer.MAX_VALUE) {
+				return;
+			}
+		}
+		if (i == from || !regionMatches(message, i, PROGRESS_MIDDLE)) {
+			return;
+		}
+		i += PROGRESS_MIDDLE.length();
+		int avgStart = i;
+		while (i < length && isDigit(message.charAt(i))) {
+			i++;
+		}
+		if (i == avgStart || !regionMatches(message, i, PROGRESS_END) || i + PROGRESS_END.length() != length) {
+			return;
+		}
+		progress = (int) total;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean regionMatches(CharSequence message, int from, String text) {
+		if (from + text.length() > message.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (message.charAt(from + i) != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	MessageKind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Whether the entry or exit message has the expected structure (args and retval are always well-formed).
+	 */
+	boolean isWellFormed() {
+		return wellFormed;
+	}
+
+	int getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	int getMethodStart() {
+		return methodStart;
+	}
+
+	int getMethodEnd() {
+		return methodEnd;
+	}
+
+	/**
+	 * Execution time in microseconds (for exits).
+	 */
+	long getEtime() {
+		return etime;
+	}
+
+	/**
+	 * Start of the value (for args and retval).
+	 */
+	int getPayloadStart() {
+		return payloadStart;
+	}
+
+	/**
+	 * Total progress reported by the message, or -1 if there is none.
+	 */
+	int getProgress() {
+		return progress;
+	}
+}
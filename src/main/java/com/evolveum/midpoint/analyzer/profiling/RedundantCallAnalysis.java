@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.Fingerprint;
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.LongObjectMap;
+import com.evolveum.midpoint.analyzer.util.SymbolPredicate;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Finds calls (e.g. of repository methods) repeated with the same arguments within a single invocation of a main method,
+ * i.e. calls whose results could have been reused. A call is identified by its signature: the fingerprint of the method
+ * and its normalized arguments (see {@link Fingerprint}), computed by the reader while the arguments are in its buffer;
+ * so the arguments texts are not kept. The first call with a signature within a main method invocation is considered
+ * necessary, the others redundant; their execution time is the time wasted.
+ *
+ * Two files are written: the summary per main method (how many of its invocations contained redundant calls, how many
+ * of them and how much time they took), and the signatures with the most time wasted. Signatures are described
+ * by the method and the first redundant call (time and thread), so the arguments can be looked up in the log.
+ * In the summary, time of redundant calls nested in other redundant calls is not counted again.
+ */
+public class RedundantCallAnalysis implements ProfilingAnalysis {
+
+	private static final Trace LOGGER = TraceManager.getTrace(RedundantCallAnalysis.class);
+
+	private static final int MAX_OPEN_CALLS_PER_THREAD = 1000;
+
+	@NotNull private final File signaturesFile;
+	@NotNull private final File summaryFile;
+	@NotNull private final Predicate<String> mainMethodPredicate;
+	@NotNull private final Predicate<String> calledMethodPredicate;
+	private final int topSignatures;
+
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS", Locale.US);
+	private SymbolTable methods;
+	private SymbolTable threads;
+	private SymbolPredicate mainMethods;
+	private SymbolPredicate calledMethods;
+
+	private static class Frame extends CallStacks.Frame {
+		private final Frame main;                           // the enclosing main method invocation (or this one)
+		private final boolean redundant;
+		private final boolean insideRedundant;              // some enclosing call is redundant
+		private final long signature;                       // Fingerprint.NONE if not followed
+
+		// only for main method invocations
+		private LongObjectMap<int[]> calls;                 // signature -> number of calls
+		private int redundantCalls;
+		private long wastedTime;
+
+		private Frame(ProfilingItem entry, Frame main, boolean isMain, Frame parent, long signature, boolean redundant) {
+			super(entry);
+			this.main = isMain ? this : main;
+			this.signature = signature;
+			this.redundant = redundant;
+			this.insideRedundant = parent != null && (parent.redundant || parent.insideRedundant);
+			this.calls = isMain ? new LongObjectMap<>() : null;
+		}
+	}
+
+	private static class Signature {
+		private final long fingerprint;
+		private final int methodId;
+		private final long firstRedundantTime;              // timestamp
+		private final int firstRedundantThreadId;
+		private long redundantCalls;
+		private long wastedTime;
+		private long affectedInvocations;                   // of main methods
+		private int maxCallsInInvocation;
+
+		private Signature(long fingerprint, int methodId, long firstRedundantTime, int firstRedundantThreadId) {
+			this.fingerprint = fingerprint;
+			this.methodId = methodId;
+			this.firstRedundantTime = firstRedundantTime;
+			this.firstRedundantThreadId = firstRedundantThreadId;
+		}
+	}
+
+	private static class MainMethodStatistics {
+		private long invocations;
+		private long invocationsWithRedundantCalls;
+		private long redundantCalls;
+		private int maxRedundantCalls;                      // in a single invocation
+		private long totalTime;
+		private long wastedTime;
+	}
+
+	private final LongObjectMap<Signature> signatures = new LongObjectMap<>();           // only ones called redundantly
+	private final IntObjectMap<MainMethodStatistics> statistics = new IntObjectMap<>();  // main method id -> statistics
+	private long entriesWithoutArguments;
+
+	private final CallStacks<Frame> stacks = new CallStacks<>(MAX_OPEN_CALLS_PER_THREAD, new CallStacks.Listener<Frame>() {
+		@NotNull
+		@Override
+		public Frame onEntry(@NotNull ProfilingItem entry, @Nullable Frame parent, @NotNull Deque<Frame> stack) {
+			Frame main = parent != null ? parent.main : null;
+			if (main == null) {
+				return new Frame(entry, null, mainMethods.test(entry.methodId), parent, Fingerprint.NONE, false);
+			} else if (!calledMethods.test(entry.methodId)) {
+				return new Frame(entry, main, false, parent, Fingerprint.NONE, false);
+			} else if (entry.argumentsFingerprint == Fingerprint.NONE) {
+				entriesWithoutArguments++;
+				return new Frame(entry, main, false, parent, Fingerprint.NONE, false);
+			}
+			long signature = Fingerprint.combine(entry.methodId, entry.argumentsFingerprint);
+			int[] count = main.calls.get(signature);
+			if (count == null) {
+				main.calls.put(signature, new int[] { 1 });
+				return new Frame(entry, main, false, parent, signature, false);
+			}
+			if (count[0]++ == 1 && signatures.get(signature) == null) {
+				signatures.put(signature, new Signature(signature, entry.methodId,
+						entry.firstLogEntry.timestamp.getTime(), entry.threadId));
+			}
+			return new Frame(entry, main, false, parent, signature, true);
+		}
+
+		@Override
+		public void onExit(@NotNull Frame frame, long time, long selfTime, @Nullable Frame parent) {
+			if (frame.redundant) {
+				Signature signature = signatures.get(frame.signature);
+				signature.redundantCalls++;
+				signature.wastedTime += time;
+				frame.main.redundantCalls++;
+				if (!frame.insideRedundant) {
+					frame.main.wastedTime += time;
+				}
+			}
+			if (frame.main == frame) {
+				record(frame, time);
+			}
+		}
+	});
+
+	/**
+	 * @param calledMethodPredicate Methods whose repeated calls are looked for (e.g. repository ones).
+	 * @param topSignatures How many signatures (with the most time wasted) to report.
+	 */
+	public RedundantCallAnalysis(@NotNull File signaturesFile, @NotNull File summaryFile,
+			@NotNull Predicate<String> mainMethodPredicate, @NotNull Predicate<String> calledMethodPredicate,
+			int topSignatures) {
+		this.signaturesFile = signaturesFile;
+		this.summaryFile = summaryFile;
+		this.mainMethodPredicate = mainMethodPredicate;
+		this.calledMethodPredicate = calledMethodPredicate;
+		this.topSignatures = topSignatures;
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) {
+		methods = context.getMethodSymbols();
+		threads = context.getThreadSymbols();
+		mainMethods = new SymbolPredicate(methods, mainMethodPredicate);
+		calledMethods = new SymbolPredicate(methods, calledMethodPredicate);
+	}
+
+	@Override
+	public boolean needsArgumentsFingerprints() {
+		return true;
+	}
+
+	@Override
+	public void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+		stacks.clear();
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		stacks.process(item);
+	}
+
+	private void record(Frame mainFrame, long time) {
+		MainMethodStatistics methodStatistics = statistics.get(mainFrame.methodId);
+		if (methodStatistics == null) {
+			methodStatistics = new MainMethodStatistics();
+			statistics.put(mainFrame.methodId, methodStatistics);
+		}
+		methodStatistics.invocations++;
+		methodStatistics.totalTime += time;
+		if (mainFrame.redundantCalls > 0) {
+			methodStatistics.invocationsWithRedundantCalls++;
+			methodStatistics.redundantCalls += mainFrame.redundantCalls;
+			methodStatistics.maxRedundantCalls = Math.max(methodStatistics.maxRedundantCalls, mainFrame.redundantCalls);
+			methodStatistics.wastedTime += mainFrame.wastedTime;
+			mainFrame.calls.forEach((fingerprint, count) -> {
+				if (count[0] > 1) {
+					Signature signature = signatures.get(fingerprint);
+					signature.affectedInvocations++;
+					signature.maxCallsInInvocation = Math.max(signature.maxCallsInInvocation, count[0]);
+				}
+			});
+		}
+		mainFrame.calls = null;
+	}
+
+	@Override
+	public void refresh() throws IOException {
+		writeResults();
+	}
+
+	@Override
+	public void end() throws IOException {
+		writeResults();
+		LOGGER.info("Redundant calls: {} signatures called redundantly; {} calls without arguments, {} exits without entries",
+				signatures.size(), entriesWithoutArguments, stacks.getUnmatchedExits());
+	}
+
+	private void writeResults() throws IOException {
+		try (PrintWriter pw = new PrintWriter(new FileWriter(summaryFile))) {
+			pw.println("MainMethod;Invocations;WithRedundantCalls;RedundantCalls;AvgRedundantCalls;MaxRedundantCalls;AvgMicros;AvgWastedMicros;ShareWasted");
+			List<Integer> mainMethodIds = new ArrayList<>();
+			statistics.forEach((methodId, s) -> mainMethodIds.add(methodId));
+			mainMethodIds.sort(Comparator.comparing(methods::getName));
+			for (int mainMethodId : mainMethodIds) {
+				MainMethodStatistics s = statistics.get(mainMethodId);
+				pw.println(String.format(Locale.US, "%s;%d;%d;%d;%.2f;%d;%.0f;%.0f;%.3f", methods.getName(mainMethodId),
+						s.invocations, s.invocationsWithRedundantCalls, s.redundantCalls,
+						(double) s.redundantCalls / s.invocations, s.maxRedundantCalls, (double) s.totalTime / s.invocations,
+						(double) s.wastedTime / s.invocations, s.totalTime > 0 ? (double) s.wastedTime / s.totalTime : 0.0));
+			}
+		}
+
+		List<Signature> list = new ArrayList<>(signatures.size());
+		signatures.forEach((fingerprint, signature) -> list.add(signature));
+		list.sort(Comparator.comparingLong((Signature s) -> -s.wastedTime).thenComparingLong(s -> s.fingerprint));
+		try (PrintWriter pw = new PrintWriter(new FileWriter(signaturesFile))) {
+			pw.println("Method;Signature;RedundantCalls;WastedMicros;AvgMicros;AffectedInvocations;MaxCallsInInvocation;FirstRedundantCall;Thread");
+			for (Signature s : list.subList(0, Math.min(topSignatures, list.size()))) {
+				pw.println(String.format(Locale.US, "%s;%016x;%d;%d;%.0f;%d;%d;%s;%s", methods.getName(s.methodId),
+						s.fingerprint, s.redundantCalls, s.wastedTime,
+						s.redundantCalls > 0 ? (double) s.wastedTime / s.redundantCalls : 0.0, s.affectedInvocations,
+						s.maxCallsInInvocation, df.format(new Date(s.firstRedundantTime)),
+						threads.getName(s.firstRedundantThreadId)));
+			}
+		}
+	}
+}
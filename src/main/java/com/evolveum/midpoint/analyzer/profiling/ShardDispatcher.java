@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.PipelineStatistics;
+import com.evolveum.midpoint.analyzer.util.RingBuffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Distributes profiling items among shards by their threads, so each shard gets all items of its threads
+ * in the original order. Events concerning all threads (a new batch, an age check, the end of the log) are sent
+ * to all shards, at the correct place in their streams of items.
+ *
+ * Each call gets the current log time ("clock") and an order key that tells where the results of the call
+ * belong in the outputs; so the results of the shards can be merged into the same outputs as if all items
+ * were processed by a single shard.
+ *
+ * With a single shard, everything is done in the caller's thread. Otherwise, each shard runs in its own thread,
+ * getting the items in chunks through a {@link RingBuffer}.
+ */
+class ShardDispatcher implements Closeable {
+
+	interface Shard {
+		void process(@NotNull ProfilingItem item, long clock, long order);
+		void onNewBatch(long clock, long order);
+		void checkAge(long clock, long order);
+		void finish(long clock, long order);
+	}
+
+	private static final int CHUNK_SIZE = 1000;                 // commands
+	private static final int QUEUE_CAPACITY = 16;               // chunks
+
+	private enum Command {
+		PROCESS, NEW_BATCH, CHECK_AGE, FINISH
+	}
+
+	private static class Chunk {
+		private final Command[] commands = new Command[CHUNK_SIZE];
+		private final ProfilingItem[] items = new ProfilingItem[CHUNK_SIZE];
+		private final long[] clocks = new long[CHUNK_SIZE];
+		private final long[] orders = new long[CHUNK_SIZE];
+		private int size;
+
+		private void replay(Shard shard) {
+			for (int i = 0; i < size; i++) {
+				switch (commands[i]) {
+					case PROCESS: shard.process(items[i], clocks[i], orders[i]); break;
+					case NEW_BATCH: shard.onNewBatch(clocks[i], orders[i]); break;
+					case CHECK_AGE: shard.checkAge(clocks[i], orders[i]); break;
+					case FINISH: shard.finish(clocks[i], orders[i]); break;
+					default: throw new AssertionError(commands[i]);
+				}
+			}
+		}
+
+		private void clear() {
+			Arrays.fill(items, 0, size, null);
+			size = 0;
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final int index;
+		private final Shard shard;
+		private final RingBuffer<Chunk> buffer;
+		private volatile Throwable failure;
+		private Chunk current;
+
+		private Worker(int index, Shard shard) {
+			this.index = index;
+			this.shard = shard;
+			this.buffer = new RingBuffer<>(QUEUE_CAPACITY, Chunk::new, new PipelineStatistics("shard " + index));
+		}
+
+		@Override
+		public void run() {
+			try {
+				Chunk chunk;
+				while ((chunk = buffer.take()) != null) {
+					// after a failure, chunks are only drained, so the dispatcher is not blocked
+					if (failure == null) {
+						try {
+							chunk.replay(shard);
+						} catch (Throwable t) {
+							failure = t;
+						}
+					}
+					buffer.release();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void add(Command command, ProfilingItem item, long clock, long order) {
+			try {
+				if (current == null) {
+					current = buffer.claim();
+					current.clear();
+				}
+				int i = current.size++;
+				current.commands[i] = command;
+				current.items[i] = item;
+				current.clocks[i] = clock;
+				current.orders[i] = order;
+				if (current.size == CHUNK_SIZE || command == Command.FINISH) {
+					checkFailure();
+					buffer.publish(current.size);
+					current = null;
+					if (command == Command.FINISH) {
+						buffer.close();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while passing items to shard " + index);
+			}
+		}
+
+		private void checkFailure() {
+			Throwable failure = this.failure;
+			if (failure != null) {
+				throw new IllegalStateException("Shard " + index + " failed: " + failure.getMessage(), failure);
+			}
+		}
+	}
+
+	@NotNull private final List<? extends Shard> shards;
+	private final List<Worker> workers = new ArrayList<>();
+	private final List<Future<?>> futures = new ArrayList<>();
+	private final ExecutorService executor;
+
+	ShardDispatcher(@NotNull List<? extends Shard> shards) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("No shards");
+		}
+		this.shards = shards;
+		if (shards.size() > 1) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+				Thread thread = new Thread(runnable, "analysis-shard-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+			for (Shard shard : shards) {
+				Worker worker = new Worker(workers.size(), shard);
+				workers.add(worker);
+				futures.add(executor.submit(worker));
+			}
+		} else {
+			executor = null;
+		}
+	}
+
+	void process(@NotNull ProfilingItem item, long clock, long order) {
+		int index = item.threadId % shards.size();          // thread ids are dense, so this spreads them evenly
+		if (executor == null) {
+			shards.get(index).process(item, clock, order);
+		} else {
+			workers.get(index).add(Command.PROCESS, item, clock, order);
+		}
+	}
+
+	void onNewBatch(long clock, long order) {
+		broadcast(Command.NEW_BATCH, clock, order);
+	}
+
+	void checkAge(long clock, long order) {
+		broadcast(Command.CHECK_AGE, clock, order);
+	}
+
+	/**
+	 * Statistics of passing items to shard threads (empty if there is only one shard).
+	 */
+	@NotNull
+	List<PipelineStatistics> getStatistics() {
+		return workers.stream().map(w -> w.buffer.getStatistics()).collect(Collectors.toList());
+	}
+
+	/**
+	 * Finishes the processing and waits until all shards are done. Then their results can be collected.
+	 */
+	void finish(long clock, long order) {
+		broadcast(Command.FINISH, clock, order);
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for shard " + i);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Shard " + i + " failed: " + e.getCause().getMessage(), e.getCause());
+			}
+			workers.get(i).checkFailure();
+		}
+	}
+
+	private void broadcast(Command command, long clock, long order) {
+		if (executor == null) {
+			Shard shard = shards.get(0);
+			switch (command) {
+				case NEW_BATCH: shard.onNewBatch(clock, order); break;
+				case CHECK_AGE: shard.checkAge(clock, order); break;
+				case FINISH: shard.finish(clock, order); break;
+				default: throw new AssertionError(command);
+			}
+		} else {
+			for (Worker worker : workers) {
+				worker.add(command, null, clock, order);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
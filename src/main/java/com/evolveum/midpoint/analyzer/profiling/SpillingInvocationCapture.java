@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Keeps all invocations, sorted by an external merge sort: when there are too many of them in memory, they are
+ * sorted and written to a temporary file (a run). The output is produced by merging the runs with the invocations
+ * still in memory. At most a given number of sources are merged at once (each needs a read buffer); if there are
+ * more runs, they are first merged into longer ones, in as many passes as needed.
+ */
+class SpillingInvocationCapture implements InvocationCapture {
+
+	private static final Trace LOGGER = TraceManager.getTrace(SpillingInvocationCapture.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	static final int DEFAULT_MAX_FAN_IN = 64;
+
+	private final int maxInMemory;
+	private final int maxFanIn;
+	@NotNull private final Consumer<MethodInvocation> categorizer;
+
+	private final List<Candidate> inMemory = new ArrayList<>();
+	private final List<Run> runs = new ArrayList<>();
+	private long count;
+
+	private static class Run {
+		@NotNull private final File file;
+		private final int size;
+
+		private Run(@NotNull File file, int size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A sorted sequence of invocations being merged.
+	 */
+	private static abstract class Source {
+		CapturedInvocation head;
+
+		/**
+		 * Moves to the next invocation; returns false if there is none.
+		 */
+		abstract boolean advance() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	@FunctionalInterface
+	private interface Sink {
+		void accept(CapturedInvocation invocation) throws IOException;
+	}
+
+	SpillingInvocationCapture(int maxInMemory, @NotNull Consumer<MethodInvocation> categorizer) {
+		this(maxInMemory, DEFAULT_MAX_FAN_IN, categorizer);
+	}
+
+	/**
+	 * @param maxFanIn How many sources (runs and the invocations in memory) are merged at once.
+	 */
+	SpillingInvocationCapture(int maxInMemory, int maxFanIn, @NotNull Consumer<MethodInvocation> categorizer) {
+		if (maxInMemory < 1) {
+			throw new IllegalArgumentException("Number of invocations kept in memory must be positive: " + maxInMemory);
+		}
+		if (maxFanIn < 2) {
+			throw new IllegalArgumentException("At least two sources must be merged at once: " + maxFanIn);
+		}
+		this.maxInMemory = maxInMemory;
+		this.maxFanIn = maxFanIn;
+		this.categorizer = categorizer;
+	}
+
+	@Override
+	public synchronized void add(@NotNull MethodInvocation invocation, long order) throws IOException {
+		count++;
+		inMemory.add(new Candidate(invocation, order));
+		if (inMemory.size() >= maxInMemory) {
+			spill();
+		}
+	}
+
+	private void spill() throws IOException {
+		inMemory.sort(Candidate.SLOWEST_FIRST);
+		File file = File.createTempFile("long-invocations-", ".run");
+		file.deleteOnExit();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+			for (Candidate candidate : inMemory) {
+				CapturedInvocation.of(candidate, categorizer).write(out);
+			}
+		}
+		runs.add(new Run(file, inMemory.size()));
+		LOGGER.debug("Spilled {} long invocations to {} (run #{})", inMemory.size(), file, runs.size());
+		inMemory.clear();
+	}
+
+	@Override
+	public synchronized void forEachSlowest(@NotNull Consumer<CapturedInvocation> consumer) throws IOException {
+		inMemory.sort(Candidate.SLOWEST_FIRST);
+		while (runs.size() >= maxFanIn) {                  // one more source is the memory
+			mergeRuns(new ArrayList<>(runs.subList(0, maxFanIn)));
+		}
+		List<Source> sources = new ArrayList<>();
+		try {
+			for (Run run : runs) {
+				sources.add(openRun(run));
+			}
+			sources.add(memorySource());
+			merge(sources, consumer::accept);
+		} finally {
+			for (Source source : sources) {
+				source.close();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the runs by a single one (put at the end, so that the runs are merged evenly).
+	 */
+	private void mergeRuns(List<Run> toMerge) throws IOException {
+		File file = File.createTempFile("long-invocations-", ".run");
+		file.deleteOnExit();
+		int size = 0;
+		List<Source> sources = new ArrayList<>();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+			for (Run run : toMerge) {
+				sources.add(openRun(run));
+				size += run.size;
+			}
+			merge(sources, invocation -> invocation.write(out));
+		} catch (IOException | RuntimeException e) {
+			if (!file.delete()) {
+				LOGGER.warn("Couldn't delete temporary file {}", file);
+			}
+			throw e;
+		} finally {
+			for (Source source : sources) {
+				source.close();
+			}
+		}
+		runs.removeAll(toMerge);
+		runs.add(new Run(file, size));
+		for (Run run : toMerge) {
+			deleteRun(run);
+		}
+		LOGGER.debug("Merged {} runs into {} ({} long invocations)", toMerge.size(), file, size);
+	}
+
+	private void merge(List<Source> sources, Sink sink) throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<>(sources.size() + 1,
+				(s1, s2) -> CapturedInvocation.SLOWEST_FIRST.compare(s1.head, s2.head));
+		for (Source source : sources) {
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+		while (!queue.isEmpty()) {
+			Source source = queue.poll();
+			sink.accept(source.head);
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+	}
+
+	private Source openRun(Run run) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BUFFER_SIZE));
+		return new Source() {
+			private int remaining = run.size;
+
+			@Override
+			boolean advance() throws IOException {
+				head = remaining-- > 0 ? CapturedInvocation.read(in) : null;
+				return head != null;
+			}
+
+			@Override
+			void close() throws IOException {
+				in.close();
+			}
+		};
+	}
+
+	private Source memorySource() {
+		Iterator<Candidate> iterator = inMemory.iterator();
+		return new Source() {
+			@Override
+			boolean advance() {
+				head = iterator.hasNext() ? CapturedInvocation.of(iterator.next(), categorizer) : null;
+				return head != null;
+			}
+		};
+	}
+
+	@Override
+	public synchronized long getCount() {
+		return count;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (Run run : runs) {
+			deleteRun(run);
+		}
+		runs.clear();
+		inMemory.clear();
+	}
+
+	private void deleteRun(Run run) {
+		if (!run.file.delete()) {
+			LOGGER.warn("Couldn't delete temporary file {}", run.file);
+		}
+	}
+}
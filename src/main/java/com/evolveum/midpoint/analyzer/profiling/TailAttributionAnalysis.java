@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.IntObjectMap;
+import com.evolveum.midpoint.analyzer.util.LogEntry;
+import com.evolveum.midpoint.analyzer.util.LogLinearHistogram;
+import com.evolveum.midpoint.analyzer.util.SymbolPredicate;
+import com.evolveum.midpoint.analyzer.util.SymbolTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Tells what the slow invocations of main methods spend their extra time on. Invocations of each main method are
+ * divided into bands by their execution time percentiles (e.g. p0-50, p50-90, p90-99, p99-100), and the self time
+ * of methods called from them (see {@link CallStacks}) is averaged per band. The difference between a band and
+ * the median band (the first one) is then attributed to the methods whose self time grew the most.
+ *
+ * Percentiles are known only at the end, so the aggregates are kept per bucket of execution time (with the precision
+ * of {@link #PRECISION} significant digits); buckets are assigned to bands at the end. So the memory does not depend
+ * on the number of invocations, and the band boundaries are precise up to the bucket width.
+ */
+public class TailAttributionAnalysis implements ProfilingAnalysis {
+
+	private static final int PRECISION = 1;                     // significant digits, i.e. buckets ~10 % wide
+	private static final int MAX_OPEN_CALLS_PER_THREAD = 1000;
+
+	@NotNull private final File outputFile;
+	@NotNull private final Predicate<String> mainMethodPredicate;
+	@NotNull private final double[] bandBoundaries;             // percentiles
+
+	private SymbolTable methods;
+	private SymbolPredicate mainMethods;
+
+	/**
+	 * Self times (and calls) of methods, indexed by method id.
+	 */
+	private static class MethodTimes {
+		private long[] selfTimes = new long[0];
+		private long[] calls = new long[0];
+
+		private void add(int methodId, long selfTime, long callCount) {
+			if (methodId >= selfTimes.length) {
+				int length = Math.max(methodId + 1, selfTimes.length * 2);
+				selfTimes = Arrays.copyOf(selfTimes, length);
+				calls = Arrays.copyOf(calls, length);
+			}
+			selfTimes[methodId] += selfTime;
+			calls[methodId] += callCount;
+		}
+
+		private void add(MethodTimes other) {
+			for (int i = 0; i < other.selfTimes.length; i++) {
+				if (other.calls[i] > 0) {
+					add(i, other.selfTimes[i], other.calls[i]);
+				}
+			}
+		}
+
+		private long getSelfTime(int methodId) {
+			return methodId < selfTimes.length ? selfTimes[methodId] : 0;
+		}
+
+		private long getCalls(int methodId) {
+			return methodId < calls.length ? calls[methodId] : 0;
+		}
+	}
+
+	/**
+	 * Invocations of a main method with similar execution times (or within a band).
+	 */
+	private static class Aggregate {
+		private long count;
+		private long timeSum;
+		private long maxTime;
+		private final MethodTimes methodTimes = new MethodTimes();
+
+		private void add(Aggregate other) {
+			count += other.count;
+			timeSum += other.timeSum;
+			maxTime = Math.max(maxTime, other.maxTime);
+			methodTimes.add(other.methodTimes);
+		}
+
+		private double getAverageTime() {
+			return count > 0 ? (double) timeSum / count : 0;
+		}
+
+		private double getAverageSelfTime(int methodId) {
+			return count > 0 ? (double) methodTimes.getSelfTime(methodId) / count : 0;
+		}
+	}
+
+	private static class MainMethodStatistics {
+		private final LogLinearHistogram times = new LogLinearHistogram(PRECISION);
+		private final IntObjectMap<Aggregate> buckets = new IntObjectMap<>();
+	}
+
+	private final IntObjectMap<MainMethodStatistics> statistics = new IntObjectMap<>();      // main method id -> statistics
+
+	private static class Frame extends CallStacks.Frame {
+		private final Frame main;                           // the enclosing main method invocation (or this one)
+		private final MethodTimes methodTimes;              // only for main method invocations
+
+		private Frame(ProfilingItem entry, Frame main, boolean isMain) {
+			super(entry);
+			this.main = isMain ? this : main;
+			this.methodTimes = isMain ? new MethodTimes() : null;
+		}
+	}
+
+	private final CallStacks<Frame> stacks = new CallStacks<>(MAX_OPEN_CALLS_PER_THREAD, new CallStacks.Listener<Frame>() {
+		@NotNull
+		@Override
+		public Frame onEntry(@NotNull ProfilingItem entry, @Nullable Frame parent, @NotNull Deque<Frame> stack) {
+			Frame main = parent != null ? parent.main : null;
+			return new Frame(entry, main, main == null && mainMethods.test(entry.methodId));
+		}
+
+		@Override
+		public void onExit(@NotNull Frame frame, long time, long selfTime, @Nullable Frame parent) {
+			if (frame.main != null) {
+				frame.main.methodTimes.add(frame.methodId, selfTime, 1);
+				if (frame.main == frame) {
+					record(frame, time);
+				}
+			}
+		}
+	});
+
+	/**
+	 * @param bandBoundaries Percentiles dividing the bands, in ascending order; e.g. 50, 90, 99.
+	 */
+	public TailAttributionAnalysis(@NotNull File outputFile, @NotNull Predicate<String> mainMethodPredicate,
+			@NotNull double[] bandBoundaries) {
+		for (int i = 0; i < bandBoundaries.length; i++) {
+			if (bandBoundaries[i] <= 0 || bandBoundaries[i] >= 100 || i > 0 && bandBoundaries[i] <= bandBoundaries[i - 1]) {
+				throw new IllegalArgumentException("Band boundaries must be ascending percentiles between 0 and 100: "
+						+ Arrays.toString(bandBoundaries));
+			}
+		}
+		this.outputFile = outputFile;
+		this.mainMethodPredicate = mainMethodPredicate;
+		this.bandBoundaries = bandBoundaries.clone();
+	}
+
+	@Override
+	public void start(@NotNull AnalysisContext context) {
+		methods = context.getMethodSymbols();
+		mainMethods = new SymbolPredicate(methods, mainMethodPredicate);
+	}
+
+	@Override
+	public void onNewBatch(int batchNumber, @NotNull LogEntry firstEntry) {
+		stacks.clear();
+	}
+
+	@Override
+	public void onItem(@NotNull ProfilingItem item) {
+		stacks.process(item);
+	}
+
+	private void record(Frame mainFrame, long time) {
+		MainMethodStatistics methodStatistics = statistics.get(mainFrame.methodId);
+		if (methodStatistics == null) {
+			methodStatistics = new MainMethodStatistics();
+			statistics.put(mainFrame.methodId, methodStatistics);
+		}
+		methodStatistics.times.recordValue(time);
+		int bucketIndex = methodStatistics.times.getBucketIndex(time);
+		Aggregate bucket = methodStatistics.buckets.get(bucketIndex);
+		if (bucket == null) {
+			bucket = new Aggregate();
+			methodStatistics.buckets.put(bucketIndex, bucket);
+		}
+		bucket.count++;
+		bucket.timeSum += time;
+		bucket.maxTime = Math.max(bucket.maxTime, time);
+		bucket.methodTimes.add(mainFrame.methodTimes);
+	}
+
+	@Override
+	public void refresh() throws IOException {
+		end();
+	}
+
+	@Override
+	public void end() throws IOException {
+		PrintWriter pw = new PrintWriter(new FileWriter(outputFile));
+		pw.println("MainMethod;Band;Invocations;AvgMicros;ExtraMicros;Method;AvgCalls;AvgSelfMicros;MedianBandAvgSelfMicros;ExtraSelfMicros;ShareOfExtra");
+		List<Integer> mainMethodIds = new ArrayList<>();
+		statistics.forEach((methodId, s) -> mainMethodIds.add(methodId));
+		mainMethodIds.sort(Comparator.comparing(methods::getName));
+		for (int mainMethodId : mainMethodIds) {
+			Aggregate[] bands = getBands(statistics.get(mainMethodId));
+			Aggregate median = bands[0];
+			for (int band = 0; band < bands.length; band++) {
+				Aggregate aggregate = bands[band];
+				if (aggregate.count == 0) {
+					continue;
+				}
+				double extra = aggregate.getAverageTime() - median.getAverageTime();
+				List<Integer> methodIds = new ArrayList<>();
+				for (int id = 0; id < methods.size(); id++) {
+					if (aggregate.methodTimes.getCalls(id) > 0 || median.methodTimes.getCalls(id) > 0) {
+						methodIds.add(id);
+					}
+				}
+				// methods contributing most to the difference from the median band go first
+				methodIds.sort(Comparator.comparingDouble((Integer id) ->
+						-(aggregate.getAverageSelfTime(id) - median.getAverageSelfTime(id))).thenComparing(methods::getName));
+				for (int id : methodIds) {
+					double extraSelf = aggregate.getAverageSelfTime(id) - median.getAverageSelfTime(id);
+					pw.println(String.format(Locale.US, "%s;%s;%d;%.0f;%.0f;%s;%.2f;%.0f;%.0f;%.0f;%s",
+							methods.getName(mainMethodId), getBandName(band), aggregate.count, aggregate.getAverageTime(),
+							extra, methods.getName(id), (double) aggregate.methodTimes.getCalls(id) / aggregate.count,
+							aggregate.getAverageSelfTime(id), median.getAverageSelfTime(id), extraSelf,
+							band > 0 && extra > 0 ? String.format(Locale.US, "%.3f", extraSelf / extra) : ""));
+				}
+			}
+		}
+		pw.close();
+	}
+
+	/**
+	 * Merges the buckets into bands. A bucket belongs to the band its values fall into (values at a boundary percentile
+	 * belong to the lower band).
+	 */
+	private Aggregate[] getBands(MainMethodStatistics methodStatistics) {
+		long[] thresholds = new long[bandBoundaries.length];
+		for (int i = 0; i < bandBoundaries.length; i++) {
+			thresholds[i] = methodStatistics.times.getValueAtPercentile(bandBoundaries[i]);
+		}
+		Aggregate[] bands = new Aggregate[bandBoundaries.length + 1];
+		for (int i = 0; i < bands.length; i++) {
+			bands[i] = new Aggregate();
+		}
+		methodStatistics.buckets.forEach((index, bucket) -> {
+			int band = 0;
+			while (band < thresholds.length && bucket.maxTime > thresholds[band]) {
+				band++;
+			}
+			bands[band].add(bucket);
+		});
+		return bands;
+	}
+
+	private String getBandName(int band) {
+		return "p" + formatPercentile(band > 0 ? bandBoundaries[band - 1] : 0) + "-"
+				+ formatPercentile(band < bandBoundaries.length ? bandBoundaries[band] : 100);
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+	}
+}
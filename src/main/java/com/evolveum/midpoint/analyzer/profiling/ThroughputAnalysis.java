@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.LogEntryView;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Counts log entries with messages matching a pattern (e.g. the ones marking processed objects), per minute
+ * from the first log entry. This is what {@link com.evolveum.midpoint.analyzer.misc.ThroughputExtractor} does
+ * for a separate file of selected lines, but here it is done in the same pass as other analyses.
+ */
+public class ThroughputAnalysis implements ProfilingAnalysis {
+
+	@NotNull private final File outputFile;
+	@NotNull private final Pattern messagePattern;
+
+	private long firstTimestamp = -1;
+	private int[] counts = new int[60];
+	private int minutes;
+
+	public ThroughputAnalysis(@NotNull File outputFile, @NotNull Pattern messagePattern) {
+		this.outputFile = outputFile;
+		this.messagePattern = messagePattern;
+	}
+
+	@Override
+	public boolean needsLogEntries() {
+		return true;
+	}
+
+	@Override
+	public void onLogEntry(@NotNull LogEntryView entry) {
+		if (firstTimestamp < 0) {
+			firstTimestamp = entry.getTimestamp();
+		}
+		if (messagePattern.matcher(entry.getMessageView()).find()) {
+			int minute = (int) ((entry.getTimestamp() - firstTimestamp) / 60000);
+			if (minute < 0) {
+				return;             // entries are ordered by timestamps, so this should not happen
+			}
+			if (minute >= counts.length) {
+				counts = Arrays.copyOf(counts, Math.max(minute + 1, counts.length * 2));
+			}
+			counts[minute]++;
+			minutes = Math.max(minutes, minute + 1);
+		}
+	}
+
+	@Override
+	public void refresh() throws IOException {
+		end();
+	}
+
+	@Override
+	public void end() throws IOException {
+		PrintWriter pw = new PrintWriter(new FileWriter(outputFile));
+		pw.println("Minute;Entries");
+		for (int i = 0; i < minutes; i++) {
+			pw.println(i + ";" + counts[i]);
+		}
+		pw.close();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.midpoint.analyzer.profiling;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps only the slowest K invocations of each group (e.g. of each method), in a bounded min-heap per group:
+ * the fastest kept invocation is at the top and is replaced when a slower one comes.
+ *
+ * Of invocations with the same execution time, the ones with lower order keys are kept, so the result is the same
+ * as taking the first K invocations of each group from all invocations ordered by {@link InvocationCapture.Candidate#SLOWEST_FIRST}.
+ */
+class TopInvocationCapture implements InvocationCapture {
+
+	private static final Comparator<Candidate> FASTEST_FIRST = Candidate.SLOWEST_FIRST.reversed();
+
+	private final int limit;
+	@NotNull private final Function<MethodInvocation, String> grouping;
+	@NotNull private final Consumer<MethodInvocation> categorizer;
+	private final boolean groupingNeedsCategory;
+
+	private final Map<String, PriorityQueue<Candidate>> heaps = new HashMap<>();
+	private long count;
+
+	/**
+	 * @param grouping Group of the invocation.
+	 * @param groupingNeedsCategory Whether the grouping uses the category. If so, each invocation is categorized before
+	 * it is grouped, which can mean reading its arguments from the log; otherwise only the kept invocations
+	 * are categorized, when they are written.
+	 */
+	TopInvocationCapture(int limit, @NotNull Function<MethodInvocation, String> grouping, boolean groupingNeedsCategory,
+			@NotNull Consumer<MethodInvocation> categorizer) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limit must be positive: " + limit);
+		}
+		this.limit = limit;
+		this.grouping = grouping;
+		this.categorizer = categorizer;
+		this.groupingNeedsCategory = groupingNeedsCategory;
+	}
+
+	@Override
+	public synchronized void add(@NotNull MethodInvocation invocation, long order) {
+		count++;
+		Candidate candidate = new Candidate(invocation, order);
+		if (groupingNeedsCategory) {
+			categorizer.accept(invocation);
+		}
+		PriorityQueue<Candidate> heap = heaps.computeIfAbsent(grouping.apply(invocation),
+				k -> new PriorityQueue<>(limit, FASTEST_FIRST));
+		if (heap.size() < limit) {
+			heap.add(candidate);
+		} else if (FASTEST_FIRST.compare(candidate, heap.peek()) > 0) {
+			heap.poll();
+			heap.add(candidate);
+		}
+	}
+
+	@Override
+	public synchronized void forEachSlowest(@NotNull Consumer<CapturedInvocation> consumer) {
+		List<Candidate> all = new ArrayList<>();
+		heaps.values().forEach(all::addAll);
+		all.sort(Candidate.SLOWEST_FIRST);
+		for (Candidate candidate : all) {
+			consumer.accept(CapturedInvocation.of(candidate, categorizer));
+		}
+	}
+
+	@Override
+	public synchronized long getCount() {
+		return count;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+/**
+ * Dimension of profiling data, used by {@link DimensionalAggregator}. Values of all dimensions are non-negative
+ * integers (usually ids from a symbol table) that fit into the given number of bits. The highest value is reserved
+ * for values that do not fit.
+ *
+ * The order of the constants is the order in which dimension values appear in group names.
+ */
+public enum Dimension {
+
+	METHOD(20),
+	BATCH(12),
+	THREAD_TYPE(2),
+	THREAD(16),
+	CATEGORY(8),
+	MINUTE(20),             // since the beginning of the log
+	NODE(8);
+
+	private final int bits;
+
+	Dimension(int bits) {
+		this.bits = bits;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public long getMaxValue() {
+		return (1L << bits) - 1;
+	}
+}
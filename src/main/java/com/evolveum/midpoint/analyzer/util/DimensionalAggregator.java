@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Aggregates values (e.g. execution times) into {@link Histogram} variables by groups defined by values
+ * of selected dimensions, like (method), (method, thread type) or (method, batch, thread type).
+ *
+ * Groups are identified by the values of their dimensions packed into a single long, so recording a value
+ * means only packing the key and looking up the aggregator cell (a histogram variable) in a primitive map.
+ * Names of variables (dimension values joined by ':') are created only when a group appears for the first time.
+ *
+ * Only the finest group-by sets are recorded. The coarser ones (e.g. "all thread types" for (method) when
+ * (method, thread type) is recorded) are derived from them by {@link #updateRollUps()}.
+ *
+ * Values that do not fit into the bits of their dimension (e.g. the 65536th thread) are aggregated together
+ * into the "other" group of the dimension, which has the highest value.
+ *
+ * Not thread-safe.
+ */
+public class DimensionalAggregator {
+
+	private static final Trace LOGGER = TraceManager.getTrace(DimensionalAggregator.class);
+
+	private static final String OTHER = "other";
+
+	@FunctionalInterface
+	public interface ValueFormatter {
+		@NotNull String format(@NotNull Dimension dimension, long value);
+	}
+
+	/**
+	 * A set of dimensions with the layout of their values in a packed key.
+	 */
+	public static class GroupBy {
+
+		@NotNull private final Set<Dimension> dimensions;
+		private final int[] shifts = new int[Dimension.values().length];           // -1 if the dimension is not present
+
+		GroupBy(@NotNull Set<Dimension> dimensions) {
+			this.dimensions = dimensions.isEmpty() ? EnumSet.noneOf(Dimension.class) : EnumSet.copyOf(dimensions);
+			Arrays.fill(shifts, -1);
+			int shift = 0;
+			for (Dimension dimension : this.dimensions) {
+				shifts[dimension.ordinal()] = shift;
+				shift += dimension.getBits();
+			}
+			if (shift > Long.SIZE) {
+				throw new IllegalArgumentException("Dimensions " + dimensions + " need " + shift + " bits; at most "
+						+ Long.SIZE + " are available");
+			}
+		}
+
+		@NotNull
+		public Set<Dimension> getDimensions() {
+			return Collections.unmodifiableSet(dimensions);
+		}
+
+		long pack(long[] coordinates) {
+			long key = 0;
+			for (Dimension dimension : dimensions) {
+				long value = coordinates[dimension.ordinal()];
+				if (value < 0 || value > dimension.getMaxValue()) {
+					throw new IllegalArgumentException("Value " + value + " of " + dimension + " does not fit into "
+							+ dimension.getBits() + " bits");
+				}
+				key |= value << shifts[dimension.ordinal()];
+			}
+			return key;
+		}
+
+		long getValue(long key, Dimension dimension) {
+			return (key >>> shifts[dimension.ordinal()]) & dimension.getMaxValue();
+		}
+
+		/**
+		 * Converts the key of the finer group-by into the key of this one.
+		 */
+		long project(long finerKey, GroupBy finer) {
+			long key = 0;
+			for (Dimension dimension : dimensions) {
+				key |= finer.getValue(finerKey, dimension) << shifts[dimension.ordinal()];
+			}
+			return key;
+		}
+
+		String getName(long key, ValueFormatter formatter) {
+			StringJoiner joiner = new StringJoiner(":");
+			for (Dimension dimension : dimensions) {
+				long value = getValue(key, dimension);
+				joiner.add(value == dimension.getMaxValue() ? OTHER : formatter.format(dimension, value));
+			}
+			return joiner.toString();
+		}
+
+		private boolean isCoarserThan(GroupBy other) {
+			return other.dimensions.containsAll(dimensions) && !dimensions.equals(other.dimensions);
+		}
+
+		@Override
+		public String toString() {
+			return dimensions.toString();
+		}
+	}
+
+	/**
+	 * Group-by set with its cells (histogram variables) indexed by packed keys.
+	 */
+	private static class Groups {
+		@NotNull private final GroupBy groupBy;
+		@NotNull private final LongObjectMap<Histogram.Variable> cells = new LongObjectMap<>();
+		private Groups source;                  // for derived groups: the recorded ones they are derived from
+
+		private Groups(@NotNull GroupBy groupBy) {
+			this.groupBy = groupBy;
+		}
+	}
+
+	@NotNull private final Histogram histogram;
+	@NotNull private final ValueFormatter formatter;
+	@NotNull private final List<Groups> recorded = new ArrayList<>();
+	@NotNull private final List<Groups> derived = new ArrayList<>();
+	@NotNull private final Set<Dimension> usedDimensions = EnumSet.noneOf(Dimension.class);
+	@NotNull private final Set<Dimension> overflowedDimensions = EnumSet.noneOf(Dimension.class);
+	private final long[] fittingCoordinates = new long[Dimension.values().length];
+
+	/**
+	 * @param histogram Histogram where the variables are created.
+	 * @param groupBys Group-by sets to be maintained. Those that are subsets of others are derived, not recorded.
+	 * @param formatter Formats dimension values for variable names.
+	 */
+	public DimensionalAggregator(@NotNull Histogram histogram, @NotNull Collection<? extends Set<Dimension>> groupBys,
+			@NotNull ValueFormatter formatter) {
+		this.histogram = histogram;
+		this.formatter = formatter;
+		List<GroupBy> all = new ArrayList<>();
+		for (Set<Dimension> dimensions : new LinkedHashSet<>(groupBys)) {
+			all.add(new GroupBy(dimensions));
+			usedDimensions.addAll(dimensions);
+		}
+		for (GroupBy groupBy : all) {
+			if (all.stream().noneMatch(groupBy::isCoarserThan)) {
+				recorded.add(new Groups(groupBy));
+			}
+		}
+		for (GroupBy groupBy : all) {
+			if (all.stream().anyMatch(groupBy::isCoarserThan)) {
+				Groups groups = new Groups(groupBy);
+				// the recorded source with the least dimensions, as it has (probably) the least groups
+				groups.source = recorded.stream()
+						.filter(r -> groupBy.isCoarserThan(r.groupBy))
+						.min(Comparator.comparingInt(r -> r.groupBy.dimensions.size()))
+						.orElseThrow(() -> new AssertionError("No source for " + groupBy));
+				derived.add(groups);
+			}
+		}
+	}
+
+	/**
+	 * Is the dimension used in any group-by? Values of unused dimensions need not be provided.
+	 */
+	public boolean uses(Dimension dimension) {
+		return usedDimensions.contains(dimension);
+	}
+
+	/**
+	 * Records the value.
+	 *
+	 * @param coordinates Values of dimensions, indexed by {@link Dimension#ordinal()}.
+	 */
+	public void record(long[] coordinates, long value) {
+		for (Dimension dimension : usedDimensions) {
+			fittingCoordinates[dimension.ordinal()] = fit(dimension, coordinates[dimension.ordinal()]);
+		}
+		for (Groups groups : recorded) {
+			long key = groups.groupBy.pack(fittingCoordinates);
+			Histogram.Variable cell = groups.cells.get(key);
+			if (cell == null) {
+				cell = histogram.getVariable(groups.groupBy.getName(key, formatter));
+				groups.cells.put(key, cell);
+			}
+			cell.add(value);
+		}
+	}
+
+	/**
+	 * Returns the value, or the highest one (the "other" group) if it does not fit into the bits of the dimension.
+	 */
+	private long fit(Dimension dimension, long value) {
+		if (value >= 0 && value < dimension.getMaxValue()) {
+			return value;
+		}
+		if (overflowedDimensions.add(dimension)) {
+			LOGGER.warn("Value {} of {} does not fit into {} bits; such values are aggregated as '{}'", value,
+					dimension, dimension.getBits(), OTHER);
+		}
+		return dimension.getMaxValue();
+	}
+
+	/**
+	 * Recomputes the derived (coarser) groups from the recorded ones. Must be called before the histogram is used.
+	 */
+	public void updateRollUps() {
+		for (Groups groups : derived) {
+			groups.cells.forEach((key, cell) -> cell.reset());
+			GroupBy groupBy = groups.groupBy;
+			GroupBy sourceGroupBy = groups.source.groupBy;
+			groups.source.cells.forEach((sourceKey, sourceCell) -> {
+				long key = groupBy.project(sourceKey, sourceGroupBy);
+				Histogram.Variable cell = groups.cells.get(key);
+				if (cell == null) {
+					cell = histogram.getVariable(groupBy.getName(key, formatter));
+					groups.cells.put(key, cell);
+				}
+				cell.merge(sourceCell);
+			});
+		}
+	}
+}
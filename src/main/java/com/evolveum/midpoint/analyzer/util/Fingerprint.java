@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+/**
+ * 64-bit fingerprints of texts (FNV-1a), computed over a char sequence without creating a String. So texts can be
+ * compared for equality without keeping them; with 64 bits, collisions are negligible even for billions of texts.
+ *
+ * Texts are normalized first, so that texts differing only in irrelevant details get the same fingerprint: runs
+ * of whitespace are taken as a single space (and ignored at both ends), and identity hash codes of objects
+ * (like "@1b2c3d4" in "OperationResult@1b2c3d4") are ignored.
+ */
+public class Fingerprint {
+
+	public static final long NONE = 0L;
+
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	/**
+	 * Returns the fingerprint of the normalized text; never {@link #NONE}.
+	 */
+	public static long of(CharSequence text, int start, int end) {
+		long hash = OFFSET_BASIS;
+		boolean pendingSpace = false;
+		boolean started = false;
+		int i = start;
+		while (i < end) {
+			char c = text.charAt(i++);
+			if (Character.isWhitespace(c)) {
+				pendingSpace = started;
+				continue;
+			}
+			if (c == '@') {
+				int hashEnd = i;
+				while (hashEnd < end && isHexDigit(text.charAt(hashEnd))) {
+					hashEnd++;
+				}
+				// not e.g. "@example.com"
+				if (hashEnd > i && (hashEnd == end || !Character.isLetterOrDigit(text.charAt(hashEnd)))) {
+					i = hashEnd;
+					continue;
+				}
+			}
+			if (pendingSpace) {
+				hash = (hash ^ ' ') * PRIME;
+				pendingSpace = false;
+			}
+			// both bytes of the char, so non-ASCII chars are distinguished
+			hash = (hash ^ (c & 0xff)) * PRIME;
+			hash = (hash ^ (c >>> 8)) * PRIME;
+			started = true;
+		}
+		return hash != NONE ? hash : 1L;
+	}
+
+	public static long of(CharSequence text) {
+		return of(text, 0, text.length());
+	}
+
+	/**
+	 * Combines two fingerprints (or a fingerprint and an id), e.g. a method and its arguments, into one.
+	 * The result depends on the order of the arguments.
+	 */
+	public static long combine(long first, long second) {
+		long hash = first * PRIME ^ second;
+		// the finalizer of MurmurHash3, so that similar inputs give very different results
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash != NONE ? hash : 1L;
+	}
+
+	private static boolean isHexDigit(char c) {
+		return c >= '0' && c <= '9' || c >= 'a' && c <= 'f';
+	}
+}
@@ -16,31 +16,64 @@
 
 package com.evolveum.midpoint.analyzer.util;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.util.*;
 
 /**
+ * Values (durations in microseconds) per variable (e.g. method). For each variable, two views are kept:
+ *
+ * - counts in linear buckets of fixed size up to the upper boundary (all larger values fall into the last bucket);
+ * - a {@link LogLinearHistogram} covering all values with bounded relative error, used for percentiles.
  *
+ * Histograms with the same parameters can be merged.
  */
 public class Histogram {
 
+	public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
 	private final long bucketSize;
 	private final long upperBoundary;
+	private final int significantDigits;
 	private long absoluteMaximum;
 
 	public class Variable {
 		private String name;
-		private final List<Integer> counts = new ArrayList<>();
+		private int[] counts = new int[0];
+		private final LogLinearHistogram values = new LogLinearHistogram(significantDigits);
 
 		Variable(String name) {
 			this.name = name;
 		}
 
-		void add(long value) {
+		public void add(long value) {
 			int bucket = (int) (Math.min(value, upperBoundary) / bucketSize);
-			while (counts.size() <= bucket) {
-				counts.add(0);
+			if (counts.length <= bucket) {
+				counts = Arrays.copyOf(counts, bucket + 1);
+			}
+			counts[bucket]++;
+			values.recordValue(value);
+			if (value > absoluteMaximum) {
+				absoluteMaximum = value;
 			}
-			counts.set(bucket, counts.get(bucket) + 1);
+		}
+
+		/**
+		 * Adds all values of the other variable (of this or another histogram with the same parameters).
+		 */
+		public void merge(Variable other) {
+			if (counts.length < other.counts.length) {
+				counts = Arrays.copyOf(counts, other.counts.length);
+			}
+			for (int i = 0; i < other.counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			values.merge(other.values);
+		}
+
+		public void reset() {
+			Arrays.fill(counts, 0);
+			values.reset();
 		}
 
 		public String getName() {
@@ -48,32 +81,67 @@ public class Histogram {
 		}
 
 		public int getBucket(int number) {
-			return number < counts.size() ? counts.get(number) : 0;
+			return number < counts.length ? counts[number] : 0;
+		}
+
+		/**
+		 * All values of the variable, for computing percentiles.
+		 */
+		public LogLinearHistogram getValues() {
+			return values;
 		}
 	}
 
 	private final Map<String, Variable> variables = new TreeMap<>();
 
 	public Histogram(long bucketSize, long upperBoundary) {
+		this(bucketSize, upperBoundary, DEFAULT_SIGNIFICANT_DIGITS);
+	}
+
+	/**
+	 * @param significantDigits Precision of percentiles; see {@link LogLinearHistogram}.
+	 */
+	public Histogram(long bucketSize, long upperBoundary, int significantDigits) {
 		this.bucketSize = bucketSize;
 		this.upperBoundary = upperBoundary;
+		this.significantDigits = significantDigits;
 	}
 
 	public void addValue(String variableName, long value) {
-		variables.computeIfAbsent(variableName, Variable::new);
-		variables.get(variableName).add(value);
-		if (value > absoluteMaximum) {
-			absoluteMaximum = value;
+		getVariable(variableName).add(value);
+	}
+
+	/**
+	 * Returns the variable (creating it if needed). Callers adding many values can keep it to avoid name lookups.
+	 */
+	public Variable getVariable(String variableName) {
+		return variables.computeIfAbsent(variableName, Variable::new);
+	}
+
+	/**
+	 * Adds all values of the other histogram, e.g. one collected by another worker.
+	 */
+	public void merge(@NotNull Histogram other) {
+		if (other.bucketSize != bucketSize || other.upperBoundary != upperBoundary || other.significantDigits != significantDigits) {
+			throw new IllegalArgumentException("Cannot merge histograms with different parameters");
+		}
+		for (Variable otherVariable : other.variables.values()) {
+			getVariable(otherVariable.name).merge(otherVariable);
 		}
+		absoluteMaximum = Math.max(absoluteMaximum, other.absoluteMaximum);
 	}
 
 	public String[] getVariableNames() {
 		return variables.keySet().toArray(new String[0]);
 	}
 
+	public Collection<Variable> getVariables() {
+		return Collections.unmodifiableCollection(variables.values());
+	}
+
 	public int getBuckets() {
 		return variables.values().stream()
-				.mapToInt(v -> v.counts.size())
+				.mapToInt(v -> v.counts.length)
 				.max()
 				.orElse(0);
 	}
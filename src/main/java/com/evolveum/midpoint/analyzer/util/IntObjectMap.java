@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to (non-null) objects, using open addressing with linear probing. Unlike HashMap&lt;Integer, V&gt;
+ * it does not box the keys nor create entry objects.
+ *
+ * Not thread-safe.
+ */
+public class IntObjectMap<V> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] keys = new int[INITIAL_CAPACITY];
+	private Object[] values = new Object[INITIAL_CAPACITY];            // null means an empty slot
+	private int size;
+
+	@FunctionalInterface
+	public interface EntryConsumer<V> {
+		void accept(int key, V value);
+	}
+
+	public V get(int key) {
+		int index = find(key);
+		return index >= 0 ? value(index) : null;
+	}
+
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Returns the previous value, or null if there was none.
+	 */
+	public V put(int key, @NotNull V value) {
+		int mask = keys.length - 1;
+		int index = slot(key, mask);
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V previous = value(index);
+				values[index] = value;
+				return previous;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		if (2 * ++size > keys.length) {
+			rehash();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the removed value, or null if there was none.
+	 */
+	public V remove(int key) {
+		int index = find(key);
+		if (index < 0) {
+			return null;
+		}
+		V removed = value(index);
+		// shift the following entries of the probe sequence back, so no tombstones are needed
+		int mask = keys.length - 1;
+		int hole = index;
+		int next = (hole + 1) & mask;
+		while (values[next] != null) {
+			int home = slot(keys[next], mask);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Visits all entries (in no particular order). The map must not be modified during the visit.
+	 */
+	public void forEach(EntryConsumer<V> consumer) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				consumer.accept(keys[i], value(i));
+			}
+		}
+	}
+
+	private int find(int key) {
+		int mask = keys.length - 1;
+		int index = slot(key, mask);
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int slot(int key, int mask) {
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V value(int index) {
+		return (V) values[index];
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = slot(oldKeys[i], mask);
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		forEach((key, value) -> sb.append(sb.length() > 1 ? ", " : "").append(key).append('=').append(value));
+		return sb.append('}').toString();
+	}
+}
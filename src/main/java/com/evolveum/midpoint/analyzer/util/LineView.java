@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A line of a log file represented as a slice (offset, length) of a byte buffer.
+ * The content is decoded into a String only when asked for; pure ASCII lines are accessed directly.
+ *
+ * The view is reused by its reader: it is valid only until the next line is read.
+ */
+public class LineView implements CharSequence {
+
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+	private long offset;
+	private boolean ascii;
+
+	private String decoded;
+	private byte[] scratch = new byte[256];
+
+	void set(ByteBuffer buffer, int start, int end, long offset, boolean ascii) {
+		this.buffer = buffer;
+		this.start = start;
+		this.end = end;
+		this.offset = offset;
+		this.ascii = ascii;
+		this.decoded = null;
+	}
+
+	/**
+	 * Offset of the first byte of the line in the (uncompressed) log file.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Length of the line in bytes, without the line terminator.
+	 */
+	public int getByteLength() {
+		return end - start;
+	}
+
+	public boolean isAscii() {
+		return ascii;
+	}
+
+	/**
+	 * Copies the bytes of the line into the array.
+	 */
+	void copyBytes(byte[] target, int position) {
+		ByteBuffer source = buffer.duplicate();
+		source.position(start);
+		source.get(target, position, end - start);
+	}
+
+	@Override
+	public int length() {
+		return ascii ? end - start : decode().length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (ascii) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException("index: " + index + ", length: " + (end - start));
+			}
+			return (char) (buffer.get(start + index) & 0xff);
+		} else {
+			return decode().charAt(index);
+		}
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		if (ascii) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + (end - start));
+			}
+			return bytesToString(start + from, start + to);
+		} else {
+			return decode().substring(from, to);
+		}
+	}
+
+	@NotNull
+	@Override
+	public String toString() {
+		return decode();
+	}
+
+	private String decode() {
+		if (decoded == null) {
+			decoded = bytesToString(start, end);
+		}
+		return decoded;
+	}
+
+	private String bytesToString(int from, int to) {
+		int length = to - from;
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		ByteBuffer source = buffer.duplicate();
+		source.position(from);
+		source.get(scratch, 0, length);
+		return new String(scratch, 0, length, ascii ? ISO_8859_1 : UTF_8);
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Access to log files that are compressed (idm.log.1.gz) or packed in archives (support bundles in zip, tar
+ * or tar.gz format). Archive members are addressed by their names.
+ */
+class LogArchives {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	enum Kind {
+		PLAIN, GZIP, ZIP, TAR, TAR_GZIP;
+
+		static Kind of(String name) {
+			String lowerCase = name.toLowerCase();
+			if (lowerCase.endsWith(".zip")) {
+				return ZIP;
+			} else if (lowerCase.endsWith(".tar")) {
+				return TAR;
+			} else if (lowerCase.endsWith(".tar.gz") || lowerCase.endsWith(".tgz")) {
+				return TAR_GZIP;
+			} else if (lowerCase.endsWith(".gz")) {
+				return GZIP;
+			} else {
+				return PLAIN;
+			}
+		}
+
+		boolean isArchive() {
+			return this == ZIP || this == TAR || this == TAR_GZIP;
+		}
+	}
+
+	@FunctionalInterface
+	interface MemberHandler {
+		/**
+		 * @param stream Uncompressed content of the member. Must not be closed by the handler.
+		 */
+		void handle(@NotNull String member, @NotNull InputStream stream) throws IOException;
+	}
+
+	/**
+	 * Calls the handler for each file member of the archive.
+	 */
+	static void forEachMember(@NotNull File archive, @NotNull MemberHandler handler) throws IOException {
+		Kind kind = Kind.of(archive.getName());
+		if (kind == Kind.ZIP) {
+			try (ZipFile zipFile = new ZipFile(archive)) {
+				Enumeration<? extends ZipEntry> entries = zipFile.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					if (!entry.isDirectory()) {
+						try (InputStream stream = decompressMember(entry.getName(), zipFile.getInputStream(entry))) {
+							handler.handle(entry.getName(), stream);
+						}
+					}
+				}
+			}
+		} else if (kind == Kind.TAR || kind == Kind.TAR_GZIP) {
+			try (InputStream stream = openFile(archive, kind)) {
+				TarReader tarReader = new TarReader(stream);
+				String member;
+				while ((member = tarReader.nextEntry()) != null) {
+					try (InputStream memberStream = decompressMember(member, tarReader.getEntryStream())) {
+						handler.handle(member, memberStream);            // closing the member does not close the archive
+					}
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Not an archive: " + archive);
+		}
+	}
+
+	/**
+	 * Opens the (uncompressed) content of a log file or an archive member. Decompression runs on a background thread.
+	 */
+	static InputStream open(@NotNull File file, @Nullable String member) throws IOException {
+		Kind kind = Kind.of(file.getName());
+		String name = member != null ? file + "!" + member : file.toString();
+		if (member == null) {
+			InputStream stream = openFile(file, kind);
+			return kind == Kind.GZIP ? new ReadAheadInputStream(stream, name) : stream;
+		} else if (kind == Kind.ZIP) {
+			ZipFile zipFile = new ZipFile(file);
+			ZipEntry entry = zipFile.getEntry(member);
+			if (entry == null) {
+				zipFile.close();
+				throw new FileNotFoundException("No " + member + " in " + file);
+			}
+			InputStream stream = new FilterInputStream(zipFile.getInputStream(entry)) {
+				@Override
+				public void close() throws IOException {
+					zipFile.close();
+				}
+			};
+			return new ReadAheadInputStream(decompressMember(member, stream), name);
+		} else if (kind == Kind.TAR || kind == Kind.TAR_GZIP) {
+			InputStream stream = openFile(file, kind);
+			TarReader tarReader = new TarReader(stream);
+			String current;
+			while ((current = tarReader.nextEntry()) != null) {
+				if (current.equals(member)) {
+					InputStream memberStream = new FilterInputStream(tarReader.getEntryStream()) {
+						@Override
+						public void close() throws IOException {
+							stream.close();
+						}
+					};
+					return new ReadAheadInputStream(decompressMember(member, memberStream), name);
+				}
+			}
+			stream.close();
+			throw new FileNotFoundException("No " + member + " in " + file);
+		} else {
+			throw new IllegalArgumentException("Not an archive: " + file);
+		}
+	}
+
+	/**
+	 * Members of a tar.gz archive that are to be read. Such an archive can be read only sequentially, so opening
+	 * its members one by one would decompress the archive from its beginning for each of them. Instead, the members
+	 * are streamed from a single pass over the archive: opening a member moves the pass forward to it, skipping
+	 * the members in between. So if the members are read in the order they are stored in, the archive is decompressed
+	 * only once. A member the pass has already gone by, or one opened while another member of the pass is being read,
+	 * is read by a separate pass.
+	 *
+	 * If spilling is enabled, pending members the pass goes by are extracted into temporary files (as they are stored,
+	 * i.e. gzipped members stay compressed), so that they need no separate pass. A temporary file is deleted when
+	 * its member is closed.
+	 *
+	 * Shared by all readers of the archive, so it is thread-safe.
+	 */
+	static class TarGzipMembers {
+
+		@NotNull private final File archive;
+		private boolean spilling;
+		private final Set<String> pending = new HashSet<>();            // to be read, not opened yet
+		private final Map<String, File> extracted = new HashMap<>();    // extracted, not opened yet
+
+		private InputStream passStream;                                 // null if the pass is not running
+		private TarReader passReader;
+		private boolean passFinished;
+		private boolean passBusy;                                       // a member of the pass is being read
+		private final Set<String> passed = new HashSet<>();             // members the pass has gone by
+
+		TarGzipMembers(@NotNull File archive) {
+			this.archive = archive;
+		}
+
+		synchronized void setSpilling(boolean spilling) {
+			this.spilling = spilling;
+		}
+
+		synchronized void add(@NotNull String member) {
+			pending.add(member);
+		}
+
+		/**
+		 * The member will not be read (e.g. it is outside of the time interval).
+		 */
+		synchronized void remove(@NotNull String member) {
+			pending.remove(member);
+			File file = extracted.remove(member);
+			if (file != null) {
+				deleteTempFile(file);
+			}
+			if (pending.isEmpty() && !passBusy) {
+				endPass();
+			}
+		}
+
+		InputStream open(@NotNull String member) throws IOException {
+			synchronized (this) {
+				pending.remove(member);
+				File file = extracted.remove(member);
+				if (file != null) {
+					return openExtracted(member, file);
+				}
+				if (!passBusy && !passed.contains(member)) {
+					InputStream stream = advanceTo(member);
+					if (stream != null) {
+						return stream;
+					}
+				}
+			}
+			return LogArchives.open(archive, member);              // a separate pass
+		}
+
+		/**
+		 * Moves the pass forward to the member, extracting pending members on the way if spilling is enabled.
+		 * Returns null if the member is not found (the pass is then finished).
+		 */
+		private InputStream advanceTo(String member) throws IOException {
+			if (passFinished) {
+				return null;
+			}
+			try {
+				if (passReader == null) {
+					passStream = openFile(archive, Kind.TAR_GZIP);
+					passReader = new TarReader(passStream);
+				}
+				String current;
+				while ((current = passReader.nextEntry()) != null) {
+					passed.add(current);
+					if (current.equals(member)) {
+						passBusy = true;
+						InputStream memberStream = new FilterInputStream(passReader.getEntryStream()) {
+							@Override
+							public void close() {
+								releasePass();              // the rest of the member is skipped by the pass
+							}
+						};
+						return new ReadAheadInputStream(decompressMember(member, memberStream), archive + "!" + member);
+					} else if (spilling && pending.contains(current) && !extracted.containsKey(current)) {
+						File file = File.createTempFile("log-member-", ".tmp");
+						file.deleteOnExit();
+						extracted.put(current, file);
+						Files.copy(passReader.getEntryStream(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				endPass();
+				throw e;
+			}
+			endPass();
+			return null;
+		}
+
+		private synchronized void releasePass() {
+			passBusy = false;
+			if (pending.isEmpty()) {
+				endPass();
+			}
+		}
+
+		private void endPass() {
+			passFinished = true;
+			passReader = null;
+			if (passStream != null) {
+				try {
+					passStream.close();
+				} catch (IOException e) {
+					// nothing more is read from it
+				}
+				passStream = null;
+			}
+		}
+
+		private InputStream openExtracted(String member, File tempFile) throws IOException {
+			InputStream stream = new BufferedInputStream(new FileInputStream(tempFile), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						deleteTempFile(tempFile);
+					}
+				}
+			};
+			return new ReadAheadInputStream(decompressMember(member, stream), archive + "!" + member);
+		}
+	}
+
+	private static void deleteTempFile(File file) {
+		if (!file.delete() && file.exists()) {
+			file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Opens the (uncompressed) content of a plain or gzipped file, decompressing on the current thread.
+	 */
+	static InputStream openFile(File file, Kind kind) throws IOException {
+		InputStream stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			return kind == Kind.GZIP || kind == Kind.TAR_GZIP ? new GZIPInputStream(stream, BUFFER_SIZE) : stream;
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+	}
+
+	private static InputStream decompressMember(String member, InputStream stream) throws IOException {
+		return Kind.of(member) == Kind.GZIP ? new GZIPInputStream(stream, BUFFER_SIZE) : stream;
+	}
+}
@@ -23,20 +23,12 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static com.evolveum.midpoint.analyzer.Constants.LOG_FILE_TIMESTAMP_FORMAT;
-import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
 
 /**
  *
  */
-public class LogEntryReader {
+public class LogEntryReader implements LogEntrySource {
 
 	private static final Trace LOGGER = TraceManager.getTrace(LogEntryReader.class);
 	private static final int MARK_AFTER = 500_000;
@@ -45,15 +37,18 @@ public class LogEntryReader {
 
 	// 2019-05-27 09:42:11,230 [midPointScheduler_Worker-6] DEBUG: #### Entry: 83329 ...model.impl.sync.SynchronizationServiceImpl->notifyChange
 	// 2019-05-29 16:43:51,904 [pool-1-thread-1] DEBUG (PROFILING): ##### Exit: 817268    ...repo.sql.SqlRepositoryServiceImpl->getObject etime: 7.708 ms
-	private static final Pattern LOG_LINE_PATTERN = Pattern.compile("(?<timestamp>" + Constants.LOG_FILE_TIMESTAMP_REGEX + ") \\[(?<thread>\\S+)] (?<level>\\S+)(?:\\s+\\((?<logger>\\S+)\\))?: (?<message>.*)");
-
-	private static final SimpleDateFormat df = new SimpleDateFormat(LOG_FILE_TIMESTAMP_FORMAT, Locale.US);
+	@NotNull private final LogLineTokenizer tokenizer;
+	private final LogLineTokenizer.Tokens tokens = new LogLineTokenizer.Tokens();
 
 	private int totalLines;
 	private int totalEntries;
 	private Date firstTimestamp;
 
-	private LogEntry currentEntry;
+	// The entry being read (its continuation lines may follow) and the one returned last. They swap their roles.
+	private LogEntryView pending = new LogEntryView();
+	private LogEntryView spare = new LogEntryView();
+	private boolean pendingValid;
+	private final StringInterner interner = new StringInterner();
 
 	private String defaultLogger = Constants.PROFILING;
 
@@ -62,63 +57,82 @@ public class LogEntryReader {
 	}
 
 	public LogEntryReader(@NotNull LogLineReader lineReader) {
+		this(lineReader, LogLineTokenizer.getDefault());
+	}
+
+	public LogEntryReader(@NotNull LogLineReader lineReader, @NotNull LogLineTokenizer tokenizer) {
 		this.lineReader = lineReader;
+		this.tokenizer = tokenizer;
+	}
+
+	/**
+	 * Starts reading at the first entry with a timestamp equal to or greater than the given one.
+	 * Must be called before reading starts. See {@link LogLineReader#seek(long)}.
+	 */
+	public void seek(long timestamp) {
+		lineReader.seek(timestamp);
 	}
 
+	@Override
 	public LogEntry readEntry() throws IOException {
-		String line;
-		while ((line = lineReader.readLine()) != null) {
+		LogEntryView entry = readEntryView();
+		return entry != null ? entry.copy() : null;
+	}
+
+	@Override
+	public LogEntryView readEntryView() throws IOException {
+		CharSequence line;
+		while ((line = lineReader.readLineView()) != null) {
 			totalLines++;
 			if (totalLines % MARK_AFTER == 0) {
 				LOGGER.info("{} lines processed ({} entries)", totalLines, totalEntries);
 			}
-			Matcher matcher = LOG_LINE_PATTERN.matcher(line);
-			if (matcher.matches()) {
-				LogLineReader.LogFilePosition position = lineReader.getCurrentPosition();
-				String timestampAsString = matcher.group("timestamp");
-				String threadName = matcher.group("thread");
-				String logLevel = matcher.group("level");
-				String logger = defaultIfNull(matcher.group("logger"), defaultLogger);
-				String message = matcher.group("message");
-				Date timestamp;
-				try {
-					timestamp = df.parse(timestampAsString);
-				} catch (ParseException e) {
-					LOGGER.warn("Cannot parse timestamp in {}: {}", position, line, e);
-					continue;
-				}
+			if (tokenizer.tokenize(line, tokens)) {
 				if (firstTimestamp == null) {
-					firstTimestamp = timestamp;
+					firstTimestamp = new Date(tokens.getTimestamp());
 				}
-				LogEntry newEntry = new LogEntry(timestamp, threadName, logLevel, logger, message, line, position);
 				totalEntries++;
-				if (currentEntry != null) {
-					LogEntry rv = currentEntry;
-					currentEntry = newEntry;
-					return rv;
+				if (pendingValid) {
+					LogEntryView complete = pending;
+					pending = spare;
+					spare = complete;
+					startEntry(line);
+					return complete;
 				} else {
-					currentEntry = newEntry;
+					startEntry(line);
+					pendingValid = true;
 					// continue reading the next line
 				}
-			} else if (currentEntry != null) {
-				currentEntry.addLine(line);
+			} else if (pendingValid) {
+				pending.addLine(line);
 			} else {
 				LOGGER.warn("Log line without context -- skipping: {}", line);
 			}
 		}
-		if (currentEntry != null) {
-			LogEntry rv = currentEntry;
-			currentEntry = null;
-			return rv;
+		if (pendingValid) {
+			pendingValid = false;
+			return pending;
 		} else {
 			return null;
 		}
 	}
 
+	private void startEntry(CharSequence line) {
+		String threadName = interner.intern(line, tokens.getThreadStart(), tokens.getThreadEnd());
+		String logLevel = interner.intern(line, tokens.getLevelStart(), tokens.getLevelEnd());
+		String logger = tokens.hasLogger() ? interner.intern(line, tokens.getLoggerStart(), tokens.getLoggerEnd()) : defaultLogger;
+		LogLineReader.LogFileInfo fileInfo = lineReader.getCurrentFileInfo();
+		pending.start(line, tokens.getTimestamp(), threadName, logLevel, logger, tokens.getMessageStart(),
+				fileInfo.file, fileInfo.member, lineReader.getCurrentLineNumber(), lineReader.getCurrentLineOffset(),
+				fileInfo.isPlain() ? lineReader.getCurrentLineLength() : -1);
+	}
+
+	@Override
 	public int getTotalLines() {
 		return totalLines;
 	}
 
+	@Override
 	public int getTotalEntries() {
 		return totalEntries;
 	}
@@ -131,6 +145,7 @@ public class LogEntryReader {
 		this.defaultLogger = defaultLogger;
 	}
 
+	@Override
 	public Date getFirstTimestamp() {
 		return firstTimestamp;
 	}
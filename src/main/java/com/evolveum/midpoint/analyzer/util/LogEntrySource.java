@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A stream of log entries, ordered by their timestamps.
+ */
+public interface LogEntrySource {
+
+	/**
+	 * Returns the next entry or null if there are no more entries.
+	 */
+	LogEntry readEntry() throws IOException;
+
+	/**
+	 * Returns the next entry or null if there are no more entries. The returned object is reused: it is valid
+	 * only until the next call of this method or {@link #readEntry()}. This is the preferred way of reading
+	 * entries that are mostly not kept.
+	 */
+	LogEntryView readEntryView() throws IOException;
+
+	int getTotalLines();
+
+	int getTotalEntries();
+
+	Date getFirstTimestamp();
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Date;
+
+/**
+ * A log entry that is reused by its reader: it is valid only until the next entry is read. Use {@link #copy()}
+ * to keep it.
+ *
+ * The text of the entry (the first line and continuation lines) is kept in a reusable character buffer;
+ * Strings for the message and lines are created only when asked for. Thread name, level and logger are interned
+ * by the reader.
+ */
+public class LogEntryView {
+
+	private static final int INITIAL_CHARS = 1024;
+	private static final int MAX_RETAINED_CHARS = 64 * 1024;  // larger buffers are not kept for smaller entries by copyFrom
+
+	private long timestamp;
+	private String threadName;
+	private String logLevel;
+	private String logger;
+
+	private char[] chars = new char[INITIAL_CHARS];
+	private int length;
+	private int[] lineStarts = new int[16];         // lineStarts[i] = start of line i (0 = first line); lines are contiguous
+	private int lineCount;
+	private int messageStart;
+
+	private File file;
+	private String member;
+	private int lineNumber;
+	private long offset;
+	private int firstLineLength;                    // in bytes; -1 if not known
+	private boolean randomAccess;                   // can the first line be re-read from the file?
+
+	private String firstLine;                       // materialized on request
+	private String message;                         // materialized on request
+	private final Slice messageView = new Slice();
+
+	/**
+	 * Part of the character buffer.
+	 */
+	private class Slice implements CharSequence {
+		private int start;
+		private int end;
+
+		private Slice set(int start, int end) {
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException("index: " + index + ", length: " + (end - start));
+			}
+			return chars[start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + (end - start));
+			}
+			return new String(chars, start + from, to - from);
+		}
+
+		@NotNull
+		@Override
+		public String toString() {
+			return new String(chars, start, end - start);
+		}
+	}
+
+	/**
+	 * Starts a new entry with the first line.
+	 *
+	 * @param firstLineLength Length of the line in bytes, if the file is uncompressed. Otherwise -1.
+	 */
+	void start(CharSequence line, long timestamp, String threadName, String logLevel, String logger, int messageStart,
+			File file, String member, int lineNumber, long offset, int firstLineLength) {
+		this.timestamp = timestamp;
+		this.threadName = threadName;
+		this.logLevel = logLevel;
+		this.logger = logger;
+		this.file = file;
+		this.member = member;
+		this.lineNumber = lineNumber;
+		this.offset = offset;
+		this.firstLineLength = firstLineLength;
+		this.randomAccess = firstLineLength >= 0 && offset >= 0;
+		this.length = 0;
+		this.lineCount = 0;
+		this.firstLine = null;
+		this.message = null;
+		addLine(line);
+		this.messageStart = messageStart;
+	}
+
+	void addLine(CharSequence line) {
+		int lineLength = line.length();
+		if (length + lineLength > chars.length) {
+			char[] bigger = new char[Math.max(length + lineLength, chars.length * 2)];
+			System.arraycopy(chars, 0, bigger, 0, length);
+			chars = bigger;
+		}
+		if (lineCount + 1 >= lineStarts.length) {
+			int[] bigger = new int[lineStarts.length * 2];
+			System.arraycopy(lineStarts, 0, bigger, 0, lineCount + 1);
+			lineStarts = bigger;
+		}
+		if (line instanceof String) {
+			((String) line).getChars(0, lineLength, chars, length);
+		} else {
+			for (int i = 0; i < lineLength; i++) {
+				chars[length + i] = line.charAt(i);
+			}
+		}
+		lineStarts[lineCount++] = length;
+		length += lineLength;
+		lineStarts[lineCount] = length;
+	}
+
+	/**
+	 * Fills this view from another one (e.g. to pass it to another thread), reusing the buffers of this one.
+	 */
+	void copyFrom(@NotNull LogEntryView other) {
+		timestamp = other.timestamp;
+		threadName = other.threadName;
+		logLevel = other.logLevel;
+		logger = other.logger;
+		if (chars.length < other.length || chars.length > MAX_RETAINED_CHARS && other.length <= MAX_RETAINED_CHARS) {
+			chars = new char[Math.max(other.length, INITIAL_CHARS)];
+		}
+		System.arraycopy(other.chars, 0, chars, 0, other.length);
+		length = other.length;
+		if (lineStarts.length < other.lineCount + 1) {
+			lineStarts = new int[other.lineStarts.length];
+		}
+		System.arraycopy(other.lineStarts, 0, lineStarts, 0, other.lineCount + 1);
+		lineCount = other.lineCount;
+		messageStart = other.messageStart;
+		file = other.file;
+		member = other.member;
+		lineNumber = other.lineNumber;
+		offset = other.offset;
+		firstLineLength = other.firstLineLength;
+		randomAccess = other.randomAccess;
+		firstLine = other.firstLine;
+		message = other.message;
+	}
+
+	/**
+	 * Number of characters of the text of the entry (all its lines).
+	 */
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * Timestamp as epoch millis.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	public String getLogLevel() {
+		return logLevel;
+	}
+
+	public String getLogger() {
+		return logger;
+	}
+
+	/**
+	 * Returns the message without creating a String. The returned value is valid only until the next entry is read.
+	 */
+	public CharSequence getMessageView() {
+		return messageView.set(messageStart, lineStarts[1]);
+	}
+
+	public String getMessage() {
+		if (message == null) {
+			message = new String(chars, messageStart, lineStarts[1] - messageStart);
+		}
+		return message;
+	}
+
+	public String getFirstLine() {
+		if (firstLine == null) {
+			firstLine = new String(chars, 0, lineStarts[1]);
+		}
+		return firstLine;
+	}
+
+	/**
+	 * Returns the part of the message starting at the given index. If the entry comes from an uncompressed file
+	 * and a cache is provided, the text is not kept in memory but re-read from the file when needed.
+	 * This is useful for keeping (potentially large) texts for later use.
+	 */
+	public LogText getMessageText(int from, @Nullable LogTextCache cache) {
+		if (cache != null && randomAccess) {
+			return LogText.inFile(file, offset, firstLineLength, messageStart + from, cache);
+		} else {
+			return LogText.inMemory(new String(chars, messageStart + from, lineStarts[1] - messageStart - from));
+		}
+	}
+
+	/**
+	 * Number of continuation lines, i.e. lines after the first one.
+	 */
+	public int getOtherLineCount() {
+		return lineCount - 1;
+	}
+
+	/**
+	 * Returns a continuation line (starting from 0) without creating a String. The returned value is valid only
+	 * until the next entry is read.
+	 */
+	public CharSequence getOtherLineView(int index) {
+		checkOtherLineIndex(index);
+		return new Slice().set(lineStarts[index + 1], lineStarts[index + 2]);
+	}
+
+	public String getOtherLine(int index) {
+		checkOtherLineIndex(index);
+		return new String(chars, lineStarts[index + 1], lineStarts[index + 2] - lineStarts[index + 1]);
+	}
+
+	private void checkOtherLineIndex(int index) {
+		if (index < 0 || index >= lineCount - 1) {
+			throw new IndexOutOfBoundsException("index: " + index + ", continuation lines: " + (lineCount - 1));
+		}
+	}
+
+	public LogLineReader.LogFilePosition getPosition() {
+		return new LogLineReader.LogFilePosition(file, member, lineNumber, offset);
+	}
+
+	/**
+	 * Creates a (non-reusable) copy of this entry.
+	 */
+	public LogEntry copy() {
+		LogEntry entry = new LogEntry(new Date(timestamp), threadName, logLevel, logger, getMessage(), getFirstLine(),
+				getPosition());
+		for (int i = 0; i < lineCount - 1; i++) {
+			entry.addLine(getOtherLine(i));
+		}
+		return entry;
+	}
+
+	@Override
+	public String toString() {
+		return "@" + new Date(timestamp) + " [" + threadName + "] " + logLevel + " (" + logger + "): " +
+				StringUtils.abbreviate(getMessage(), 30) + " @" + getPosition();
+	}
+}
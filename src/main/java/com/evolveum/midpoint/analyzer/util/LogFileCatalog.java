@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Sidecar file kept in a log directory that caches information about the log files in it:
+ * size, modification time, first and last timestamp, and line count.
+ *
+ * Entries of files whose size or modification time changed are ignored (and refreshed by the scan).
+ * The first timestamp is determined when a file is scanned; the last timestamp and line count when the file
+ * is read completely for the first time. Files that are not logs are cataloged too, so they are not reopened.
+ */
+public class LogFileCatalog {
+
+	private static final Trace LOGGER = TraceManager.getTrace(LogFileCatalog.class);
+
+	public static final String FILE_NAME = ".log-catalog";
+	public static final long UNKNOWN = Long.MIN_VALUE;
+	static final long NOT_A_LOG = Long.MIN_VALUE + 1;
+
+	private static final String HEADER = "# log file catalog v1: path, member, size, last modified, first timestamp, last timestamp, lines";
+
+	static class Entry {
+		@NotNull final String path;
+		@NotNull final String member;               // empty if the file is not an archive
+		final long size;
+		final long lastModified;
+		final long firstTimestamp;                  // or NOT_A_LOG
+		long lastTimestamp = UNKNOWN;
+		int lineCount = -1;
+
+		Entry(@NotNull String path, @NotNull String member, long size, long lastModified, long firstTimestamp) {
+			this.path = path;
+			this.member = member;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.firstTimestamp = firstTimestamp;
+		}
+
+		boolean isLog() {
+			return firstTimestamp != NOT_A_LOG;
+		}
+	}
+
+	@NotNull private final File directory;
+	@NotNull private final File catalogFile;
+
+	// path -> member -> entry
+	private final Map<String, Map<String, Entry>> entries = new HashMap<>();
+	private final Set<String> seenPaths = new HashSet<>();
+	private boolean dirty;
+
+	private LogFileCatalog(@NotNull File directory) {
+		this.directory = directory;
+		this.catalogFile = new File(directory, FILE_NAME);
+	}
+
+	public static LogFileCatalog forDirectory(@NotNull File directory) throws IOException {
+		LogFileCatalog catalog = new LogFileCatalog(directory);
+		catalog.load();
+		return catalog;
+	}
+
+	private void load() throws IOException {
+		if (!catalogFile.exists()) {
+			return;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#") || line.isEmpty()) {
+					continue;
+				}
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 7) {
+					LOGGER.warn("Malformed line in {}, ignoring: {}", catalogFile, line);
+					continue;
+				}
+				Entry entry = new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+						Long.parseLong(fields[4]));
+				entry.lastTimestamp = Long.parseLong(fields[5]);
+				entry.lineCount = Integer.parseInt(fields[6]);
+				entries.computeIfAbsent(entry.path, k -> new LinkedHashMap<>()).put(entry.member, entry);
+			}
+		}
+		LOGGER.info("Read {} with information on {} files", catalogFile, entries.size());
+	}
+
+	boolean isCatalogFile(File file) {
+		return file.equals(catalogFile);
+	}
+
+	/**
+	 * Returns cached entries for the file (all members, if it is an archive), or null if the file is not known
+	 * or it was changed since it was cataloged.
+	 */
+	synchronized Collection<Entry> getEntries(File file) {
+		String path = getPath(file);
+		seenPaths.add(path);
+		Map<String, Entry> members = entries.get(path);
+		if (members == null || members.isEmpty()) {
+			return null;
+		}
+		Entry any = members.values().iterator().next();
+		if (any.size != file.length() || any.lastModified != file.lastModified()) {
+			entries.remove(path);
+			dirty = true;
+			return null;
+		}
+		return members.values();
+	}
+
+	synchronized void addEntry(File file, String member, long firstTimestamp) {
+		String path = getPath(file);
+		seenPaths.add(path);
+		Entry entry = new Entry(path, member != null ? member : "", file.length(), file.lastModified(), firstTimestamp);
+		entries.computeIfAbsent(path, k -> new LinkedHashMap<>()).put(entry.member, entry);
+		dirty = true;
+	}
+
+	/**
+	 * Forgets the file (all its members), so that it is scanned again next time.
+	 */
+	synchronized void removeEntries(File file) {
+		if (entries.remove(getPath(file)) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Records information obtained by reading the whole file.
+	 */
+	synchronized void setContentInfo(File file, String member, long lastTimestamp, int lineCount) {
+		Map<String, Entry> members = entries.get(getPath(file));
+		Entry entry = members != null ? members.get(member != null ? member : "") : null;
+		if (entry != null && (entry.lastTimestamp != lastTimestamp || entry.lineCount != lineCount)) {
+			entry.lastTimestamp = lastTimestamp;
+			entry.lineCount = lineCount;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Forgets files that were not seen by the scan.
+	 */
+	synchronized void removeUnseen() {
+		if (entries.keySet().retainAll(seenPaths)) {
+			dirty = true;
+		}
+	}
+
+	synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(catalogFile), StandardCharsets.UTF_8))) {
+			pw.println(HEADER);
+			for (Map<String, Entry> members : entries.values()) {
+				for (Entry e : members.values()) {
+					pw.println(e.path + "\t" + e.member + "\t" + e.size + "\t" + e.lastModified + "\t" + e.firstTimestamp + "\t" +
+							e.lastTimestamp + "\t" + e.lineCount);
+				}
+			}
+			dirty = false;
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't write log file catalog {}: {}", catalogFile, e.getMessage(), e);
+			dirty = false;          // don't try again
+		}
+	}
+
+	private String getPath(File file) {
+		return directory.toPath().relativize(file.toPath()).toString();
+	}
+}
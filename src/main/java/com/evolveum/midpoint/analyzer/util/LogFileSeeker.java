@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds the first log entry at or after a given timestamp in an uncompressed log file by binary search on byte offsets.
+ * After jumping to an offset, the search resynchronizes on the next line that starts with a timestamp
+ * (continuation lines, like args or retval dumps, are skipped).
+ *
+ * Assumes that timestamps in the file do not decrease. Small deviations (e.g. threads logging out of order within
+ * the same millisecond) only mean that a few entries around the target timestamp can be missed or included.
+ */
+class LogFileSeeker {
+
+	private static final long LINEAR_SCAN_THRESHOLD = 256 * 1024;      // bytes
+
+	private final FileChannel channel;
+	private final long fileSize;
+
+	private LogFileSeeker(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.fileSize = channel.size();
+	}
+
+	/**
+	 * Returns the offset of the first line that starts with a timestamp equal to or greater than the given one,
+	 * or the file size if there is no such line.
+	 */
+	static long findOffset(File file, long timestamp) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return new LogFileSeeker(raf.getChannel()).findOffset(timestamp);
+		}
+	}
+
+	private long findOffset(long timestamp) throws IOException {
+		// Invariant: every timestamped line starting before "low" is older than the timestamp; the first timestamped
+		// line starting at or after "high" (if any) is not older than the timestamp.
+		long low = 0;
+		long high = fileSize;
+		while (high - low > LINEAR_SCAN_THRESHOLD) {
+			long middle = low + (high - low) / 2;
+			TimestampedLine line = findTimestampedLine(middle, high);
+			if (line == null || line.timestamp >= timestamp) {
+				high = middle;
+			} else {
+				low = line.offset;
+			}
+		}
+		TimestampedLine line = findFirstNotOlder(low, timestamp);
+		return line != null ? line.offset : fileSize;
+	}
+
+	private static class TimestampedLine {
+		private final long offset;
+		private final long timestamp;
+
+		private TimestampedLine(long offset, long timestamp) {
+			this.offset = offset;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * Returns the first timestamped line starting in [from, to), or null if there is none.
+	 */
+	private TimestampedLine findTimestampedLine(long from, long to) throws IOException {
+		StreamLineInput input = openAtLineStart(from);
+		LineView line;
+		while ((line = input.readLine()) != null && line.getOffset() < to) {
+			long lineTimestamp = LogLineReader.parseTimestamp(line);
+			if (lineTimestamp != LogFileCatalog.UNKNOWN) {
+				return new TimestampedLine(line.getOffset(), lineTimestamp);
+			}
+		}
+		return null;
+	}
+
+	private TimestampedLine findFirstNotOlder(long from, long timestamp) throws IOException {
+		StreamLineInput input = openAtLineStart(from);
+		LineView line;
+		while ((line = input.readLine()) != null) {
+			long lineTimestamp = LogLineReader.parseTimestamp(line);
+			if (lineTimestamp != LogFileCatalog.UNKNOWN && lineTimestamp >= timestamp) {
+				return new TimestampedLine(line.getOffset(), lineTimestamp);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns input positioned at the first line starting at or after the offset. The input is not closed,
+	 * as closing it would close the channel.
+	 */
+	private StreamLineInput openAtLineStart(long offset) throws IOException {
+		if (offset == 0) {
+			channel.position(0);
+			return new StreamLineInput(Channels.newInputStream(channel), 0);
+		} else {
+			// the line containing the previous byte ends at or after the offset; if that byte is a newline, the line is empty
+			channel.position(offset - 1);
+			StreamLineInput input = new StreamLineInput(Channels.newInputStream(channel), offset - 1);
+			input.readLine();
+			return input;
+		}
+	}
+}
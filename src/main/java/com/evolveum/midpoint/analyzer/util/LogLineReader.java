@@ -16,50 +16,141 @@
 
 package com.evolveum.midpoint.analyzer.util;
 
-import com.evolveum.midpoint.analyzer.Constants;
 import com.evolveum.midpoint.util.logging.Trace;
 import com.evolveum.midpoint.util.logging.TraceManager;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
  * Reads a set of log files. Provides virtual readLine() method that returns the next line,
  * irrespective on the log file it resides in.
+ *
+ * Gzipped files (idm.log.1.gz) as well as members of zip, tar and tar.gz archives are read directly.
+ * Files are expected to be encoded in UTF-8.
+ *
+ * In follow mode, the last file (the one currently written to) is tailed: at its end the reader waits for more
+ * lines instead of returning null. Rotation of the file (replacement by a new file or truncation) is detected
+ * by polling its attributes.
  */
 public class LogLineReader {
 
 	private static final Trace LOGGER = TraceManager.getTrace(LogLineReader.class);
 
+	private static final int TIMESTAMP_LENGTH = LogLineTokenizer.TIMESTAMP_LENGTH;
+
+	@NotNull private List<LogFileInfo> files;
 	private Iterator<LogFileInfo> fileIterator;
 	private LogFileInfo currentFileInfo;
-	private BufferedReader reader;
+	private LineInput input;
 	private int lineNumber;
+	private long lineOffset;
+	private int lineLength;
+	private boolean lineNumbersKnown;           // false if the file is not read from its beginning
+
+	private Long seekTimestamp;
+	private boolean skippingToTimestamp;
+
+	private long followPollInterval;            // 0 if not following
+	private long followIdleTimeout;             // 0 if none
+	private WaitListener waitListener;
+	private volatile boolean followingStopped;
+	private long idleSince;                     // when the reader started waiting for new lines; 0 if not waiting
+	private StreamLineInput tailInput;          // input of the followed file (if we are following and already there)
+	private Object tailFileKey;
+	private long tailCreationTime;
+	private boolean rotationPending;            // the followed file was replaced, reading the rest of the old one
+
+	private PipelineStatistics pipelineStatistics;      // null if lines are not read in a separate thread
+
+	private final LogFileCatalog catalog;
+	private boolean collectingContentInfo;
+	private final char[] lastTimestamp = new char[TIMESTAMP_LENGTH];
+	private boolean lastTimestampFound;
 
 	public LogLineReader(File directory) throws IOException {
-		scanFiles(directory);
+		this(directory, null);
 	}
 
-	private static class LogFileInfo {
+	/**
+	 * @param catalog Catalog of the directory; it is used to avoid opening unchanged files and updated with what
+	 *                is learned while reading them. Null means that no catalog is used.
+	 */
+	public LogLineReader(File directory, @Nullable LogFileCatalog catalog) throws IOException {
+		this(scanFiles(directory, catalog), catalog);
+	}
+
+	LogLineReader(@NotNull List<LogFileInfo> files, @Nullable LogFileCatalog catalog) {
+		this.files = files;
+		this.catalog = catalog;
+	}
+
+	static class LogFileInfo {
 		final File file;
+		final String member;                // name of the archive member (null if the file is not an archive)
 		final long startTimestamp;
+		final long endTimestamp;            // timestamp of the last line, or LogFileCatalog.UNKNOWN
+		LogArchives.TarGzipMembers tarGzipMembers;          // for members of tar.gz archives
 
-		LogFileInfo(File file, long startTimestamp) {
+		LogFileInfo(File file, String member, long startTimestamp, long endTimestamp) {
 			this.file = file;
+			this.member = member;
 			this.startTimestamp = startTimestamp;
+			this.endTimestamp = endTimestamp;
+		}
+
+		/**
+		 * Is this an uncompressed file, i.e. one that can be accessed randomly?
+		 */
+		boolean isPlain() {
+			return member == null && LogArchives.Kind.of(file.getName()) == LogArchives.Kind.PLAIN;
+		}
+
+		InputStream openStream() throws IOException {
+			return tarGzipMembers != null ? tarGzipMembers.open(member) : LogArchives.open(file, member);
+		}
+
+		@Override
+		public String toString() {
+			return member != null ? file + "!" + member : file.toString();
 		}
 	}
 
+	/**
+	 * Source of lines of a single log file.
+	 */
+	interface LineInput extends Closeable {
+
+		/**
+		 * Returns the next line (without the line terminator) or null if there are no more lines.
+		 * The returned value is valid only until the next call.
+		 */
+		LineView readLine() throws IOException;
+	}
+
 	public static class LogFilePosition {
 		@NotNull private final File file;
+		private final String member;
 		private final int lineNumber;
+		private final long offset;
 
 		public LogFilePosition(@NotNull File file, int lineNumber) {
+			this(file, null, lineNumber, -1);
+		}
+
+		public LogFilePosition(@NotNull File file, String member, int lineNumber, long offset) {
 			this.file = file;
+			this.member = member;
 			this.lineNumber = lineNumber;
+			this.offset = offset;
 		}
 
 		@NotNull
@@ -67,70 +158,518 @@ public class LogLineReader {
 			return file;
 		}
 
+		/**
+		 * Name of the member of the archive file, or null if the file is not an archive.
+		 */
+		public String getMember() {
+			return member;
+		}
+
+		/**
+		 * Line number (starting at 1), or -1 if not known, i.e. if the file was not read from its beginning.
+		 */
 		public int getLineNumber() {
 			return lineNumber;
 		}
 
+		/**
+		 * Byte offset of the line in the (uncompressed) file, or -1 if not known.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
 		@Override
 		public String toString() {
-			return "[" + file + ":" + lineNumber + ']';
+			return "[" + file + (member != null ? "!" + member : "") +
+					(lineNumber >= 0 ? ":" + lineNumber : "@" + offset) + ']';
 		}
 	}
 
-	private void scanFiles(File directory) throws IOException {
-		SimpleDateFormat df = new SimpleDateFormat(Constants.LOG_FILE_TIMESTAMP_FORMAT, Locale.US);
+	private static List<LogFileInfo> scanFiles(File directory, LogFileCatalog catalog) throws IOException {
 		List<LogFileInfo> files = new ArrayList<>();
+		int cached = 0;
 		Iterator<File> iterator = FileUtils.iterateFiles(directory, null, true);
 		while (iterator.hasNext()) {
 			File file = iterator.next();
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			String firstLine = br.readLine();
-			if (firstLine == null) {
-				LOGGER.warn("Empty log file {}, skipping", file);
-				continue;
+			if (catalog != null) {
+				if (catalog.isCatalogFile(file)) {
+					continue;
+				}
+				Collection<LogFileCatalog.Entry> entries = catalog.getEntries(file);
+				if (entries != null) {
+					for (LogFileCatalog.Entry entry : entries) {
+						if (entry.isLog()) {
+							files.add(new LogFileInfo(file, entry.member.isEmpty() ? null : entry.member,
+									entry.firstTimestamp, entry.lastTimestamp));
+						}
+					}
+					cached++;
+					continue;
+				}
 			}
 			try {
-				String timestamp = firstLine.substring(0, 23);
-				Date date = df.parse(timestamp);
-				files.add(new LogFileInfo(file, date.getTime()));
-			} catch (Throwable t) { // fix this :)
-				LOGGER.warn("Cannot parse log file {}, skipping", file, t);
+				if (LogArchives.Kind.of(file.getName()).isArchive()) {
+					LOGGER.info("Scanning archive {}", file);
+					LogArchives.forEachMember(file, (member, stream) -> addFile(files, file, member, stream, catalog));
+				} else {
+					try (InputStream stream = LogArchives.openFile(file, LogArchives.Kind.of(file.getName()))) {
+						addFile(files, file, null, stream, catalog);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// members of an archive found before the failure are kept
+				LOGGER.warn("Cannot parse log file {}, skipping", file, e);
+				if (catalog != null) {
+					catalog.removeEntries(file);
+				}
 			}
 		}
+		if (catalog != null) {
+			LOGGER.info("{} files were found in the catalog", cached);
+			catalog.removeUnseen();
+			catalog.save();
+		}
 		files.sort(Comparator.comparing(info -> info.startTimestamp));
-		fileIterator = files.iterator();
+		Map<File, LogArchives.TarGzipMembers> tarGzipArchives = new HashMap<>();
+		for (LogFileInfo info : files) {
+			if (info.member != null && LogArchives.Kind.of(info.file.getName()) == LogArchives.Kind.TAR_GZIP) {
+				info.tarGzipMembers = tarGzipArchives.computeIfAbsent(info.file, LogArchives.TarGzipMembers::new);
+				info.tarGzipMembers.add(info.member);
+			}
+		}
+		return files;
 	}
 
-	public String readLine() throws IOException {
+	private static void addFile(List<LogFileInfo> files, File file, String member, InputStream stream,
+			LogFileCatalog catalog) throws IOException {
+		String name = member != null ? file + "!" + member : file.toString();
+		String firstLine;
+		try {
+			firstLine = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)).readLine();
+		} catch (IOException | RuntimeException e) {
+			if (member == null) {
+				throw e;
+			}
+			// other members of the archive can still be readable
+			LOGGER.warn("Cannot parse log file {}, skipping", name, e);
+			if (catalog != null) {
+				catalog.addEntry(file, member, LogFileCatalog.NOT_A_LOG);
+			}
+			return;
+		}
+		long startTimestamp;
+		if (firstLine == null) {
+			LOGGER.warn("Empty log file {}, skipping", name);
+			startTimestamp = LogFileCatalog.NOT_A_LOG;
+		} else {
+			startTimestamp = parseTimestamp(firstLine);
+			if (startTimestamp != LogFileCatalog.UNKNOWN) {
+				files.add(new LogFileInfo(file, member, startTimestamp, LogFileCatalog.UNKNOWN));
+			} else {
+				LOGGER.warn("Cannot parse log file {} (no timestamp at the beginning), skipping", name);
+				startTimestamp = LogFileCatalog.NOT_A_LOG;
+			}
+		}
+		if (catalog != null) {
+			catalog.addEntry(file, member, startTimestamp);
+		}
+	}
+
+	/**
+	 * Skips files that certainly do not contain any line from the specified time interval. Files whose last timestamp
+	 * is not known (i.e. that were not yet read completely with a catalog) are kept if they start before the end
+	 * of the interval. Must be called before reading starts.
+	 *
+	 * @param from Start of the interval (inclusive), or null if not bounded.
+	 * @param to End of the interval (inclusive), or null if not bounded.
+	 */
+	public void restrictToInterval(@Nullable Long from, @Nullable Long to) {
+		if (fileIterator != null) {
+			throw new IllegalStateException("Reading has already started");
+		}
+		List<LogFileInfo> selected = new ArrayList<>();
+		for (LogFileInfo file : files) {
+			if (to != null && file.startTimestamp > to ||
+					from != null && file.endTimestamp != LogFileCatalog.UNKNOWN && file.endTimestamp < from) {
+				LOGGER.info("Skipping file {} as it is outside of the interval", file);
+				if (file.tarGzipMembers != null) {
+					file.tarGzipMembers.remove(file.member);
+				}
+			} else {
+				selected.add(file);
+			}
+		}
+		files = selected;
+	}
+
+	/**
+	 * Positions the reader at the first line with a timestamp equal to or greater than the given one, so that
+	 * earlier lines are not read at all. Uncompressed files are searched by binary search on byte offsets;
+	 * compressed files and archive members cannot be accessed randomly, so their earlier lines are skipped
+	 * (without being parsed into entries). Must be called before reading starts.
+	 */
+	public void seek(long timestamp) {
+		if (fileIterator != null) {
+			throw new IllegalStateException("Reading has already started");
+		}
+		seekTimestamp = timestamp;
+	}
+
+	@FunctionalInterface
+	public interface WaitListener {
+		/**
+		 * Called (on the reading thread) each time the reader in follow mode waits for new lines.
+		 */
+		void onWait() throws IOException;
+	}
+
+	/**
+	 * Switches the reader into follow mode: after reaching the end of the last file, it waits for new lines to be
+	 * written instead of returning null. Reading ends (by returning null, after the rest of the file) when
+	 * {@link #stopFollowing()} is called or when no new lines come for the idle timeout; interrupting the thread
+	 * aborts it by an InterruptedIOException. If there are no files at all, there is nothing to follow. Must be called
+	 * before reading starts.
+	 *
+	 * @param pollInterval How often (in milliseconds) to check for new lines and for rotation of the file.
+	 * @param idleTimeout After how many milliseconds without new lines the following ends; 0 means never.
+	 * @param waitListener Called before each wait, e.g. to refresh results computed so far.
+	 */
+	public void follow(long pollInterval, long idleTimeout, @Nullable WaitListener waitListener) {
+		if (fileIterator != null) {
+			throw new IllegalStateException("Reading has already started");
+		}
+		if (pollInterval <= 0) {
+			throw new IllegalArgumentException("Poll interval must be positive: " + pollInterval);
+		}
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("Idle timeout must not be negative: " + idleTimeout);
+		}
+		this.followPollInterval = pollInterval;
+		this.followIdleTimeout = idleTimeout;
+		this.waitListener = waitListener;
+	}
+
+	public void follow(long pollInterval, @Nullable WaitListener waitListener) {
+		follow(pollInterval, 0, waitListener);
+	}
+
+	/**
+	 * Ends the following: lines already written are read, then the reader returns null. Can be called from any thread,
+	 * e.g. from a shutdown hook.
+	 */
+	public void stopFollowing() {
+		followingStopped = true;
+	}
+
+	public boolean isFollowing() {
+		return followPollInterval > 0;
+	}
+
+	/**
+	 * Lines of each file will be read (and decompressed) in a separate thread, ahead of their processing.
+	 * Not applied to the file being followed. Must be called before reading starts.
+	 */
+	public void enablePipelining() {
+		if (fileIterator != null) {
+			throw new IllegalStateException("Reading has already started");
+		}
+		pipelineStatistics = new PipelineStatistics("lines");
+	}
+
+	/**
+	 * Members of tar.gz archives are streamed from a single pass over the archive as long as they are read in the order
+	 * they are stored in; others need another pass. With spilling, members the pass goes by before they are read
+	 * are extracted into temporary files instead, which needs disk space up to the size of the archive. Must be called
+	 * before reading starts.
+	 */
+	public void enableArchiveSpilling() {
+		if (fileIterator != null) {
+			throw new IllegalStateException("Reading has already started");
+		}
+		for (LogFileInfo file : files) {
+			if (file.tarGzipMembers != null) {
+				file.tarGzipMembers.setSpilling(true);
+			}
+		}
+	}
+
+	/**
+	 * Statistics of reading lines in a separate thread, or null if it is not enabled.
+	 */
+	@Nullable
+	public PipelineStatistics getPipelineStatistics() {
+		return pipelineStatistics;
+	}
+
+	/**
+	 * Files to be read, sorted by the timestamp of their first line.
+	 */
+	@NotNull
+	List<LogFileInfo> getFiles() {
+		return files;
+	}
+
+	LogFileCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Creates a reader of the same kind and settings as this one, reading only the specified files.
+	 */
+	LogLineReader createReader(@NotNull List<LogFileInfo> files) {
+		LogLineReader reader = newReader(files);
+		reader.seekTimestamp = seekTimestamp;
+		return reader;
+	}
+
+	LogLineReader newReader(@NotNull List<LogFileInfo> files) {
+		return new LogLineReader(files, catalog);
+	}
+
+	/**
+	 * Returns the next line, irrespective on the log file it resides in. The returned value is valid only
+	 * until the next call; use toString() to keep it.
+	 */
+	public CharSequence readLineView() throws IOException {
+		if (fileIterator == null) {
+			fileIterator = files.iterator();
+		}
 		for (;;) {
-			if (reader == null) {
+			if (input == null) {
 				if (fileIterator.hasNext()) {
 					currentFileInfo = fileIterator.next();
-					File file = currentFileInfo.file;
-					LOGGER.info("Opening file {}", file);
-					reader = new BufferedReader(new FileReader(file));
-					lineNumber = 0;
+					openCurrentFile();
 				} else {
+					if (currentFileInfo != null && catalog != null) {
+						catalog.save();
+					}
 					currentFileInfo = null;
 					return null;
 				}
 			}
-			String line = reader.readLine();
+			LineView line = input.readLine();
 			if (line != null) {
+				idleSince = 0;
 				lineNumber++;
+				lineOffset = line.getOffset();
+				lineLength = line.getByteLength();
+				if (collectingContentInfo) {
+					rememberTimestamp(line);
+				}
+				if (skippingToTimestamp) {
+					long timestamp = parseTimestamp(line);
+					if (timestamp == LogFileCatalog.UNKNOWN || timestamp < seekTimestamp) {
+						continue;
+					}
+					skippingToTimestamp = false;
+				}
 				return line;
+			} else if (tailInput != null) {
+				if (rotationPending) {
+					switchToNewTailFile();
+				} else if (isFollowingOver()) {
+					LOGGER.info("Stopped following {}", currentFileInfo);
+					tailInput.setTailing(false);            // an unterminated last line is returned as well
+					tailInput = null;
+				} else {
+					waitForNewLines();
+					checkRotation();            // before reading on, so that a regrown truncated file is not read from the middle
+				}
 			} else {
-				reader.close();
-				reader = null;
+				input.close();
+				input = null;
+				if (collectingContentInfo) {
+					updateCatalog();
+				}
+			}
+		}
+	}
+
+	private void openCurrentFile() throws IOException {
+		long startOffset = 0;
+		skippingToTimestamp = false;
+		if (seekTimestamp != null && currentFileInfo.startTimestamp < seekTimestamp) {
+			if (currentFileInfo.isPlain()) {
+				startOffset = LogFileSeeker.findOffset(currentFileInfo.file, seekTimestamp);
+			} else {
+				skippingToTimestamp = true;
+			}
+		}
+		if (startOffset > 0) {
+			LOGGER.info("Opening file {} at offset {}", currentFileInfo, startOffset);
+		} else {
+			LOGGER.info("Opening file {}", currentFileInfo);
+		}
+		if (isFollowing() && !fileIterator.hasNext() && currentFileInfo.isPlain()) {
+			openTailInput(startOffset);
+		} else {
+			input = openInput(currentFileInfo, startOffset);
+			if (pipelineStatistics != null) {
+				input = new PipelinedLineInput(input, pipelineStatistics);
+			}
+		}
+		lineNumber = 0;
+		lineNumbersKnown = startOffset == 0;
+		// information about the whole file can be collected only if the whole file is read
+		collectingContentInfo = catalog != null && currentFileInfo.endTimestamp == LogFileCatalog.UNKNOWN && startOffset == 0 &&
+				tailInput == null;
+		lastTimestampFound = false;
+	}
+
+	private void openTailInput(long startOffset) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(currentFileInfo.file.toPath(), BasicFileAttributes.class);
+		tailFileKey = attributes.fileKey();
+		tailCreationTime = attributes.creationTime().toMillis();
+		tailInput = openPlainInput(currentFileInfo.file, startOffset);
+		tailInput.setTailing(true);
+		input = tailInput;
+		rotationPending = false;
+	}
+
+	/**
+	 * Checks whether the followed file was replaced or truncated (even if it has grown past the position since then,
+	 * as after copy-truncate rotation).
+	 */
+	private void checkRotation() throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(currentFileInfo.file.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return;                 // probably being rotated right now
+		}
+		boolean sameFile = attributes.fileKey() != null ?
+				attributes.fileKey().equals(tailFileKey) : attributes.creationTime().toMillis() == tailCreationTime;
+		if (!sameFile) {
+			LOGGER.info("File {} was replaced, finishing the old one", currentFileInfo);
+			tailInput.setTailing(false);            // the rest of the old file (if any) is read first
+			rotationPending = true;
+		} else if (attributes.size() < tailInput.getPosition() || !tailInput.isStillIn(currentFileInfo.file)) {
+			LOGGER.info("File {} was truncated, reading it from the beginning", currentFileInfo);
+			switchToNewTailFile();
+		}
+	}
+
+	private void switchToNewTailFile() throws IOException {
+		input.close();
+		input = null;
+		tailInput = null;
+		currentFileInfo = new LogFileInfo(currentFileInfo.file, null, LogFileCatalog.UNKNOWN, LogFileCatalog.UNKNOWN);
+		LOGGER.info("Following file {}", currentFileInfo);
+		openTailInput(0);
+		lineNumber = 0;
+		lineNumbersKnown = true;
+	}
+
+	private boolean isFollowingOver() {
+		if (followingStopped) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (idleSince == 0) {
+			idleSince = now;
+			return false;
+		}
+		return followIdleTimeout > 0 && now - idleSince >= followIdleTimeout;
+	}
+
+	private void waitForNewLines() throws IOException {
+		if (waitListener != null) {
+			waitListener.onWait();
+		}
+		try {
+			Thread.sleep(followPollInterval);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while following " + currentFileInfo);
+		}
+	}
+
+	/**
+	 * Returns the timestamp the line starts with, or LogFileCatalog.UNKNOWN if it does not start with one
+	 * (e.g. if it is a continuation line).
+	 */
+	static long parseTimestamp(CharSequence line) {
+		long timestamp = LogLineTokenizer.getDefault().parseTimestamp(line, 0);
+		return timestamp != LogLineTokenizer.NO_TIMESTAMP ? timestamp : LogFileCatalog.UNKNOWN;
+	}
+
+	private void rememberTimestamp(CharSequence line) {
+		if (line.length() >= TIMESTAMP_LENGTH && Character.isDigit(line.charAt(0)) && line.charAt(4) == '-' &&
+				line.charAt(10) == ' ' && line.charAt(19) == ',') {
+			for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+				lastTimestamp[i] = line.charAt(i);
+			}
+			lastTimestampFound = true;
+		}
+	}
+
+	private void updateCatalog() {
+		long endTimestamp = currentFileInfo.startTimestamp;
+		if (lastTimestampFound) {
+			endTimestamp = parseTimestamp(CharBuffer.wrap(lastTimestamp));
+			if (endTimestamp == LogFileCatalog.UNKNOWN) {
+				LOGGER.warn("Cannot parse the last timestamp in {}: {}", currentFileInfo, new String(lastTimestamp));
+				return;
 			}
 		}
+		catalog.setContentInfo(currentFileInfo.file, currentFileInfo.member, endTimestamp, lineNumber);
+	}
+
+	public String readLine() throws IOException {
+		CharSequence line = readLineView();
+		return line != null ? line.toString() : null;
+	}
+
+	/**
+	 * @param startOffset Offset of the first line to be read. Non-zero only for plain files.
+	 */
+	LineInput openInput(LogFileInfo fileInfo, long startOffset) throws IOException {
+		if (startOffset > 0) {
+			return openPlainInput(fileInfo.file, startOffset);
+		} else {
+			return new StreamLineInput(fileInfo.openStream());
+		}
+	}
+
+	private static StreamLineInput openPlainInput(File file, long startOffset) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			stream.getChannel().position(startOffset);
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+		return new StreamLineInput(stream, startOffset);
 	}
 
 	public LogFilePosition getCurrentPosition() {
 		if (currentFileInfo != null) {
-			return new LogFilePosition(currentFileInfo.file, lineNumber);
+			return new LogFilePosition(currentFileInfo.file, currentFileInfo.member, getCurrentLineNumber(), lineOffset);
 		} else {
 			return null;
 		}
 	}
+
+	LogFileInfo getCurrentFileInfo() {
+		return currentFileInfo;
+	}
+
+	/**
+	 * Number of the current line, or -1 if it is not known.
+	 */
+	int getCurrentLineNumber() {
+		return lineNumbersKnown ? lineNumber : -1;
+	}
+
+	long getCurrentLineOffset() {
+		return lineOffset;
+	}
+
+	/**
+	 * Length of the current line in bytes.
+	 */
+	int getCurrentLineLength() {
+		return lineLength;
+	}
 }
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits log lines into timestamp, thread, level, logger and message in a single pass over the characters.
+ * The tokenizer is compiled from one or more Logback pattern layouts; they are tried in the order given.
+ *
+ * Supported conversion words are %d/%date (only in the default "yyyy-MM-dd HH:mm:ss,SSS" format),
+ * %t/%thread, %p/%le/%level, %c/%lo/%logger, %X/%mdc, %m/%msg/%message and %n. Format modifiers
+ * (like %-5level) and options (like %logger{46}) are accepted; padding (after left-justified values, before
+ * right-justified ones) is skipped when matching.
+ *
+ * Timestamps are decoded directly to epoch millis, in the default time zone. The date and time up to seconds
+ * is cached, as consecutive lines mostly share it.
+ *
+ * Instances are immutable (apart from the cache, which is safely published), so they can be shared by
+ * concurrently running readers.
+ */
+public class LogLineTokenizer {
+
+	public static final String DEFAULT_LAYOUT = "%date [%thread] %-5level \\(%logger{46}\\): %msg%n";
+	public static final String DEFAULT_LAYOUT_WITHOUT_LOGGER = "%date [%thread] %-5level: %msg%n";
+
+	/**
+	 * Returned by {@link #parseTimestamp(CharSequence, int)} if there is no timestamp at the position.
+	 */
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	public static final int TIMESTAMP_LENGTH = 23;              // yyyy-MM-dd HH:mm:ss,SSS
+	private static final int SECOND_PREFIX_LENGTH = 19;         // yyyy-MM-dd HH:mm:ss
+
+	private static final LogLineTokenizer DEFAULT = compile(DEFAULT_LAYOUT, DEFAULT_LAYOUT_WITHOUT_LOGGER);
+
+	private enum ElementKind {
+		LITERAL, DATE, THREAD, LEVEL, LOGGER, MDC, MESSAGE
+	}
+
+	private static class Element {
+		private final ElementKind kind;
+		private final String literal;           // for LITERAL
+		private final boolean padded;           // for fields
+		private final boolean paddedLeft;       // for fields: right-justified (%5level), i.e. spaces can precede the value
+
+		private Element(ElementKind kind, String literal, boolean padded, boolean paddedLeft) {
+			this.kind = kind;
+			this.literal = literal;
+			this.padded = padded;
+			this.paddedLeft = paddedLeft;
+		}
+
+		private boolean isField() {
+			return kind == ElementKind.THREAD || kind == ElementKind.LEVEL || kind == ElementKind.LOGGER || kind == ElementKind.MDC;
+		}
+	}
+
+	/**
+	 * Positions of the parts of a tokenized line. Ends are exclusive. Instances are to be reused by their owners.
+	 */
+	public static class Tokens {
+		private long timestamp;
+		private int threadStart, threadEnd;
+		private int levelStart, levelEnd;
+		private int loggerStart, loggerEnd;
+		private int messageStart;
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getThreadStart() {
+			return threadStart;
+		}
+
+		public int getThreadEnd() {
+			return threadEnd;
+		}
+
+		public int getLevelStart() {
+			return levelStart;
+		}
+
+		public int getLevelEnd() {
+			return levelEnd;
+		}
+
+		public boolean hasLogger() {
+			return loggerStart >= 0;
+		}
+
+		public int getLoggerStart() {
+			return loggerStart;
+		}
+
+		public int getLoggerEnd() {
+			return loggerEnd;
+		}
+
+		public int getMessageStart() {
+			return messageStart;
+		}
+
+		private void reset() {
+			timestamp = NO_TIMESTAMP;
+			threadStart = threadEnd = levelStart = levelEnd = loggerStart = loggerEnd = messageStart = -1;
+		}
+	}
+
+	private static class SecondCache {
+		private final char[] prefix;
+		private final long millis;
+
+		private SecondCache(char[] prefix, long millis) {
+			this.prefix = prefix;
+			this.millis = millis;
+		}
+	}
+
+	@NotNull private final List<Element[]> layouts;
+	@NotNull private final ZoneId zone = ZoneId.systemDefault();
+	private volatile SecondCache secondCache;
+
+	private LogLineTokenizer(@NotNull List<Element[]> layouts) {
+		this.layouts = layouts;
+	}
+
+	/**
+	 * Tokenizer for the layouts used by midPoint by default.
+	 */
+	public static LogLineTokenizer getDefault() {
+		return DEFAULT;
+	}
+
+	public static LogLineTokenizer compile(String... layouts) {
+		List<Element[]> compiled = new ArrayList<>();
+		for (String layout : layouts) {
+			compiled.add(compileLayout(layout));
+		}
+		return new LogLineTokenizer(compiled);
+	}
+
+	private static Element[] compileLayout(String layout) {
+		List<Element> elements = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < layout.length()) {
+			char c = layout.charAt(i);
+			if (c == '\\' && i + 1 < layout.length()) {
+				literal.append(layout.charAt(i + 1));
+				i += 2;
+			} else if (c == '%') {
+				i++;
+				int modifierStart = i;
+				while (i < layout.length() && (layout.charAt(i) == '-' || layout.charAt(i) == '.' || Character.isDigit(layout.charAt(i)))) {
+					i++;
+				}
+				boolean padded = i > modifierStart;
+				boolean paddedLeft = padded && layout.charAt(modifierStart) != '-';
+				int wordStart = i;
+				while (i < layout.length() && Character.isLetter(layout.charAt(i))) {
+					i++;
+				}
+				String word = layout.substring(wordStart, i);
+				String option = null;
+				if (i < layout.length() && layout.charAt(i) == '{') {
+					int close = layout.indexOf('}', i);
+					if (close < 0) {
+						throw new IllegalArgumentException("Unterminated option in layout: " + layout);
+					}
+					option = layout.substring(i + 1, close);
+					i = close + 1;
+				}
+				ElementKind kind = getKind(word, option, layout);
+				if (kind == null) {
+					continue;           // %n
+				}
+				if (literal.length() > 0) {
+					elements.add(new Element(ElementKind.LITERAL, literal.toString(), false, false));
+					literal.setLength(0);
+				}
+				elements.add(new Element(kind, null, padded, paddedLeft));
+			} else {
+				literal.append(c);
+				i++;
+			}
+		}
+		if (literal.length() > 0) {
+			elements.add(new Element(ElementKind.LITERAL, literal.toString(), false, false));
+		}
+		for (int j = 0; j < elements.size(); j++) {
+			Element element = elements.get(j);
+			if (element.kind == ElementKind.MESSAGE && j != elements.size() - 1) {
+				throw new IllegalArgumentException("Only %n can follow the message in layout: " + layout);
+			}
+			if (element.isField() && (j == elements.size() - 1 || elements.get(j + 1).kind != ElementKind.LITERAL)) {
+				throw new IllegalArgumentException("Field %" + element.kind.name().toLowerCase() +
+						" must be followed by a literal in layout: " + layout);
+			}
+		}
+		return elements.toArray(new Element[0]);
+	}
+
+	private static ElementKind getKind(String word, String option, String layout) {
+		switch (word) {
+			case "d":
+			case "date":
+				if (option != null && !option.equals("ISO8601") && !option.equals("yyyy-MM-dd HH:mm:ss,SSS")) {
+					throw new IllegalArgumentException("Unsupported date format '" + option + "' in layout: " + layout);
+				}
+				return ElementKind.DATE;
+			case "t":
+			case "thread":
+				return ElementKind.THREAD;
+			case "p":
+			case "le":
+			case "level":
+				return ElementKind.LEVEL;
+			case "c":
+			case "lo":
+			case "logger":
+				return ElementKind.LOGGER;
+			case "X":
+			case "mdc":
+				return ElementKind.MDC;
+			case "m":
+			case "msg":
+			case "message":
+				return ElementKind.MESSAGE;
+			case "n":
+				return null;
+			default:
+				throw new IllegalArgumentException("Unsupported conversion word '%" + word + "' in layout: " + layout);
+		}
+	}
+
+	/**
+	 * Splits the line into tokens. Returns false if the line does not match any of the layouts, i.e. if it is
+	 * not the first line of a log entry.
+	 */
+	public boolean tokenize(@NotNull CharSequence line, @NotNull Tokens tokens) {
+		for (Element[] layout : layouts) {
+			tokens.reset();
+			if (match(line, layout, tokens)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean match(CharSequence line, Element[] layout, Tokens tokens) {
+		int length = line.length();
+		int position = 0;
+		for (int i = 0; i < layout.length; i++) {
+			Element element = layout[i];
+			switch (element.kind) {
+				case LITERAL:
+					position = matchLiteral(line, position, element.literal, i > 0 && layout[i - 1].padded);
+					if (position < 0) {
+						return false;
+					}
+					break;
+				case DATE:
+					long timestamp = parseTimestamp(line, position);
+					if (timestamp == NO_TIMESTAMP) {
+						return false;
+					}
+					tokens.timestamp = timestamp;
+					position += TIMESTAMP_LENGTH;
+					break;
+				case MESSAGE:
+					tokens.messageStart = position;
+					return true;
+				default:
+					if (element.paddedLeft) {
+						while (position < length && line.charAt(position) == ' ') {
+							position++;
+						}
+					}
+					int start = position;
+					int end = findFieldEnd(line, position, layout[i + 1].literal, element.padded,
+							element.kind == ElementKind.MDC);
+					if (end < 0 || end == start && element.kind != ElementKind.MDC) {
+						return false;
+					}
+					position = end;
+					if (element.padded) {
+						while (end > start && line.charAt(end - 1) == ' ') {
+							end--;
+						}
+					}
+					setField(tokens, element.kind, start, end);
+			}
+		}
+		return position == length;
+	}
+
+	private static void setField(Tokens tokens, ElementKind kind, int start, int end) {
+		switch (kind) {
+			case THREAD:
+				tokens.threadStart = start;
+				tokens.threadEnd = end;
+				break;
+			case LEVEL:
+				tokens.levelStart = start;
+				tokens.levelEnd = end;
+				break;
+			case LOGGER:
+				tokens.loggerStart = start;
+				tokens.loggerEnd = end;
+				break;
+			default:
+				// MDC values are not reported
+		}
+	}
+
+	/**
+	 * A padded field followed by whitespace ends at the first whitespace; otherwise a field ends where
+	 * the following literal occurs. Values (apart from MDC) cannot contain whitespace; only padding can follow them.
+	 */
+	private static int findFieldEnd(CharSequence line, int from, String nextLiteral, boolean padded, boolean whitespaceAllowed) {
+		int length = line.length();
+		if (padded && nextLiteral.charAt(0) == ' ') {
+			for (int i = from; i < length; i++) {
+				if (line.charAt(i) == ' ') {
+					return i;
+				}
+			}
+			return -1;
+		}
+		char first = nextLiteral.charAt(0);
+		boolean inPadding = false;
+		for (int i = from; i <= length - nextLiteral.length(); i++) {
+			char c = line.charAt(i);
+			if (c == first && regionMatches(line, i, nextLiteral)) {
+				return i;
+			}
+			if (!whitespaceAllowed) {
+				if (padded && c == ' ') {
+					inPadding = true;
+				} else if (inPadding || Character.isWhitespace(c)) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the position after the literal, or -1 if it does not match. After a padded field, the leading space
+	 * of the literal matches any number of spaces.
+	 */
+	private static int matchLiteral(CharSequence line, int position, String literal, boolean afterPadded) {
+		int start = 0;
+		if (afterPadded && literal.charAt(0) == ' ') {
+			if (position >= line.length() || line.charAt(position) != ' ') {
+				return -1;
+			}
+			while (position < line.length() && line.charAt(position) == ' ') {
+				position++;
+			}
+			start = 1;
+		}
+		if (position + literal.length() - start > line.length()) {
+			return -1;
+		}
+		for (int i = start; i < literal.length(); i++) {
+			if (line.charAt(position++) != literal.charAt(i)) {
+				return -1;
+			}
+		}
+		return position;
+	}
+
+	private static boolean regionMatches(CharSequence line, int position, String literal) {
+		for (int i = 0; i < literal.length(); i++) {
+			if (line.charAt(position + i) != literal.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes the timestamp (yyyy-MM-dd HH:mm:ss,SSS) at the given position into epoch millis.
+	 * Returns {@link #NO_TIMESTAMP} if there is no valid timestamp there.
+	 */
+	public long parseTimestamp(@NotNull CharSequence line, int from) {
+		if (line.length() < from + TIMESTAMP_LENGTH || !hasTimestampShape(line, from)) {
+			return NO_TIMESTAMP;
+		}
+		int millis = digits(line, from + 20, 3);
+		SecondCache cache = secondCache;
+		if (cache != null && prefixMatches(line, from, cache.prefix)) {
+			return cache.millis + millis;
+		}
+		long secondMillis;
+		try {
+			secondMillis = LocalDateTime.of(digits(line, from, 4), digits(line, from + 5, 2), digits(line, from + 8, 2),
+					digits(line, from + 11, 2), digits(line, from + 14, 2), digits(line, from + 17, 2))
+					.atZone(zone).toInstant().toEpochMilli();
+		} catch (DateTimeException e) {
+			return NO_TIMESTAMP;
+		}
+		char[] prefix = new char[SECOND_PREFIX_LENGTH];
+		for (int i = 0; i < SECOND_PREFIX_LENGTH; i++) {
+			prefix[i] = line.charAt(from + i);
+		}
+		secondCache = new SecondCache(prefix, secondMillis);
+		return secondMillis + millis;
+	}
+
+	private static boolean hasTimestampShape(CharSequence line, int from) {
+		for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+			char c = line.charAt(from + i);
+			switch (i) {
+				case 4:
+				case 7:
+					if (c != '-') {
+						return false;
+					}
+					break;
+				case 10:
+					if (c != ' ') {
+						return false;
+					}
+					break;
+				case 13:
+				case 16:
+					if (c != ':') {
+						return false;
+					}
+					break;
+				case 19:
+					if (c != ',') {
+						return false;
+					}
+					break;
+				default:
+					if (c < '0' || c > '9') {
+						return false;
+					}
+			}
+		}
+		return true;
+	}
+
+	private static boolean prefixMatches(CharSequence line, int from, char[] prefix) {
+		for (int i = SECOND_PREFIX_LENGTH - 1; i >= 0; i--) {         // seconds differ most often
+			if (line.charAt(from + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int digits(CharSequence line, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			value = value * 10 + (line.charAt(i) - '0');
+		}
+		return value;
+	}
+}
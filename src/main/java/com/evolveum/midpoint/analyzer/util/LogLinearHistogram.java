@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative long values (e.g. durations in microseconds) with bounded relative error, in the style
+ * of HdrHistogram. Values are grouped into power-of-two ranges ([0, 2^k), [2^k, 2^(k+1)), [2^(k+1), 2^(k+2)), ...),
+ * each of them split into the same number of linear sub-buckets. So, with 2 significant digits, values are
+ * distinguished with the precision of 1 % or better, be they microseconds or minutes.
+ *
+ * Counts are kept in a long[] array that grows as larger values are recorded. Histograms with the same number
+ * of significant digits can be merged, e.g. when they were collected by parallel workers.
+ *
+ * Not thread-safe.
+ */
+public class LogLinearHistogram {
+
+	private final int significantDigits;
+	private final int subBucketHalfCountMagnitude;
+	private final int subBucketHalfCount;
+	private final long subBucketMask;
+	private final int leadingZeroCountBase;
+
+	private long[] counts;
+	private long totalCount;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+
+	/**
+	 * @param significantDigits Number of significant decimal digits to be preserved (1 to 5).
+	 */
+	public LogLinearHistogram(int significantDigits) {
+		if (significantDigits < 1 || significantDigits > 5) {
+			throw new IllegalArgumentException("Significant digits must be between 1 and 5: " + significantDigits);
+		}
+		this.significantDigits = significantDigits;
+		// the sub-bucket count must be big enough to distinguish 2 * 10^digits values in a single range
+		long largestWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+		int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestWithSingleUnitResolution - 1);
+		int subBucketCount = 1 << subBucketCountMagnitude;
+		this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+		this.subBucketHalfCount = subBucketCount / 2;
+		this.subBucketMask = subBucketCount - 1;
+		this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+		this.counts = new long[subBucketCount];
+	}
+
+	public void recordValue(long value) {
+		recordValue(value, 1);
+	}
+
+	/**
+	 * Records the value (negative values are recorded as 0) the given number of times.
+	 */
+	public void recordValue(long value, long count) {
+		if (value < 0) {
+			value = 0;
+		}
+		int index = countsIndex(value);
+		if (index >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length + counts.length / 2));
+		}
+		counts[index] += count;
+		totalCount += count;
+		if (value < min) {
+			min = value;
+		}
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Adds all the values recorded in the other histogram.
+	 */
+	public void merge(@NotNull LogLinearHistogram other) {
+		if (other.significantDigits != significantDigits) {
+			throw new IllegalArgumentException("Cannot merge histograms with different precision: "
+					+ significantDigits + " vs " + other.significantDigits + " significant digits");
+		}
+		if (other.totalCount == 0) {
+			return;
+		}
+		if (other.counts.length > counts.length) {
+			counts = Arrays.copyOf(counts, other.counts.length);
+		}
+		for (int i = 0; i < other.counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+	}
+
+	public int getSignificantDigits() {
+		return significantDigits;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * The exact minimal value, or 0 if there are no values.
+	 */
+	public long getMin() {
+		return totalCount > 0 ? min : 0;
+	}
+
+	/**
+	 * The exact maximal value, or 0 if there are no values.
+	 */
+	public long getMax() {
+		return totalCount > 0 ? max : 0;
+	}
+
+	/**
+	 * Returns the value at the given percentile (0-100), i.e. the (highest equivalent of the) smallest value
+	 * such that at least the given percentage of values is less or equal to it. Returns 0 if there are no values.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= countAtPercentile) {
+				return Math.max(min, Math.min(max, highestEquivalentValue(i)));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the number of values in [from, to].
+	 */
+	public long getCountBetween(long from, long to) {
+		long count = 0;
+		int fromIndex = countsIndex(Math.max(from, 0));
+		int toIndex = Math.min(countsIndex(Math.max(to, 0)), counts.length - 1);
+		for (int i = fromIndex; i <= toIndex; i++) {
+			count += counts[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Index of the bucket the value (negative values are treated as 0) is counted in. Values in the same bucket
+	 * are not distinguished by the histogram; a higher index means higher values.
+	 */
+	public int getBucketIndex(long value) {
+		return countsIndex(Math.max(value, 0));
+	}
+
+	private int countsIndex(long value) {
+		int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+		int subBucketIndex = (int) (value >>> bucketIndex);
+		// bucket 0 uses all sub-buckets, the others only their upper half (the lower one is covered by lower buckets)
+		return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+	}
+
+	private long lowestEquivalentValue(int index) {
+		int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+		int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+		if (bucketIndex < 0) {
+			subBucketIndex -= subBucketHalfCount;
+			bucketIndex = 0;
+		}
+		return (long) subBucketIndex << bucketIndex;
+	}
+
+	private long highestEquivalentValue(int index) {
+		int bucketIndex = Math.max((index >> subBucketHalfCountMagnitude) - 1, 0);
+		return lowestEquivalentValue(index) + (1L << bucketIndex) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "LogLinearHistogram{count=" + totalCount + ", min=" + getMin() + ", p50=" + getValueAtPercentile(50)
+				+ ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + "}";
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+
+/**
+ * Text taken from a log line (e.g. arguments or return value of a method). It is either kept in memory or,
+ * for lines of uncompressed log files, represented only by its coordinates (file, byte offset and length of the line,
+ * number of characters to skip) and re-read on demand via {@link LogTextCache}.
+ */
+public abstract class LogText {
+
+	public static final LogText EMPTY = inMemory("");
+
+	/**
+	 * Returns the text. For texts stored in files this can mean reading the file; the file must not be modified
+	 * in the meanwhile.
+	 *
+	 * @throws UncheckedIOException if the file cannot be read
+	 */
+	@NotNull
+	public abstract String getText();
+
+	public static LogText inMemory(@NotNull String text) {
+		return new InMemory(text);
+	}
+
+	static LogText inFile(@NotNull File file, long offset, int length, int skip, @NotNull LogTextCache cache) {
+		return new InFile(file, offset, length, skip, cache);
+	}
+
+	private static class InMemory extends LogText {
+
+		@NotNull private final String text;
+
+		private InMemory(@NotNull String text) {
+			this.text = text;
+		}
+
+		@NotNull
+		@Override
+		public String getText() {
+			return text;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	static class InFile extends LogText {
+
+		@NotNull final File file;
+		final long offset;                  // offset of the line
+		final int length;                   // length of the line in bytes (without the terminator), or -1 if not known
+		final int skip;                     // number of characters of the line that are not part of the text
+		@NotNull private final LogTextCache cache;
+
+		private InFile(@NotNull File file, long offset, int length, int skip, @NotNull LogTextCache cache) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.skip = skip;
+			this.cache = cache;
+		}
+
+		@NotNull
+		@Override
+		public String getText() {
+			try {
+				return cache.get(this);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Couldn't read log text at " + this + ": " + e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Texts at the same location are equal (they are keys in {@link LogTextCache}), irrespective of the cache.
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			InFile inFile = (InFile) o;
+			return offset == inFile.offset && length == inFile.length && skip == inFile.skip && file.equals(inFile.file);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(file, offset, length, skip);
+		}
+
+		@Override
+		public String toString() {
+			return "[" + file + "@" + offset + (length >= 0 ? "+" + length : "") + ", skip " + skip + "]";
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads texts stored in log files (see {@link LogText}). Keeps a few most recently used files open, and
+ * the most recently read texts decoded.
+ *
+ * Texts are created with this cache by {@link LogEntryView#getMessageText(int, LogTextCache)}. The cache must be
+ * closed after the texts are no longer needed.
+ */
+public class LogTextCache implements Closeable {
+
+	private static final Trace LOGGER = TraceManager.getTrace(LogTextCache.class);
+
+	private static final int DEFAULT_MAX_OPEN_FILES = 8;
+	private static final int DEFAULT_MAX_CACHED_CHARS = 4 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 8 * 1024;             // when reading lines of unknown length
+
+	private final int maxOpenFiles;
+	private final int maxCachedChars;
+
+	private final LinkedHashMap<File, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<LogText.InFile, String> texts = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedChars;
+	private ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+	public LogTextCache() {
+		this(DEFAULT_MAX_OPEN_FILES, DEFAULT_MAX_CACHED_CHARS);
+	}
+
+	public LogTextCache(int maxOpenFiles, int maxCachedChars) {
+		this.maxOpenFiles = maxOpenFiles;
+		this.maxCachedChars = maxCachedChars;
+	}
+
+	synchronized String get(LogText.InFile location) throws IOException {
+		String text = texts.get(location);
+		if (text == null) {
+			text = read(location);
+			texts.put(location, text);
+			cachedChars += text.length();
+			Iterator<Map.Entry<LogText.InFile, String>> iterator = texts.entrySet().iterator();
+			while (cachedChars > maxCachedChars && iterator.hasNext()) {
+				Map.Entry<LogText.InFile, String> eldest = iterator.next();
+				if (eldest.getKey() != location) {
+					cachedChars -= eldest.getValue().length();
+					iterator.remove();
+				}
+			}
+		}
+		return text;
+	}
+
+	private String read(LogText.InFile location) throws IOException {
+		FileChannel channel = getChannel(location.file);
+		buffer.clear();
+		if (location.length >= 0) {
+			ensureCapacity(location.length);
+			buffer.limit(location.length);
+			readFully(channel, location.offset);
+		} else {
+			readLine(channel, location.offset);
+		}
+		String line = new String(buffer.array(), 0, buffer.position(), UTF_8);
+		if (line.length() < location.skip) {
+			throw new IOException("The line is shorter than expected (" + line.length() + " < " + location.skip
+					+ " characters); has the file changed?");
+		}
+		return line.substring(location.skip);
+	}
+
+	private void readFully(FileChannel channel, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file at " + (offset + buffer.position()));
+			}
+		}
+	}
+
+	/**
+	 * Reads up to the line terminator (or the end of file), leaving the buffer position at the end of the line.
+	 */
+	private void readLine(FileChannel channel, long offset) throws IOException {
+		int scanned = 0;
+		for (;;) {
+			ensureCapacity(buffer.position() + CHUNK_SIZE);
+			buffer.limit(buffer.position() + CHUNK_SIZE);
+			int read = channel.read(buffer, offset + buffer.position());
+			byte[] array = buffer.array();
+			for (; scanned < buffer.position(); scanned++) {
+				if (array[scanned] == '\n' || array[scanned] == '\r') {
+					buffer.position(scanned);
+					return;
+				}
+			}
+			if (read < 0) {
+				return;
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer.capacity() < capacity) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+
+	@NotNull
+	private FileChannel getChannel(File file) throws IOException {
+		FileChannel channel = channels.get(file);
+		if (channel == null) {
+			channel = new RandomAccessFile(file, "r").getChannel();
+			channels.put(file, channel);
+			if (channels.size() > maxOpenFiles) {
+				Iterator<FileChannel> iterator = channels.values().iterator();
+				closeQuietly(iterator.next());
+				iterator.remove();
+			}
+		}
+		return channel;
+	}
+
+	@Override
+	public synchronized void close() {
+		channels.values().forEach(this::closeQuietly);
+		channels.clear();
+		texts.clear();
+		cachedChars = 0;
+	}
+
+	private void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't close log file channel: {}", e.getMessage(), e);
+		}
+	}
+}
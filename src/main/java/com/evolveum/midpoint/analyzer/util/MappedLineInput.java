@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads lines of a single file by scanning a memory-mapped window for newline bytes.
+ * Files larger than the window are mapped piecewise; a window always starts at a line boundary.
+ */
+class MappedLineInput implements LogLineReader.LineInput {
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private long windowSize;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+	private int position;                   // relative to windowStart
+
+	private final LineView view = new LineView();
+
+	/**
+	 * @param startOffset Offset of the first line to be read.
+	 */
+	MappedLineInput(File file, long windowSize, long startOffset) throws IOException {
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			this.fileSize = channel.size();
+			this.windowSize = windowSize;
+			map(Math.min(startOffset, fileSize));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public LineView readLine() throws IOException {
+		for (;;) {
+			if (windowStart + position >= fileSize) {
+				return null;
+			}
+			int limit = window.limit();
+			int bits = 0;
+			for (int i = position; i < limit; i++) {
+				byte b = window.get(i);
+				if (b == '\n') {
+					return createView(i, i + 1, bits);
+				}
+				bits |= b;
+			}
+			if (windowStart + limit >= fileSize) {
+				return createView(limit, limit, bits);     // the last line has no terminator
+			}
+			if (position == 0) {
+				// the line does not fit into the window at all
+				if (windowSize >= Integer.MAX_VALUE) {
+					throw new IOException("Line at offset " + windowStart + " is longer than " + Integer.MAX_VALUE
+							+ " bytes, so it cannot be mapped");
+				}
+				windowSize *= 2;
+			}
+			map(windowStart + position);
+		}
+	}
+
+	private LineView createView(int end, int next, int bits) {
+		int start = position;
+		int contentEnd = end > start && window.get(end - 1) == '\r' ? end - 1 : end;
+		view.set(window, start, contentEnd, windowStart + start, bits >= 0);
+		position = next;
+		return view;
+	}
+
+	private void map(long start) throws IOException {
+		long size = Math.min(Math.min(windowSize, Integer.MAX_VALUE), fileSize - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windowStart = start;
+		position = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
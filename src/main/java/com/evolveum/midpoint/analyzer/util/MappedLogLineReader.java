@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads a set of log files by memory-mapping them and scanning for newlines at the byte level.
+ * Lines are handed out as {@link LineView}s; Strings are created only when requested.
+ */
+public class MappedLogLineReader extends LogLineReader {
+
+	private static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+	private final long windowSize;
+
+	public MappedLogLineReader(File directory) throws IOException {
+		this(directory, null);
+	}
+
+	public MappedLogLineReader(File directory, @Nullable LogFileCatalog catalog) throws IOException {
+		this(directory, catalog, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedLogLineReader(File directory, @Nullable LogFileCatalog catalog, long windowSize) throws IOException {
+		super(directory, catalog);
+		this.windowSize = windowSize;
+	}
+
+	private MappedLogLineReader(List<LogFileInfo> files, LogFileCatalog catalog, long windowSize) {
+		super(files, catalog);
+		this.windowSize = windowSize;
+	}
+
+	@Override
+	LogLineReader newReader(@NotNull List<LogFileInfo> files) {
+		return new MappedLogLineReader(files, getCatalog(), windowSize);
+	}
+
+	@Override
+	LineInput openInput(LogFileInfo fileInfo, long startOffset) throws IOException {
+		if (fileInfo.isPlain()) {
+			return new MappedLineInput(fileInfo.file, windowSize, startOffset);
+		} else {
+			return super.openInput(fileInfo, startOffset);           // compressed data cannot be mapped
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses log files concurrently (one worker per file) and merges the resulting entry streams
+ * by entry timestamp. Entries with the same timestamp are returned in the order of their files.
+ *
+ * Files are started in the order of their first timestamps, at most `parallelism` files ahead of the merge;
+ * a file joins the merge as soon as the merge reaches its first timestamp. So overlapping files
+ * (e.g. written by more appenders) are interleaved correctly. The unit of parallelism is a whole file: a single
+ * large file (or an archive member) is parsed by a single worker, so this helps only if there are more files.
+ *
+ * Workers pass the entries in chunks of views (see {@link LogEntryView#copyFrom(LogEntryView)}); consumed chunks
+ * are returned to their worker and reused, so no objects are created per entry (unless {@link #readEntry()} is used).
+ *
+ * Parsed entries wait for the merge in memory, up to a budget shared by all workers (a quarter of the maximum heap,
+ * estimated from the lengths of the texts). So the workers for files not yet merged (e.g. rotated files, which do not
+ * overlap) can parse them as a whole while the merge goes through the previous ones. A worker that has nothing
+ * buffered may exceed the budget by a chunk, so that the merge never waits for a worker waiting for the budget.
+ */
+public class MergingLogEntryReader implements LogEntrySource, Closeable {
+
+	private static final Trace LOGGER = TraceManager.getTrace(MergingLogEntryReader.class);
+
+	private static final int CHUNK_SIZE = 1000;                 // entries
+	private static final int ENTRY_OVERHEAD = 200;              // bytes: the view with its line starts
+
+	@NotNull private final LogLineReader source;
+	@NotNull private final List<LogLineReader.LogFileInfo> files;
+	private final int parallelism;
+	private final ExecutorService executor;
+	private final long readAheadBudget;                         // bytes
+
+	private final Object budgetLock = new Object();
+	private long bufferedSize;                                  // estimated bytes of the chunks not merged yet
+
+	private final List<FileWorker> workers = new ArrayList<>();
+	private int nextToActivate;
+	private final PriorityQueue<FileWorker> active = new PriorityQueue<>(
+			Comparator.<FileWorker>comparingLong(w -> w.head.getTimestamp()).thenComparingInt(w -> w.index));
+
+	private Date firstTimestamp;
+
+	/**
+	 * @param source Reader whose files are to be read. It is used only as a template: each file is read by a reader
+	 *               of the same kind.
+	 */
+	public MergingLogEntryReader(@NotNull LogLineReader source, int parallelism) {
+		if (source.isFollowing()) {
+			throw new IllegalArgumentException("Follow mode is not supported when reading files in parallel");
+		}
+		this.source = source;
+		this.files = source.getFiles();
+		this.parallelism = parallelism;
+		this.readAheadBudget = Runtime.getRuntime().maxMemory() / 4;
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "log-reader-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static class Chunk {
+		private final LogEntryView[] entries = new LogEntryView[CHUNK_SIZE];
+		private int count;
+		private long size;                                      // estimated, in bytes
+	}
+
+	private static final Chunk END = new Chunk();
+
+	private class FileWorker implements Runnable {
+
+		private final int index;
+		private final LogLineReader.LogFileInfo fileInfo;
+		private final LogEntryReader reader;
+		private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();        // bounded by the budget
+		private final Queue<Chunk> recycled = new ConcurrentLinkedQueue<>();
+		private volatile Throwable failure;
+
+		private Chunk chunk = END;
+		private int positionInChunk;
+		private Chunk consumed;                                 // its last entry can still be used by the caller
+		private LogEntryView head;
+
+		private FileWorker(int index, LogLineReader.LogFileInfo fileInfo) {
+			this.index = index;
+			this.fileInfo = fileInfo;
+			this.reader = new LogEntryReader(source.createReader(Collections.singletonList(fileInfo)));
+		}
+
+		@Override
+		public void run() {
+			try {
+				Chunk current = newChunk();
+				LogEntryView entry;
+				while ((entry = reader.readEntryView()) != null) {
+					LogEntryView copy = current.entries[current.count];
+					if (copy == null) {
+						copy = new LogEntryView();
+						current.entries[current.count] = copy;
+					}
+					copy.copyFrom(entry);
+					current.count++;
+					current.size += ENTRY_OVERHEAD + 2L * copy.getLength();
+					if (current.count == CHUNK_SIZE) {
+						put(current);
+						current = newChunk();
+					}
+				}
+				if (current.count > 0) {
+					put(current);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Throwable t) {
+				failure = t;
+			}
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private Chunk newChunk() {
+			Chunk chunk = recycled.poll();
+			if (chunk == null) {
+				chunk = new Chunk();
+			}
+			chunk.count = 0;
+			chunk.size = 0;
+			return chunk;
+		}
+
+		private void put(Chunk chunk) throws InterruptedException {
+			synchronized (budgetLock) {
+				// only the worker adds to its queue, so once empty, it stays so
+				while (bufferedSize + chunk.size > readAheadBudget && !queue.isEmpty()) {
+					budgetLock.wait();
+				}
+				bufferedSize += chunk.size;
+			}
+			queue.put(chunk);
+		}
+
+		/**
+		 * Moves to the next entry of this file. Returns false if there is none.
+		 */
+		private boolean advance() throws IOException {
+			while (positionInChunk >= chunk.count) {
+				if (chunk != END) {
+					synchronized (budgetLock) {
+						bufferedSize -= chunk.size;
+						budgetLock.notifyAll();
+					}
+					// the previous consumed chunk is no longer used: the caller got entries of this one since then
+					if (consumed != null) {
+						recycled.add(consumed);
+					}
+					consumed = chunk;
+				}
+				try {
+					chunk = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while reading " + fileInfo);
+				}
+				positionInChunk = 0;
+				if (chunk == END) {
+					// the worker is done, so its chunks are not needed any more (the caller keeps the last entry it got)
+					recycled.clear();
+					consumed = null;
+					if (failure != null) {
+						throw new IOException("Couldn't read " + fileInfo + ": " + failure.getMessage(), failure);
+					}
+					head = null;
+					return false;
+				}
+			}
+			head = chunk.entries[positionInChunk++];
+			return true;
+		}
+	}
+
+	@Override
+	public LogEntry readEntry() throws IOException {
+		LogEntryView entry = readEntryView();
+		return entry != null ? entry.copy() : null;
+	}
+
+	/**
+	 * The view stays valid until the next call, as its chunk is reused only after the next one is consumed.
+	 */
+	@Override
+	public LogEntryView readEntryView() throws IOException {
+		while (nextToActivate < files.size() &&
+				(active.isEmpty() || files.get(nextToActivate).startTimestamp <= active.peek().head.getTimestamp())) {
+			startWorkers();
+			FileWorker worker = workers.get(nextToActivate++);
+			LOGGER.info("Merging file {}", worker.fileInfo);
+			if (worker.advance()) {
+				active.add(worker);
+			}
+		}
+		startWorkers();
+		FileWorker worker = active.poll();
+		if (worker == null) {
+			return null;
+		}
+		LogEntryView entry = worker.head;
+		if (worker.advance()) {
+			active.add(worker);
+		}
+		if (firstTimestamp == null) {
+			firstTimestamp = new Date(entry.getTimestamp());
+		}
+		return entry;
+	}
+
+	private void startWorkers() {
+		while (workers.size() < files.size() && workers.size() < nextToActivate + parallelism) {
+			FileWorker worker = new FileWorker(workers.size(), files.get(workers.size()));
+			workers.add(worker);
+			executor.execute(worker);
+		}
+	}
+
+	@Override
+	public int getTotalLines() {
+		return workers.stream().mapToInt(w -> w.reader.getTotalLines()).sum();
+	}
+
+	@Override
+	public int getTotalEntries() {
+		return workers.stream().mapToInt(w -> w.reader.getTotalEntries()).sum();
+	}
+
+	@Override
+	public Date getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import com.evolveum.midpoint.util.logging.Trace;
+import com.evolveum.midpoint.util.logging.TraceManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Records (e.g. output lines) with order keys, added in non-decreasing order of the keys. Records produced
+ * separately (e.g. by parallel workers) can be merged into a single sequence ordered by the keys;
+ * records with equal keys are kept in the order of the sources.
+ *
+ * If a codec is given, at most the given number of records is kept in memory: when there are more, they are appended
+ * to a temporary file. As the records come ordered, the file is ordered as well, and the merge just reads the files
+ * of the sources (followed by the records still in memory) sequentially.
+ *
+ * Not thread-safe.
+ */
+public class OrderedRecords<T> implements Closeable {
+
+	private static final Trace LOGGER = TraceManager.getTrace(OrderedRecords.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes records to the temporary file and reads them back.
+	 */
+	public interface Codec<T> {
+		void write(DataOutput out, T record) throws IOException;
+		T read(DataInput in) throws IOException;
+	}
+
+	private final int maxInMemory;
+	private final Codec<T> codec;                   // null if the records are kept in memory
+
+	private long[] keys = new long[16];
+	private final List<T> records = new ArrayList<>();
+	private long lastKey = Long.MIN_VALUE;
+
+	private File file;                              // null if nothing was written to a file
+	private DataOutputStream out;                   // open while records are being added
+	private long recordsInFile;
+
+	/**
+	 * All records are kept in memory.
+	 */
+	public OrderedRecords() {
+		this.maxInMemory = Integer.MAX_VALUE;
+		this.codec = null;
+	}
+
+	public OrderedRecords(int maxInMemory, @NotNull Codec<T> codec) {
+		if (maxInMemory < 1) {
+			throw new IllegalArgumentException("Number of records kept in memory must be positive: " + maxInMemory);
+		}
+		this.maxInMemory = maxInMemory;
+		this.codec = codec;
+	}
+
+	public void add(long key, T record) throws IOException {
+		if (key < lastKey) {
+			throw new IllegalArgumentException("Key " + key + " is lower than the previous one: " + lastKey);
+		}
+		lastKey = key;
+		if (records.size() == maxInMemory) {
+			spill();
+		}
+		int size = records.size();
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		keys[size] = key;
+		records.add(record);
+	}
+
+	private void spill() throws IOException {
+		if (file == null) {
+			file = File.createTempFile("ordered-records-", ".tmp");
+			file.deleteOnExit();
+		}
+		if (out == null) {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+		}
+		for (int i = 0; i < records.size(); i++) {
+			out.writeLong(keys[i]);
+			codec.write(out, records.get(i));
+		}
+		recordsInFile += records.size();
+		LOGGER.debug("Spilled {} records to {} ({} in total)", records.size(), file, recordsInFile);
+		records.clear();
+	}
+
+	public long size() {
+		return recordsInFile + records.size();
+	}
+
+	/**
+	 * The records of a source being merged: first the ones in the file, then the ones in memory.
+	 */
+	private static class Cursor<T> {
+		private final OrderedRecords<T> source;
+		private final DataInputStream in;           // null if there is no file
+		private long remainingInFile;
+		private int nextInMemory;
+
+		private boolean present;
+		private long key;
+		private T record;
+
+		private Cursor(OrderedRecords<T> source) throws IOException {
+			this.source = source;
+			if (source.out != null) {
+				source.out.close();
+				source.out = null;
+			}
+			this.in = source.file != null ?
+					new DataInputStream(new BufferedInputStream(new FileInputStream(source.file), BUFFER_SIZE)) : null;
+			this.remainingInFile = source.recordsInFile;
+		}
+
+		private void advance() throws IOException {
+			if (remainingInFile > 0) {
+				remainingInFile--;
+				key = in.readLong();
+				record = source.codec.read(in);
+				present = true;
+			} else if (nextInMemory < source.records.size()) {
+				key = source.keys[nextInMemory];
+				record = source.records.get(nextInMemory++);
+				present = true;
+			} else {
+				record = null;
+				present = false;
+			}
+		}
+
+		private void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Passes all records of the sources to the consumer, ordered by their keys.
+	 */
+	public static <T> void merge(@NotNull List<OrderedRecords<T>> sources, @NotNull Consumer<T> consumer) throws IOException {
+		List<Cursor<T>> cursors = new ArrayList<>(sources.size());
+		try {
+			for (OrderedRecords<T> source : sources) {
+				Cursor<T> cursor = new Cursor<>(source);
+				cursors.add(cursor);
+				cursor.advance();
+			}
+			for (;;) {
+				// the number of sources is small, so a simple scan is good enough
+				Cursor<T> next = null;
+				for (Cursor<T> cursor : cursors) {
+					if (cursor.present && (next == null || cursor.key < next.key)) {
+						next = cursor;
+					}
+				}
+				if (next == null) {
+					return;
+				}
+				consumer.accept(next.record);
+				next.advance();
+			}
+		} finally {
+			for (Cursor<T> cursor : cursors) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Discards the records, deleting the temporary file (if any).
+	 */
+	@Override
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		if (file != null) {
+			if (!file.delete()) {
+				LOGGER.warn("Couldn't delete temporary file {}", file);
+			}
+			file = null;
+		}
+		records.clear();
+		recordsInFile = 0;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Statistics of a pipeline stage, i.e. of the {@link RingBuffer}(s) through which the stage passes its output:
+ * throughput, occupancy of the buffer, and how long the producer waited for free space (backpressure) and the consumer
+ * for data. If the producer waits a lot, the consumer is the bottleneck, and vice versa.
+ *
+ * Thread-safe.
+ */
+public class PipelineStatistics {
+
+	@NotNull private final String name;
+
+	private long items;
+	private long batches;
+	private long firstPublished;                // nanoTime
+	private long lastPublished;                 // nanoTime
+	private long occupancySum;                  // sum of occupancies at publish times
+	private int maxOccupancy;
+	private int capacity;
+	private long producerWaitNanos;
+	private long consumerWaitNanos;
+
+	public PipelineStatistics(@NotNull String name) {
+		this.name = name;
+	}
+
+	@NotNull
+	public String getName() {
+		return name;
+	}
+
+	synchronized void recordPublished(int batchItems, int occupancy, int capacity) {
+		long now = System.nanoTime();
+		if (batches == 0) {
+			firstPublished = now;
+		}
+		lastPublished = now;
+		items += batchItems;
+		batches++;
+		occupancySum += occupancy;
+		maxOccupancy = Math.max(maxOccupancy, occupancy);
+		this.capacity = capacity;
+	}
+
+	synchronized void recordProducerWait(long nanos) {
+		producerWaitNanos += nanos;
+	}
+
+	synchronized void recordConsumerWait(long nanos) {
+		consumerWaitNanos += nanos;
+	}
+
+	public synchronized long getItems() {
+		return items;
+	}
+
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Items per second, measured between the first and the last published batch.
+	 */
+	public synchronized double getThroughput() {
+		long nanos = lastPublished - firstPublished;
+		return nanos > 0 ? items * 1e9 / nanos : 0;
+	}
+
+	/**
+	 * Average number of batches in the buffer (including the one just published) at the time of publishing.
+	 */
+	public synchronized double getAverageOccupancy() {
+		return batches > 0 ? (double) occupancySum / batches : 0;
+	}
+
+	public synchronized int getMaxOccupancy() {
+		return maxOccupancy;
+	}
+
+	/**
+	 * Time the producer waited for a free batch, in milliseconds.
+	 */
+	public synchronized long getProducerWaitTime() {
+		return producerWaitNanos / 1_000_000;
+	}
+
+	/**
+	 * Time the consumer waited for a published batch, in milliseconds.
+	 */
+	public synchronized long getConsumerWaitTime() {
+		return consumerWaitNanos / 1_000_000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "%s: %d items in %d batches (%.0f/s), occupancy avg %.1f max %d of %d, "
+						+ "producer waited %d ms, consumer waited %d ms", name, items, batches, getThroughput(),
+				getAverageOccupancy(), maxOccupancy, capacity, getProducerWaitTime(), getConsumerWaitTime());
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads lines of another input in a separate thread, ahead of their processing. So reading (I/O, decompression,
+ * scanning for line ends) overlaps with the processing of the lines. The bytes of lines are copied into
+ * preallocated batches passed through a {@link RingBuffer}.
+ */
+class PipelinedLineInput implements LogLineReader.LineInput {
+
+	private static final int BATCH_BYTES = 256 * 1024;
+	private static final int BATCH_LINES = 4096;
+	private static final int CAPACITY = 8;              // batches
+
+	private static class LineBatch {
+		private byte[] bytes = new byte[BATCH_BYTES];
+		private ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+		private final int[] ends = new int[BATCH_LINES];
+		private final long[] offsets = new long[BATCH_LINES];
+		private final boolean[] ascii = new boolean[BATCH_LINES];
+		private int size;
+
+		/**
+		 * Returns false if the line does not fit; a line always fits into an empty batch.
+		 */
+		private boolean add(LineView line) {
+			int used = size > 0 ? ends[size - 1] : 0;
+			int length = line.getByteLength();
+			if (size == BATCH_LINES || used + length > bytes.length) {
+				if (size > 0) {
+					return false;
+				}
+				bytes = Arrays.copyOf(bytes, Math.max(length, bytes.length * 2));
+				wrapped = ByteBuffer.wrap(bytes);
+			}
+			line.copyBytes(bytes, used);
+			ends[size] = used + length;
+			offsets[size] = line.getOffset();
+			ascii[size] = line.isAscii();
+			size++;
+			return true;
+		}
+	}
+
+	@NotNull private final LogLineReader.LineInput source;
+	@NotNull private final RingBuffer<LineBatch> buffer;
+	@NotNull private final Thread producer;
+
+	private LineBatch current;
+	private int position;
+	private final LineView view = new LineView();
+
+	PipelinedLineInput(@NotNull LogLineReader.LineInput source, @NotNull PipelineStatistics statistics) {
+		this.source = source;
+		this.buffer = new RingBuffer<>(CAPACITY, LineBatch::new, statistics);
+		this.producer = new Thread(this::produce, "line-reader");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private void produce() {
+		try {
+			LineBatch batch = buffer.claim();
+			if (batch == null) {
+				return;
+			}
+			batch.size = 0;
+			LineView line;
+			while ((line = source.readLine()) != null) {
+				if (!batch.add(line)) {
+					buffer.publish(batch.size);
+					batch = buffer.claim();
+					if (batch == null) {
+						return;
+					}
+					batch.size = 0;
+					batch.add(line);
+				}
+			}
+			if (batch.size > 0) {
+				buffer.publish(batch.size);
+			}
+			buffer.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			buffer.fail(e);
+		} catch (Throwable t) {
+			buffer.fail(t);
+		}
+	}
+
+	@Override
+	public LineView readLine() throws IOException {
+		while (current == null || position == current.size) {
+			if (current != null) {
+				buffer.release();
+				current = null;
+			}
+			try {
+				current = buffer.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for lines");
+			}
+			if (current == null) {
+				Throwable failure = buffer.getFailure();
+				if (failure instanceof IOException) {
+					throw (IOException) failure;
+				} else if (failure != null) {
+					throw new IOException("Couldn't read lines: " + failure.getMessage(), failure);
+				}
+				return null;
+			}
+			position = 0;
+		}
+		int start = position > 0 ? current.ends[position - 1] : 0;
+		view.set(current.wrapped, start, current.ends[position], current.offsets[position], current.ascii[position]);
+		position++;
+		return view;
+	}
+
+	/**
+	 * Stops the reading thread (if it is still running) and closes the source.
+	 */
+	@Override
+	public void close() throws IOException {
+		buffer.cancel();
+		try {
+			producer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while stopping the reading thread");
+		} finally {
+			source.close();
+		}
+	}
+}
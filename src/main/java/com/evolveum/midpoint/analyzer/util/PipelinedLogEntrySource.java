@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+
+/**
+ * Parses log entries (using another source) in a separate thread, ahead of their processing. Entries are passed
+ * through a {@link RingBuffer} as copies, because views cannot be shared between threads; the copies are views owned
+ * by the slots of the buffer and reused, so no objects are created per entry (unless {@link #readEntry()} is used).
+ *
+ * The thread is started when the first entry is requested, so the source can be set up before.
+ */
+public class PipelinedLogEntrySource implements LogEntrySource, Closeable {
+
+	private static final int BATCH_SIZE = 1000;         // entries
+	private static final int CAPACITY = 16;             // batches
+
+	private static class EntryBatch {
+		private final LogEntryView[] entries = new LogEntryView[BATCH_SIZE];
+		private int size;
+		private int totalLines;                 // of the source, after reading the batch
+		private int totalEntries;
+	}
+
+	@NotNull private final LogEntrySource source;
+	@NotNull private final RingBuffer<EntryBatch> buffer;
+	private Thread producer;
+
+	private EntryBatch current;
+	private int position;
+	private int totalLines;
+	private int totalEntries;
+	private Date firstTimestamp;
+
+	public PipelinedLogEntrySource(@NotNull LogEntrySource source) {
+		this.source = source;
+		this.buffer = new RingBuffer<>(CAPACITY, EntryBatch::new, new PipelineStatistics("entries"));
+	}
+
+	private void produce() {
+		try {
+			for (;;) {
+				EntryBatch batch = buffer.claim();
+				if (batch == null) {
+					return;
+				}
+				batch.size = 0;
+				LogEntryView entry = null;
+				while (batch.size < BATCH_SIZE && (entry = source.readEntryView()) != null) {
+					LogEntryView copy = batch.entries[batch.size];
+					if (copy == null) {
+						copy = new LogEntryView();
+						batch.entries[batch.size] = copy;
+					}
+					copy.copyFrom(entry);
+					batch.size++;
+				}
+				batch.totalLines = source.getTotalLines();
+				batch.totalEntries = source.getTotalEntries();
+				buffer.publish(batch.size);
+				if (entry == null) {
+					buffer.close();
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			buffer.fail(e);
+		} catch (Throwable t) {
+			buffer.fail(t);
+		}
+	}
+
+	@Override
+	public LogEntry readEntry() throws IOException {
+		LogEntryView entry = readEntryView();
+		return entry != null ? entry.copy() : null;
+	}
+
+	/**
+	 * The view stays valid until the next call, as the slot holding it is released only then.
+	 */
+	@Override
+	public LogEntryView readEntryView() throws IOException {
+		if (producer == null) {
+			producer = new Thread(this::produce, "entry-parser");
+			producer.setDaemon(true);
+			producer.start();
+		}
+		while (current == null || position == current.size) {
+			if (current != null) {
+				buffer.release();
+				current = null;
+			}
+			try {
+				current = buffer.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for log entries");
+			}
+			if (current == null) {
+				Throwable failure = buffer.getFailure();
+				if (failure instanceof IOException) {
+					throw (IOException) failure;
+				} else if (failure != null) {
+					throw new IOException("Couldn't parse log entries: " + failure.getMessage(), failure);
+				}
+				return null;
+			}
+			position = 0;
+			totalLines = current.totalLines;
+			totalEntries = current.totalEntries;
+		}
+		LogEntryView entry = current.entries[position++];
+		if (firstTimestamp == null) {
+			firstTimestamp = new Date(entry.getTimestamp());
+		}
+		return entry;
+	}
+
+	/**
+	 * Lines read by the source so far, as known when the last batch of entries was passed.
+	 */
+	@Override
+	public int getTotalLines() {
+		return totalLines;
+	}
+
+	@Override
+	public int getTotalEntries() {
+		return totalEntries;
+	}
+
+	@Override
+	public Date getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	@NotNull
+	public PipelineStatistics getStatistics() {
+		return buffer.getStatistics();
+	}
+
+	/**
+	 * Stops the parsing thread (if it is still running).
+	 */
+	@Override
+	public void close() {
+		buffer.cancel();
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads (and typically decompresses) the underlying stream on a background thread, keeping at most
+ * a bounded number of chunks ahead of the consumer.
+ */
+class ReadAheadInputStream extends InputStream {
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final int CHUNKS_AHEAD = 8;
+
+	private static final Chunk END = new Chunk(new byte[0], 0);
+
+	private static class Chunk {
+		private final byte[] data;
+		private final int length;
+
+		private Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private final InputStream underlying;
+	private final String name;
+	private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+	private final Thread thread;
+	private volatile Throwable failure;
+
+	private Chunk current;
+	private int position;
+
+	ReadAheadInputStream(InputStream underlying, String name) {
+		this.underlying = underlying;
+		this.name = name;
+		this.thread = new Thread(this::readAhead, "read-ahead: " + name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Whatever happens here (except for closing by the consumer), the consumer gets END; so it never waits forever.
+	 */
+	private void readAhead() {
+		boolean closed = false;
+		try {
+			for (;;) {
+				byte[] data = new byte[CHUNK_SIZE];
+				int length = 0;
+				int n = 0;
+				while (length < data.length && (n = underlying.read(data, length, data.length - length)) >= 0) {
+					length += n;
+				}
+				if (length > 0) {
+					queue.put(new Chunk(data, length));
+				}
+				if (n < 0) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			closed = true;
+		} catch (Throwable t) {
+			failure = t;
+		} finally {
+			if (!closed) {
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) {
+					// closed by the consumer
+				}
+			}
+		}
+	}
+
+	private boolean ensureData() throws IOException {
+		while (current == null || position >= current.length) {
+			if (current == END) {
+				return false;
+			}
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			position = 0;
+			if (current == END && failure != null) {
+				throw failure instanceof IOException ?
+						(IOException) failure : new IOException("Cannot read " + name + ": " + failure.getMessage(), failure);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return ensureData() ? current.data[position++] & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!ensureData()) {
+			return -1;
+		}
+		int n = Math.min(length, current.length - position);
+		System.arraycopy(current.data, position, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		underlying.close();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Supplier;
+
+/**
+ * Bounded buffer connecting two pipeline stages (a single producer and a single consumer thread). It holds a fixed
+ * number of preallocated batch objects that are filled by the producer, passed to the consumer and then reused;
+ * so passing items does not allocate memory, and synchronization is done once per batch, not per item.
+ *
+ * Producer: {@link #claim()} a batch, fill it, {@link #publish(int)} it; repeat; {@link #close()} (or {@link #fail(Throwable)}).
+ * If all batches are in use, claim() waits (backpressure).
+ *
+ * Consumer: {@link #take()} a batch, process it, {@link #release()} it; repeat until take() returns null.
+ * The consumer can {@link #cancel()} the producer, e.g. when it stops reading early.
+ */
+public class RingBuffer<B> {
+
+	private final Object[] batches;
+	@NotNull private final PipelineStatistics statistics;
+
+	private long published;                 // number of batches published so far
+	private long taken;                     // number of batches taken so far
+	private long released;                  // number of batches released so far
+	private boolean closed;
+	private boolean cancelled;
+	private Throwable failure;
+
+	public RingBuffer(int capacity, @NotNull Supplier<B> batchFactory, @NotNull PipelineStatistics statistics) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.batches = new Object[capacity];
+		for (int i = 0; i < capacity; i++) {
+			batches[i] = batchFactory.get();
+		}
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Returns the batch to be filled by the producer, waiting until one is free. Returns null if the consumer
+	 * has cancelled the processing.
+	 */
+	public synchronized B claim() throws InterruptedException {
+		if (published - released >= batches.length && !cancelled) {
+			long start = System.nanoTime();
+			while (published - released >= batches.length && !cancelled) {
+				wait();
+			}
+			statistics.recordProducerWait(System.nanoTime() - start);
+		}
+		return cancelled ? null : batch(published);
+	}
+
+	/**
+	 * Passes the claimed batch to the consumer.
+	 *
+	 * @param items Number of items in the batch (for statistics).
+	 */
+	public synchronized void publish(int items) {
+		published++;
+		statistics.recordPublished(items, (int) (published - taken), batches.length);
+		notifyAll();
+	}
+
+	/**
+	 * Tells the consumer that no more batches will come.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Tells the consumer that no more batches will come because of the failure.
+	 */
+	public synchronized void fail(@NotNull Throwable failure) {
+		this.failure = failure;
+		close();
+	}
+
+	/**
+	 * Returns the next published batch, waiting for it if needed; or null if the buffer is closed and
+	 * all batches were taken. The previously taken batch must be released first.
+	 */
+	public synchronized B take() throws InterruptedException {
+		if (taken != released) {
+			throw new IllegalStateException("The previous batch was not released");
+		}
+		if (taken == published && !closed) {
+			long start = System.nanoTime();
+			while (taken == published && !closed) {
+				wait();
+			}
+			statistics.recordConsumerWait(System.nanoTime() - start);
+		}
+		return taken < published ? batch(taken++) : null;
+	}
+
+	/**
+	 * Returns the taken batch to the producer for reuse.
+	 */
+	public synchronized void release() {
+		if (released == taken) {
+			throw new IllegalStateException("No batch to release");
+		}
+		released++;
+		notifyAll();
+	}
+
+	/**
+	 * Tells the producer that the consumer does not want any more batches.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		notifyAll();
+	}
+
+	/**
+	 * The failure of the producer (if any), to be checked by the consumer when take() returns null.
+	 */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	@NotNull
+	public PipelineStatistics getStatistics() {
+		return statistics;
+	}
+
+	@SuppressWarnings("unchecked")
+	private B batch(long sequence) {
+		return (B) batches[(int) (sequence % batches.length)];
+	}
+}
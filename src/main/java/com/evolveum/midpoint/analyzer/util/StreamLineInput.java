@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads lines of a single (uncompressed) stream by scanning for newline bytes in a reusable buffer.
+ */
+class StreamLineInput implements LogLineReader.LineInput {
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	private static final int SAMPLE_SIZE = 64;
+
+	private final InputStream stream;
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+	private int start;                      // first byte of the next line
+	private int limit;                      // end of valid data
+	private long bufferOffset;              // stream offset of buffer[0]
+	private boolean eof;
+	private boolean tailing;
+	private final byte[] sample = new byte[SAMPLE_SIZE];        // the last bytes read (in tailing mode)
+	private int sampleLength;
+
+	private final LineView view = new LineView();
+
+	StreamLineInput(InputStream stream) {
+		this(stream, 0);
+	}
+
+	/**
+	 * @param startOffset Offset of the beginning of the stream in the file (if the file is not read from the start).
+	 */
+	StreamLineInput(InputStream stream, long startOffset) {
+		this.stream = stream;
+		this.bufferOffset = startOffset;
+	}
+
+	@Override
+	public LineView readLine() throws IOException {
+		int scanFrom = start;
+		int bits = 0;
+		for (;;) {
+			for (int i = scanFrom; i < limit; i++) {
+				byte b = buffer[i];
+				if (b == '\n') {
+					return createView(i, i + 1, bits);
+				}
+				bits |= b;
+			}
+			scanFrom = limit;
+			if (eof) {
+				if (tailing) {
+					eof = false;            // the file may grow; an incomplete last line is kept until it is terminated
+					return null;
+				}
+				return start < limit ? createView(limit, limit, bits) : null;      // the last line has no terminator
+			}
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, limit - start);
+				bufferOffset += start;
+				scanFrom -= start;
+				limit -= start;
+				start = 0;
+			}
+			if (limit == buffer.length) {
+				byte[] bigger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, bigger, 0, limit);
+				buffer = bigger;
+				wrapped = ByteBuffer.wrap(buffer);
+			}
+			int n = stream.read(buffer, limit, buffer.length - limit);
+			if (n < 0) {
+				eof = true;
+			} else {
+				limit += n;
+				if (tailing) {
+					updateSample(limit - n, limit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * In tailing mode, the end of the stream is not considered final: readLine() returns null, and the next call
+	 * tries to read again. A last line without the terminator is not returned in this mode.
+	 */
+	void setTailing(boolean tailing) {
+		this.tailing = tailing;
+	}
+
+	private void updateSample(int from, int to) {
+		int n = to - from;
+		int keep = Math.max(0, Math.min(sampleLength, SAMPLE_SIZE - n));
+		System.arraycopy(sample, sampleLength - keep, sample, 0, keep);
+		int copied = Math.min(n, SAMPLE_SIZE);
+		System.arraycopy(buffer, to - copied, sample, keep, copied);
+		sampleLength = keep + copied;
+	}
+
+	/**
+	 * Checks (in tailing mode) whether the file still contains the last bytes read at their place. It does not if it
+	 * was truncated and written again, even if it has grown past the position in the meanwhile.
+	 */
+	boolean isStillIn(File file) throws IOException {
+		long end = bufferOffset + limit;
+		if (sampleLength == 0) {
+			return file.length() >= end;
+		}
+		byte[] current = new byte[sampleLength];
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			if (randomAccessFile.length() < end) {
+				return false;
+			}
+			randomAccessFile.seek(end - sampleLength);
+			randomAccessFile.readFully(current);
+		} catch (FileNotFoundException e) {
+			return true;            // probably being rotated right now; to be checked again
+		}
+		return Arrays.equals(current, Arrays.copyOf(sample, sampleLength));
+	}
+
+	/**
+	 * Offset of the first byte that was not returned yet.
+	 */
+	long getPosition() {
+		return bufferOffset + start;
+	}
+
+	private LineView createView(int end, int next, int bits) {
+		int contentEnd = end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+		view.set(wrapped, start, contentEnd, bufferOffset + start, bits >= 0);
+		start = next;
+		return view;
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream.close();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+/**
+ * Returns canonical Strings for character ranges, creating a String only the first time a value is seen.
+ * Meant for values with few distinct occurrences, like thread names, log levels and loggers.
+ *
+ * Not thread-safe.
+ */
+class StringInterner {
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int MAX_SIZE = 64 * 1024;             // to protect against unexpected variety of values
+
+	private String[] table = new String[INITIAL_CAPACITY];
+	private int size;
+
+	String intern(CharSequence sequence, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + sequence.charAt(i);
+		}
+		int mask = table.length - 1;
+		int index = spread(hash) & mask;
+		for (;;) {
+			String candidate = table[index];
+			if (candidate == null) {
+				break;
+			}
+			if (candidate.hashCode() == hash && equals(candidate, sequence, start, end)) {
+				return candidate;
+			}
+			index = (index + 1) & mask;
+		}
+		String value = sequence.subSequence(start, end).toString();
+		if (size >= MAX_SIZE) {
+			table = new String[INITIAL_CAPACITY];
+			size = 0;
+		} else if (2 * (size + 1) > table.length) {
+			rehash();
+		}
+		put(value);
+		return value;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean equals(String candidate, CharSequence sequence, int start, int end) {
+		if (candidate.length() != end - start) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (candidate.charAt(i - start) != sequence.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		String[] old = table;
+		table = new String[old.length * 2];
+		size = 0;
+		for (String value : old) {
+			if (value != null) {
+				put(value);
+			}
+		}
+	}
+
+	private void put(String value) {
+		int mask = table.length - 1;
+		int index = spread(value.hashCode()) & mask;
+		while (table[index] != null) {
+			index = (index + 1) & mask;
+		}
+		table[index] = value;
+		size++;
+	}
+}
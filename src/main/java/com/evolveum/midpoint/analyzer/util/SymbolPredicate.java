@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+import java.util.function.Predicate;
+
+/**
+ * A predicate on names from a symbol table (e.g. "is this method excluded from the histogram?") that is evaluated
+ * only once per id; the results are kept in bitsets.
+ *
+ * Not thread-safe.
+ */
+public class SymbolPredicate {
+
+	@NotNull private final SymbolTable symbols;
+	@NotNull private final Predicate<String> predicate;
+
+	private final BitSet evaluated = new BitSet();
+	private final BitSet satisfied = new BitSet();
+
+	public SymbolPredicate(@NotNull SymbolTable symbols, @NotNull Predicate<String> predicate) {
+		this.symbols = symbols;
+		this.predicate = predicate;
+	}
+
+	public boolean test(int id) {
+		if (!evaluated.get(id)) {
+			if (predicate.test(symbols.getName(id))) {
+				satisfied.set(id);
+			}
+			evaluated.set(id);
+		}
+		return satisfied.get(id);
+	}
+}
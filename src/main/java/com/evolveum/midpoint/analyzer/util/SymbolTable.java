@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ids (0, 1, 2, ...) to distinct names, like methods or threads, in the order of their
+ * first appearance. The ids can be used as array indices and bitset positions instead of hashing and comparing Strings.
+ * A String for the name is created only when the name is seen for the first time.
+ *
+ * Not thread-safe, with one exception: names can be obtained by {@link #getName(int)} concurrently with adding new
+ * ones, provided that the id itself was passed to the reading thread safely (e.g. through a blocking queue).
+ */
+public class SymbolTable {
+
+	public static final int UNKNOWN = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private volatile String[] names = new String[INITIAL_CAPACITY];        // volatile because of concurrent getName calls
+	private int[] slots = new int[2 * INITIAL_CAPACITY];           // id + 1; 0 means an empty slot
+	private int size;
+
+	/**
+	 * Returns the id of the name, assigning a new one if the name was not seen yet.
+	 */
+	public int getId(@NotNull CharSequence name) {
+		return getId(name, 0, name.length());
+	}
+
+	/**
+	 * Returns the id of the name given as a part of the character sequence, assigning a new one if the name
+	 * was not seen yet.
+	 */
+	public int getId(@NotNull CharSequence sequence, int start, int end) {
+		int hash = hash(sequence, start, end);
+		int index = find(sequence, start, end, hash);
+		int slot = slots[index];
+		if (slot != 0) {
+			return slot - 1;
+		}
+		int id = size++;
+		String[] names = this.names;
+		if (id == names.length) {
+			names = Arrays.copyOf(names, names.length * 2);
+			this.names = names;
+		}
+		names[id] = sequence.subSequence(start, end).toString();
+		slots[index] = id + 1;
+		if (2 * size > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the id of the name, or {@link #UNKNOWN} if the name was not seen yet.
+	 */
+	public int findId(@NotNull CharSequence name) {
+		int slot = slots[find(name, 0, name.length(), hash(name, 0, name.length()))];
+		return slot - 1;
+	}
+
+	@NotNull
+	public String getName(int id) {
+		if (id < 0 || id >= size) {
+			throw new IllegalArgumentException("Unknown id: " + id + " (size: " + size + ")");
+		}
+		return names[id];
+	}
+
+	/**
+	 * Number of names, i.e. the next id to be assigned.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the slot where the name is or should be placed.
+	 */
+	private int find(CharSequence sequence, int start, int end, int hash) {
+		String[] names = this.names;
+		int mask = slots.length - 1;
+		int index = spread(hash) & mask;
+		for (;;) {
+			int slot = slots[index];
+			if (slot == 0 || equals(names[slot - 1], hash, sequence, start, end)) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private static int hash(CharSequence sequence, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + sequence.charAt(i);
+		}
+		return hash;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean equals(String name, int hash, CharSequence sequence, int start, int end) {
+		if (name.hashCode() != hash || name.length() != end - start) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (name.charAt(i - start) != sequence.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		String[] names = this.names;
+		slots = new int[slots.length * 2];
+		int mask = slots.length - 1;
+		for (int id = 0; id < size; id++) {
+			int index = spread(names[id].hashCode()) & mask;
+			while (slots[index] != 0) {
+				index = (index + 1) & mask;
+			}
+			slots[index] = id + 1;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Minimal streaming reader of tar archives (ustar, GNU long names, pax paths).
+ * Only regular files are reported.
+ */
+class TarReader {
+
+	private static final int BLOCK = 512;
+
+	private final InputStream stream;
+	private final byte[] header = new byte[BLOCK];
+
+	private EntryStream current;
+
+	TarReader(InputStream stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * Moves to the next regular file in the archive and returns its name, or null if there are no more files.
+	 * The content is then available via {@link #getEntryStream()}.
+	 */
+	String nextEntry() throws IOException {
+		String longName = null;
+		for (;;) {
+			if (current != null) {
+				current.skipRest();
+				current = null;
+			}
+			if (!readBlock(header)) {
+				return null;
+			}
+			if (header[0] == 0) {
+				return null;                    // end-of-archive marker
+			}
+			long size = parseNumber(124, 12);
+			byte type = header[156];
+			current = new EntryStream(size);
+			if (type == 'L') {
+				longName = trimNul(readFully(current));
+			} else if (type == 'x') {
+				String path = parsePaxPath(readFully(current));
+				if (path != null) {
+					longName = path;
+				}
+			} else if (type == '0' || type == 0 || type == '7') {
+				return longName != null ? longName : getHeaderName();
+			} else {
+				longName = null;                // directories, links, global headers and so on
+			}
+		}
+	}
+
+	InputStream getEntryStream() {
+		return current;
+	}
+
+	private String getHeaderName() {
+		String name = field(0, 100);
+		if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+			String prefix = field(345, 155);
+			if (!prefix.isEmpty()) {
+				return prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	private String field(int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, UTF_8);
+	}
+
+	private long parseNumber(int offset, int length) {
+		if ((header[offset] & 0x80) != 0) {        // GNU base-256 encoding
+			long value = header[offset] & 0x7f;
+			for (int i = offset + 1; i < offset + length; i++) {
+				value = (value << 8) | (header[i] & 0xff);
+			}
+			return value;
+		}
+		int i = offset;
+		int end = offset + length;
+		while (i < end && header[i] == ' ') {
+			i++;
+		}
+		long value = 0;
+		while (i < end && header[i] >= '0' && header[i] <= '7') {
+			value = value * 8 + (header[i++] - '0');
+		}
+		return value;
+	}
+
+	private static String parsePaxPath(byte[] data) {
+		// records are "<length> <key>=<value>\n"
+		int position = 0;
+		while (position < data.length) {
+			int space = position;
+			while (space < data.length && data[space] != ' ') {
+				space++;
+			}
+			int length;
+			try {
+				length = Integer.parseInt(new String(data, position, space - position, UTF_8));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (length <= 0 || position + length > data.length) {
+				return null;
+			}
+			String record = new String(data, space + 1, position + length - space - 2, UTF_8);
+			if (record.startsWith("path=")) {
+				return record.substring("path=".length());
+			}
+			position += length;
+		}
+		return null;
+	}
+
+	private static String trimNul(byte[] data) {
+		int end = data.length;
+		while (end > 0 && data[end - 1] == 0) {
+			end--;
+		}
+		return new String(data, 0, end, UTF_8);
+	}
+
+	private static byte[] readFully(InputStream stream) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BLOCK];
+		int n;
+		while ((n = stream.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private boolean readBlock(byte[] block) throws IOException {
+		int read = 0;
+		while (read < block.length) {
+			int n = stream.read(block, read, block.length - read);
+			if (n < 0) {
+				if (read == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated tar archive");
+			}
+			read += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Content of the current entry. Closing it does not close the archive.
+	 */
+	private class EntryStream extends InputStream {
+
+		private long remaining;
+		private final long padding;
+
+		private EntryStream(long size) {
+			this.remaining = size;
+			this.padding = (BLOCK - size % BLOCK) % BLOCK;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = stream.read();
+			if (b < 0) {
+				throw new EOFException("Truncated tar archive");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = stream.read(buffer, offset, (int) Math.min(length, remaining));
+			if (n < 0) {
+				throw new EOFException("Truncated tar archive");
+			}
+			remaining -= n;
+			return n;
+		}
+
+		private void skipRest() throws IOException {
+			long toSkip = remaining + padding;
+			while (toSkip > 0) {
+				long n = stream.skip(toSkip);
+				if (n <= 0) {
+					if (stream.read() < 0) {
+						throw new EOFException("Truncated tar archive");
+					}
+					n = 1;
+				}
+				toSkip -= n;
+			}
+			remaining = 0;
+		}
+	}
+}
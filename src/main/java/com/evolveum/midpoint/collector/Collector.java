@@ -17,12 +17,25 @@
 package com.evolveum.midpoint.collector;
 
 /**
- *
+ * Collects events per tag (e.g. a thread). Tags are dense int ids.
  */
 public interface Collector {
-	void registerEvent(String tag, Event event);
+	default void registerEvent(int tag, Event event) {
+		registerEvent(tag, event.getType(), event.getTimestamp(), event.getDuration());
+	}
+
+	/**
+	 * Registers an event without creating an {@link Event} object.
+	 */
+	void registerEvent(int tag, int type, long timestamp, long duration);
+
+	EventsSummary closeTag(int tag);
 
-	EventsSummary closeTag(String tag);
+	/**
+	 * Tells the collector that the summary obtained from {@link #closeTag(int)} is no longer used,
+	 * so it can be reused for another tag.
+	 */
+	void recycle(EventsSummary summary);
 
 	void reset();
 }
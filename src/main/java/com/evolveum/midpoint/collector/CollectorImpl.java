@@ -16,30 +16,66 @@
 
 package com.evolveum.midpoint.collector;
 
-import java.util.HashMap;
-import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.function.IntFunction;
 
 /**
  *
  */
 public class CollectorImpl implements Collector {
 
+	@NotNull private final IntFunction<String> eventTypeNames;
+
 	// tag -> current events
-	private Map<String, EventsSummary> openTagsMap = new HashMap<>();
+	private EventsSummary[] openTags = new EventsSummary[16];
+	private final Deque<EventsSummary> recycled = new ArrayDeque<>();
+
+	/**
+	 * @param eventTypeNames Provides names of event types (for dumping the summaries).
+	 */
+	public CollectorImpl(@NotNull IntFunction<String> eventTypeNames) {
+		this.eventTypeNames = eventTypeNames;
+	}
+
+	@Override
+	public void registerEvent(int tag, int type, long timestamp, long duration) {
+		if (tag >= openTags.length) {
+			openTags = Arrays.copyOf(openTags, Math.max(tag + 1, openTags.length * 2));
+		}
+		EventsSummary summary = openTags[tag];
+		if (summary == null) {
+			summary = openTags[tag] = !recycled.isEmpty() ? recycled.pop() : new EventsSummary(eventTypeNames);
+		}
+		summary.registerEvent(type, duration);
+	}
 
 	@Override
-	public void registerEvent(String tag, Event event) {
-		openTagsMap.computeIfAbsent(tag, key -> new EventsSummary());
-		openTagsMap.get(tag).registerEvent(event);
+	public EventsSummary closeTag(int tag) {
+		if (tag >= openTags.length) {
+			return null;
+		}
+		EventsSummary summary = openTags[tag];
+		openTags[tag] = null;
+		return summary;
 	}
 
 	@Override
-	public EventsSummary closeTag(String tag) {
-		return openTagsMap.remove(tag);
+	public void recycle(EventsSummary summary) {
+		summary.reset();
+		recycled.push(summary);
 	}
 
 	@Override
 	public void reset() {
-		openTagsMap.clear();
+		for (int i = 0; i < openTags.length; i++) {
+			if (openTags[i] != null) {
+				recycle(openTags[i]);
+				openTags[i] = null;
+			}
+		}
 	}
 }
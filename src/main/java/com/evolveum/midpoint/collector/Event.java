@@ -16,25 +16,22 @@
 
 package com.evolveum.midpoint.collector;
 
-import org.jetbrains.annotations.NotNull;
-
 /**
  *
  */
 public class Event {
 
-	@NotNull private final String type;
+	private final int type;                 // id of the event type (e.g. method)
 	private final long timestamp;
 	private final long duration;            // in microseconds
 
-	public Event(@NotNull String type, long timestamp, long duration) {
+	public Event(int type, long timestamp, long duration) {
 		this.type = type;
 		this.timestamp = timestamp;
 		this.duration = duration;
 	}
 
-	@NotNull
-	public String getType() {
+	public int getType() {
 		return type;
 	}
 
@@ -16,41 +16,105 @@
 
 package com.evolveum.midpoint.collector;
 
-import java.util.*;
+import org.jetbrains.annotations.NotNull;
 
-import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
+import java.util.*;
+import java.util.function.IntFunction;
 
 /**
- *
+ * Statistics of events by their type. Can be reset and reused.
  */
 public class EventsSummary {
 
-	// key is event type
-	private final Map<String, Times> eventsMap = new HashMap<>();
+	@NotNull private final IntFunction<String> typeNames;
+
+	// index is event type id
+	private Times[] eventTimes = new Times[64];
+	private int[] types = new int[16];              // event types present, in order of appearance
+	private int typesCount;
+
+	/**
+	 * @param typeNames Provides names of event types (for dumping).
+	 */
+	public EventsSummary(@NotNull IntFunction<String> typeNames) {
+		this.typeNames = typeNames;
+	}
 
 	void registerEvent(Event event) {
-		eventsMap.computeIfAbsent(event.getType(), key -> new Times());
-		eventsMap.get(event.getType()).registerEvent(event);
+		registerEvent(event.getType(), event.getDuration());
+	}
+
+	/**
+	 * Does not allocate memory, except for the first event of a given type in this summary.
+	 */
+	void registerEvent(int type, long duration) {
+		getOrCreateTimes(type).registerDuration(duration);
+	}
+
+	/**
+	 * Adds all events of the other summary (e.g. when rolling up summaries of individual invocations).
+	 */
+	public void merge(EventsSummary other) {
+		for (int i = 0; i < other.typesCount; i++) {
+			int type = other.types[i];
+			getOrCreateTimes(type).merge(other.eventTimes[type]);
+		}
+	}
+
+	/**
+	 * Removes all events. The internal structures are kept, so the summary can be reused without allocating memory.
+	 */
+	void reset() {
+		for (int i = 0; i < typesCount; i++) {
+			eventTimes[types[i]].reset();
+		}
+		typesCount = 0;
+	}
+
+	private Times getOrCreateTimes(int type) {
+		if (type >= eventTimes.length) {
+			eventTimes = Arrays.copyOf(eventTimes, Math.max(type + 1, eventTimes.length * 2));
+		}
+		Times times = eventTimes[type];
+		if (times == null) {
+			times = eventTimes[type] = new Times();
+		}
+		if (times.getCount() == 0) {
+			if (typesCount == types.length) {
+				types = Arrays.copyOf(types, types.length * 2);
+			}
+			types[typesCount++] = type;
+		}
+		return times;
 	}
 
 	public String dump() {
 		StringBuilder sb = new StringBuilder();
 
-		List<String> names = new ArrayList<>(eventsMap.keySet());
+		List<String> names = new ArrayList<>(typesCount);
+		Map<String, Times> timesByName = new HashMap<>();
+		for (int i = 0; i < typesCount; i++) {
+			String name = typeNames.apply(types[i]);
+			names.add(name);
+			timesByName.put(name, eventTimes[types[i]]);
+		}
 		names.sort(String::compareTo);
 		for (String name : names) {
-			Times times = eventsMap.get(name);
-			sb.append(String.format(Locale.US, " - %-80s: %6d in %10.3f ms [min: %9.3f max: %9.3f avg: %9.3f]\n",
+			Times times = timesByName.get(name);
+			sb.append(String.format(Locale.US, " - %-80s: %6d in %10.3f ms [min: %9.3f max: %9.3f avg: %9.3f p50: %9.3f p90: %9.3f p99: %9.3f]\n",
 					name, times.getCount(), times.getTotalTime() / 1000.0f,
-					defaultIfNull(times.getMinTime(), 0L) / 1000.0f,
-					defaultIfNull(times.getMaxTime(), 0L) / 1000.0f,
-					times.getCount() > 0 ? (float) times.getTotalTime() / 1000.0f / times.getCount() : 0));
+					times.getMinTime() / 1000.0f,
+					times.getMaxTime() / 1000.0f,
+					times.getCount() > 0 ? (float) times.getTotalTime() / 1000.0f / times.getCount() : 0,
+					times.getPercentile(50) / 1000.0f,
+					times.getPercentile(90) / 1000.0f,
+					times.getPercentile(99) / 1000.0f));
 		}
 
 		return sb.toString();
 	}
 
-	public Times get(String eventType) {
-		return eventsMap.get(eventType);
+	public Times get(int eventType) {
+		return eventType >= 0 && eventType < eventTimes.length ? eventTimes[eventType] : null;
 	}
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.collector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with fixed memory (in the style of DDSketch). Positive values are counted
+ * in logarithmic bins: bin i covers (gamma^(i-1), gamma^i], where gamma = (1 + accuracy) / (1 - accuracy), so any
+ * quantile is estimated with the given relative accuracy. Zero and negative values are counted separately (as zero).
+ *
+ * Only a fixed number of consecutive bins is kept. If the values span more bins, the lowest ones are collapsed
+ * together, i.e. the accuracy is kept for the higher quantiles (the tail) at the expense of the lowest ones.
+ * With the default parameters (2 %, 256 bins) the accuracy is kept over four orders of magnitude
+ * (e.g. from 100 us to 2.7 s). The result does not depend on the order of adding values or merging sketches.
+ *
+ * Adding values does not allocate any memory. Not thread-safe.
+ */
+public class QuantileSketch {
+
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.02;
+	public static final int DEFAULT_MAX_BINS = 256;
+
+	private final double relativeAccuracy;
+	private final double gamma;
+	private final double logGamma;
+
+	private final int[] bins;
+	private int offset;                     // index of bins[0]
+	private int minIndex;                   // lowest index with a non-zero count (valid if binsCount > 0)
+	private int maxIndex;                   // highest index with a non-zero count (valid if binsCount > 0)
+	private long binsCount;
+	private long zeroCount;
+
+	public QuantileSketch() {
+		this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+	}
+
+	public QuantileSketch(double relativeAccuracy, int maxBins) {
+		if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+			throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+		}
+		this.relativeAccuracy = relativeAccuracy;
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(gamma);
+		this.bins = new int[maxBins];
+	}
+
+	public void add(long value) {
+		if (value <= 0) {
+			zeroCount++;
+		} else {
+			addToBin((int) Math.ceil(Math.log(value) / logGamma), 1);
+		}
+	}
+
+	/**
+	 * Adds all values of the other sketch. The sketches must have the same parameters.
+	 */
+	public void merge(@NotNull QuantileSketch other) {
+		if (other.relativeAccuracy != relativeAccuracy || other.bins.length != bins.length) {
+			throw new IllegalArgumentException("Cannot merge sketches with different parameters");
+		}
+		zeroCount += other.zeroCount;
+		if (other.binsCount > 0) {
+			// from the highest, so the collapsing (if any) is done at most once
+			for (int index = other.maxIndex; index >= other.minIndex; index--) {
+				int count = other.bins[index - other.offset];
+				if (count > 0) {
+					addToBin(index, count);
+				}
+			}
+		}
+	}
+
+	public void reset() {
+		if (binsCount > 0) {
+			Arrays.fill(bins, 0);
+		}
+		binsCount = 0;
+		zeroCount = 0;
+	}
+
+	public long getCount() {
+		return zeroCount + binsCount;
+	}
+
+	/**
+	 * Returns the estimated value at the given percentile (0-100), or 0 if there are no values.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		if (rank <= zeroCount) {
+			return 0;
+		}
+		long cumulative = zeroCount;
+		for (int index = minIndex; index < maxIndex; index++) {
+			cumulative += bins[index - offset];
+			if (cumulative >= rank) {
+				return binValue(index);
+			}
+		}
+		return binValue(maxIndex);
+	}
+
+	/**
+	 * The value with the minimal relative error with respect to all values in the bin.
+	 */
+	private long binValue(int index) {
+		return Math.round(2 * Math.pow(gamma, index) / (gamma + 1));
+	}
+
+	private void addToBin(int index, int count) {
+		if (binsCount == 0) {
+			// the window is placed so that there is some room below (values usually grow rather than decrease)
+			offset = index - bins.length / 4;
+			minIndex = maxIndex = index;
+		} else if (index > offset + bins.length - 1) {
+			shiftUp(index);
+		} else if (index < offset) {
+			if (maxIndex - index < bins.length) {
+				shiftDown(index);
+			} else {
+				// collapsed into the lowest bin; the window is moved as low as possible first, so the collapsed values
+				// always end up in the same bin, regardless of the order in which values were added or sketches merged
+				shiftBins(maxIndex - bins.length + 1);
+				index = offset;
+			}
+		}
+		bins[index - offset] += count;
+		binsCount += count;
+		minIndex = Math.min(minIndex, index);
+		maxIndex = Math.max(maxIndex, index);
+	}
+
+	/**
+	 * Moves the window up so that the index is the highest one. The bins that no longer fit are collapsed
+	 * into the lowest one.
+	 */
+	private void shiftUp(int index) {
+		int newOffset = index - bins.length + 1;
+		if (minIndex < newOffset) {
+			int collapsed = 0;
+			for (int i = minIndex; i <= Math.min(newOffset, maxIndex); i++) {
+				collapsed += bins[i - offset];
+				bins[i - offset] = 0;
+			}
+			shiftBins(newOffset);
+			bins[0] = collapsed;
+			minIndex = newOffset;
+			maxIndex = Math.max(maxIndex, newOffset);
+		} else {
+			shiftBins(newOffset);
+		}
+	}
+
+	/**
+	 * Moves the window down so that the index fits; all present bins remain in the window.
+	 */
+	private void shiftDown(int index) {
+		shiftBins(Math.max(maxIndex - bins.length + 1, index - bins.length / 4));
+	}
+
+	private void shiftBins(int newOffset) {
+		int shift = newOffset - offset;
+		if (shift > 0) {
+			int keep = Math.max(0, bins.length - shift);
+			if (keep > 0) {
+				System.arraycopy(bins, shift, bins, 0, keep);
+			}
+			Arrays.fill(bins, keep, bins.length, 0);
+		} else if (shift < 0) {
+			int keep = Math.max(0, bins.length + shift);
+			if (keep > 0) {
+				System.arraycopy(bins, 0, bins, -shift, keep);
+			}
+			Arrays.fill(bins, 0, Math.min(-shift, bins.length), 0);
+		}
+		offset = newOffset;
+	}
+}
@@ -17,24 +17,46 @@
 package com.evolveum.midpoint.collector;
 
 /**
- *
+ * Statistics of durations of events of a given type: count, total, min, max and a quantile sketch.
+ * Registering an event does not allocate memory.
  */
 public class Times {
 	private int count;
 	private long totalTime;
-	private Long minTime;
-	private Long maxTime;
+	private long minTime = Long.MAX_VALUE;
+	private long maxTime = Long.MIN_VALUE;
+	private final QuantileSketch sketch = new QuantileSketch();
 
 	void registerEvent(Event event) {
-		long duration = event.getDuration();
+		registerDuration(event.getDuration());
+	}
+
+	void registerDuration(long duration) {
 		count++;
 		totalTime += duration;
-		if (minTime == null || duration < minTime) {
+		if (duration < minTime) {
 			minTime = duration;
 		}
-		if (maxTime == null || duration > maxTime) {
+		if (duration > maxTime) {
 			maxTime = duration;
 		}
+		sketch.add(duration);
+	}
+
+	void merge(Times other) {
+		count += other.count;
+		totalTime += other.totalTime;
+		minTime = Math.min(minTime, other.minTime);
+		maxTime = Math.max(maxTime, other.maxTime);
+		sketch.merge(other.sketch);
+	}
+
+	void reset() {
+		count = 0;
+		totalTime = 0;
+		minTime = Long.MAX_VALUE;
+		maxTime = Long.MIN_VALUE;
+		sketch.reset();
 	}
 
 	public int getCount() {
@@ -45,11 +67,24 @@ public class Times {
 		return totalTime;
 	}
 
-	public Long getMinTime() {
-		return minTime;
+	/**
+	 * Minimal duration, or 0 if there are no events.
+	 */
+	public long getMinTime() {
+		return count > 0 ? minTime : 0;
+	}
+
+	/**
+	 * Maximal duration, or 0 if there are no events.
+	 */
+	public long getMaxTime() {
+		return count > 0 ? maxTime : 0;
 	}
 
-	public Long getMaxTime() {
-		return maxTime;
+	/**
+	 * Estimated duration at the given percentile (0-100), or 0 if there are no events.
+	 */
+	public long getPercentile(double percentile) {
+		return count > 0 ? Math.max(minTime, Math.min(maxTime, sketch.getValueAtPercentile(percentile))) : 0;
 	}
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import com.evolveum.midpoint.analyzer.util.Dimension;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+
+import static com.evolveum.midpoint.analyzer.Constants.LOG_FILE_TIMESTAMP_FORMAT;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * The invocation analysis must give the same results regardless of the number of shards. The log contains
+ * a number of threads, two batches, and method entries that never exit; some of them are evicted because
+ * they are too old or because their thread has too many of them.
+ */
+public class TestInvocationAnalysis {
+
+	private static final File TEST_DIR = new File("src/test/resources/profiling/shards");
+
+	private static final List<CategoryDefinition> CATEGORY_DEFINITIONS = Arrays.asList(
+			new CategoryDefinition("search-shadow", "repo.sql.SqlRepositoryServiceImpl->searchObjects", "(ShadowType, ##{}##)"),
+			new CategoryDefinition("other"));
+
+	@Test
+	public void test100SingleVersusMoreShards() throws Exception {
+		File single = analyze("single", 1, false);
+		File parallel = analyze("parallel", 4, false);
+
+		assertSameFiles(single, parallel);
+		assertNeverExited(single);
+	}
+
+	@Test
+	public void test110SingleVersusMoreShardsPipelined() throws Exception {
+		File single = analyze("single-pipelined", 1, true);
+		File parallel = analyze("parallel-pipelined", 4, true);
+
+		assertSameFiles(single, parallel);
+	}
+
+	/**
+	 * Long invocations kept in memory versus ones spilled into many runs that are merged in more passes.
+	 */
+	@Test
+	public void test120MultiPassMergeOfLongInvocations() throws Exception {
+		File inMemory = analyze("in-memory", 1, false, Integer.MAX_VALUE, SpillingInvocationCapture.DEFAULT_MAX_FAN_IN);
+		File spilled = analyze("spilled", 1, false, 2, 3);
+
+		assertSameFiles(inMemory, spilled);
+	}
+
+	private File analyze(String name, int shards, boolean pipeline) throws IOException {
+		return analyze(name, shards, pipeline, 10, SpillingInvocationCapture.DEFAULT_MAX_FAN_IN);
+	}
+
+	private File analyze(String name, int shards, boolean pipeline, int longInvocationsInMemory, int maxFanIn)
+			throws IOException {
+		File outputDir = Files.createTempDirectory("invocation-analysis-" + name).toFile();
+		outputDir.deleteOnExit();
+
+		InvocationAnalysisSettings settings = new InvocationAnalysisSettings();
+		settings.allInvocationsFile = new File(outputDir, "invocations-all.txt");
+		settings.selectedInvocationsFile = new File(outputDir, "invocations-selected.csv");
+		settings.neverExitedInvocationsFile = new File(outputDir, "invocations-never-exited.csv");
+		settings.invocationsSummaryFile = new File(outputDir, "invocations-summary.txt");
+		settings.objectsPerMinuteFile = new File(outputDir, "per-minute.csv");
+		settings.histogramFile = new File(outputDir, "histogram.csv");
+		settings.percentilesFile = new File(outputDir, "percentiles.csv");
+		settings.longInvocationsTxtFile = new File(outputDir, "invocations-long.txt");
+		settings.longInvocationsCsvFile = new File(outputDir, "invocations-long.csv");
+		settings.slowQueryCategoryCountsFile = new File(outputDir, "slow-query-category-counts.csv");
+		settings.histogramStep = 10_000L;
+		settings.histogramUpperBoundary = 1_000_000L;
+		settings.histogramSignificantDigits = 2;
+		settings.histogramGroupBys = Arrays.asList(EnumSet.of(Dimension.METHOD),
+				EnumSet.of(Dimension.METHOD, Dimension.BATCH, Dimension.THREAD_TYPE),
+				EnumSet.of(Dimension.METHOD, Dimension.THREAD));
+		settings.mainMethods = "model.impl.sync.SynchronizationServiceImpl->notifyChange"::equals;
+		settings.excludedFromHistogram = method -> method.endsWith("->getObject");
+		settings.longTimesIncluded = method -> method.contains("SqlRepositoryServiceImpl->search");
+		settings.longTimesThreshold = 20_000L;
+		settings.extracting = Arrays.asList("repo.sql.SqlRepositoryServiceImpl->searchObjects",
+				"repo.sql.SqlRepositoryServiceImpl->searchShadowOwner");
+		settings.categoryDefinitions = CATEGORY_DEFINITIONS;
+		settings.maxOpenEntryAge = 2_000L;
+		settings.maxOpenEntriesPerThread = 3;
+		settings.shards = shards;
+		settings.shardRecordsInMemory = 5;              // most of the records are spilled
+		settings.pipeline = pipeline;
+
+		InvocationCapture longInvocations = new SpillingInvocationCapture(longInvocationsInMemory, maxFanIn,
+				invocation -> invocation.categorize(CATEGORY_DEFINITIONS, Collections.emptyList()));
+		InvocationAnalysis analysis = new InvocationAnalysis(settings, longInvocations,
+				new SimpleDateFormat(LOG_FILE_TIMESTAMP_FORMAT, Locale.US));
+
+		AnalysisRunner runner = new AnalysisRunner(new ProfilingEntryReader(TEST_DIR));
+		runner.addAnalysis(analysis);
+		runner.run();
+		return outputDir;
+	}
+
+	private void assertSameFiles(File expectedDir, File actualDir) throws IOException {
+		File[] expectedFiles = expectedDir.listFiles();
+		assertTrue("No results in " + expectedDir, expectedFiles != null && expectedFiles.length == 10);
+		Arrays.sort(expectedFiles);
+		for (File expected : expectedFiles) {
+			expected.deleteOnExit();
+			File actual = new File(actualDir, expected.getName());
+			actual.deleteOnExit();
+			assertTrue("Missing " + actual, actual.exists());
+			assertTrue("Empty " + expected, expected.length() > 0);
+			assertTrue("Different content of " + expected.getName(),
+					Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())));
+		}
+	}
+
+	/**
+	 * Checks that the log really exercises all the kinds of evictions.
+	 */
+	private void assertNeverExited(File outputDir) throws IOException {
+		String neverExited = new String(Files.readAllBytes(new File(outputDir, "invocations-never-exited.csv").toPath()), "UTF-8");
+		for (OpenInvocations.EvictionReason reason : OpenInvocations.EvictionReason.values()) {
+			assertTrue("No entries evicted because of " + reason, neverExited.contains(";" + reason));
+		}
+	}
+}
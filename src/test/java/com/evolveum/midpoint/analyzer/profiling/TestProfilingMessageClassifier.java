@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.profiling;
+
+import org.apache.commons.lang3.StringUtils;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.evolveum.midpoint.analyzer.profiling.ProfilingMessageClassifier.MessageKind.*;
+import static org.testng.AssertJUnit.assertEquals;
+
+/**
+ * The classifier must interpret profiling messages in the same way as the markers and regular expressions
+ * used before it.
+ */
+public class TestProfilingMessageClassifier {
+
+	// the original interpretation of messages
+	private static final String ENTRY_MARKER = "#### Entry: ";
+	private static final String EXIT_MARKER = "##### Exit: ";
+	private static final Pattern ENTRY_PATTERN = Pattern.compile("#### Entry: (?<seq>\\d+)\\s+\\.\\.\\.(?<method>\\S+)");
+	private static final Pattern EXIT_PATTERN = Pattern.compile("##### Exit: (?<seq>\\d+)\\s+\\.\\.\\.(?<method>\\S+) etime: (?<etime>\\S+) ms");
+	private static final Pattern PROGRESS_PATTERN = Pattern.compile(".*\\(total progress: (?<total>\\d+), wall clock avg: \\d+ ms\\)$");
+	private static final String ARGS_PREFIX = "###### args: ";
+	private static final String RETVAL_PREFIX = "###### retval: ";
+
+	@DataProvider(name = "messages")
+	public Object[][] messages() {
+		return new Object[][] {
+				// entries
+				{ "#### Entry: 1    ...model.impl.sync.SynchronizationServiceImpl->notifyChange" },
+				{ "#### Entry: 83329 ...model.impl.sync.SynchronizationServiceImpl->notifyChange" },
+				{ "#### Entry: 7\t...repo.sql.SqlRepositoryServiceImpl->getObject" },
+				{ "#### Entry: 2147483647 ...a->b" },
+				{ "#### Entry: 2147483648 ...a->b" },
+				{ "#### Entry: 1 ...a->b extra" },
+				{ "#### Entry: 1 ...a->b " },
+				{ "#### Entry: 1 ..." },
+				{ "#### Entry: 1...a->b" },
+				{ "#### Entry: x ...a->b" },
+				{ "##### Entry: 1 ...a->b" },
+				{ "text #### Entry: 1 ...a->b" },
+
+				// exits
+				{ "##### Exit: 817268    ...repo.sql.SqlRepositoryServiceImpl->getObject etime: 7.708 ms" },
+				{ "##### Exit: 1     ...task.quartzimpl.TaskManagerQuartzImpl->createTaskInstance etime: 1.314 ms" },
+				{ "##### Exit: 1 ...a->b etime: 7 ms" },
+				{ "##### Exit: 1 ...a->b etime: 7. ms" },
+				{ "##### Exit: 1 ...a->b etime: .5 ms" },
+				{ "##### Exit: 1 ...a->b etime: 1.23456 ms" },
+				{ "##### Exit: 1 ...a->b etime: 123456789.001 ms" },
+				{ "##### Exit: 1 ...a->b etime: abc ms" },
+				{ "##### Exit: 1 ...a->b etime: . ms" },
+				{ "##### Exit: 1 ...a->b etime:  7.708 ms" },
+				{ "##### Exit: 1 ...a->b etime: 7.708 ms extra" },
+				{ "##### Exit: 1 ...a->b etime: 7.708ms" },
+				{ "##### Exit: 1 ...a->b" },
+				{ "###### Exit: 1 ...a->b etime: 7.708 ms" },
+				{ "#### Exit: 1 ...a->b etime: 7.708 ms" },
+				{ "##### Exit: 1 ...a->b etime: 7.708 ms #### Entry: 2 ...c->d" },
+
+				// arguments and return values
+				{ "###### args: (ShadowType, čau 1)" },
+				{ "###### args: " },
+				{ "###### args: (ShadowType, #### Entry: 5 ...not an entry)" },
+				{ "###### retval: [0 objects]" },
+				{ "###### retval: null" },
+				{ "####### args: (ShadowType)" },
+				{ "###### args:(ShadowType)" },
+				{ " ###### retval: null" },
+
+				// progress
+				{ "...... (this one: 2984 ms, avg: 2984 ms) (total progress: 1, wall clock avg: 4098 ms)" },
+				{ "(total progress: 123456, wall clock avg: 0 ms)" },
+				{ "(total progress: 1, wall clock avg: 40 ms) (total progress: 2, wall clock avg: 40 ms)" },
+				{ "(total progress: 1, wall clock avg: 40 ms) " },
+				{ "(total progress: 1, wall clock avg: 40.5 ms)" },
+				{ "(total progress: , wall clock avg: 40 ms)" },
+				{ "(total progress: 99999999999, wall clock avg: 40 ms)" },
+
+				// continuation lines and other messages
+				{ "(ShadowType, Q{AND(EQUAL: name,PPV(String:u1)), null paging)" },
+				{ "java.lang.RuntimeException: x" },
+				{ "" },
+				{ "#" },
+				{ "####" },
+				{ "#### Entry:" },
+		};
+	}
+
+	@Test(dataProvider = "messages")
+	public void test100SameAsRegex(String message) {
+		ProfilingMessageClassifier classifier = new ProfilingMessageClassifier();
+		assertEquals("classification of '" + message + "'", classifyByRegex(message), classify(classifier, message));
+	}
+
+	/**
+	 * The classifier is reused for all messages; nothing may remain from the previous ones.
+	 */
+	@Test
+	public void test110Reuse() {
+		ProfilingMessageClassifier classifier = new ProfilingMessageClassifier();
+		for (int round = 0; round < 2; round++) {
+			for (Object[] row : messages()) {
+				String message = (String) row[0];
+				assertEquals("classification of '" + message + "'", classifyByRegex(message), classify(classifier, message));
+			}
+		}
+	}
+
+	/**
+	 * Describes the classification in the same way as {@link #classifyByRegex(String)}.
+	 */
+	private String classify(ProfilingMessageClassifier classifier, String message) {
+		ProfilingMessageClassifier.MessageKind kind = classifier.classify(message);
+		assertEquals("kind from getter", kind, classifier.getKind());
+		String progress = classifier.getProgress() >= 0 ? String.valueOf(classifier.getProgress()) : null;
+		if (kind == ENTRY || kind == EXIT) {
+			if (!classifier.isWellFormed()) {
+				return describeMalformed(kind.name(), progress);
+			}
+			String method = message.substring(classifier.getMethodStart(), classifier.getMethodEnd());
+			return describeInvocation(kind.name(), classifier.getSequenceNumber(), method,
+					kind == EXIT ? classifier.getEtime() : null, progress);
+		} else {
+			String arguments = kind == ARGS ? message.substring(classifier.getPayloadStart()) : message;
+			String returnValue = kind == RETVAL ? message.substring(classifier.getPayloadStart()) : message;
+			return describeOther(arguments, returnValue, progress);
+		}
+	}
+
+	private String classifyByRegex(String message) {
+		Matcher progressMatcher = PROGRESS_PATTERN.matcher(message);
+		String progress = progressMatcher.matches() && fitsInt(progressMatcher.group("total")) ?
+				String.valueOf(Integer.parseInt(progressMatcher.group("total"))) : null;
+		String kind = message.contains(ENTRY_MARKER) ? "ENTRY" : message.contains(EXIT_MARKER) ? "EXIT" : null;
+		if (kind == null) {
+			// continuation lines: arguments of entries and return values of exits
+			return describeOther(StringUtils.removeStart(message, ARGS_PREFIX), StringUtils.removeStart(message, RETVAL_PREFIX),
+					progress);
+		}
+		Matcher matcher = (kind.equals("ENTRY") ? ENTRY_PATTERN : EXIT_PATTERN).matcher(message);
+		if (!matcher.matches() || !fitsInt(matcher.group("seq"))) {
+			return describeMalformed(kind, progress);
+		}
+		Long etime;
+		if (kind.equals("EXIT")) {
+			try {
+				etime = new BigDecimal(matcher.group("etime")).multiply(new BigDecimal(1000)).longValue();
+			} catch (NumberFormatException e) {
+				return describeMalformed(kind, progress);
+			}
+		} else {
+			etime = null;
+		}
+		return describeInvocation(kind, Integer.parseInt(matcher.group("seq")), matcher.group("method"), etime, progress);
+	}
+
+	private static boolean fitsInt(String digits) {
+		return new BigDecimal(digits).compareTo(BigDecimal.valueOf(Integer.MAX_VALUE)) <= 0;
+	}
+
+	private String describeInvocation(String kind, int seq, String method, Long etime, String progress) {
+		return kind + " #" + seq + " " + method + " etime=" + etime + " progress=" + progress;
+	}
+
+	private String describeMalformed(String kind, String progress) {
+		return kind + " (malformed) progress=" + progress;
+	}
+
+	private String describeOther(String arguments, String returnValue, String progress) {
+		return "args='" + arguments + "' retval='" + returnValue + "' progress=" + progress;
+	}
+}
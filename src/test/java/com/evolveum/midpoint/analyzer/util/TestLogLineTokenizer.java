@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import com.evolveum.midpoint.analyzer.Constants;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.evolveum.midpoint.analyzer.Constants.LOG_FILE_TIMESTAMP_FORMAT;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+/**
+ * The tokenizer must split log lines in the same way as the regular expression and date format used before it.
+ */
+public class TestLogLineTokenizer {
+
+	// the original parsing of log lines
+	private static final Pattern LOG_LINE_PATTERN = Pattern.compile("(?<timestamp>" + Constants.LOG_FILE_TIMESTAMP_REGEX + ") \\[(?<thread>\\S+)] (?<level>\\S+)(?:\\s+\\((?<logger>\\S+)\\))?: (?<message>.*)");
+
+	@DataProvider(name = "lines")
+	public Object[][] lines() {
+		return new Object[][] {
+				// entries, exits, arguments and return values
+				{ "2019-05-27 09:42:11,238 [midPointScheduler_Worker-6] DEBUG (PROFILING): #### Entry: 1    ...model.impl.sync.SynchronizationServiceImpl->notifyChange" },
+				{ "2019-05-27 09:42:11,238 [midPointScheduler_Worker-6] DEBUG (PROFILING): ###### args: (ShadowType, čau 1)" },
+				{ "2019-05-29 16:43:51,904 [pool-1-thread-1] DEBUG (PROFILING): ##### Exit: 817268    ...repo.sql.SqlRepositoryServiceImpl->getObject etime: 7.708 ms" },
+				{ "2019-05-29 16:43:51,904 [pool-1-thread-1] DEBUG (PROFILING): ###### retval: [0 objects]" },
+				{ "2019-05-27 09:42:11,230 [midPointScheduler_Worker-6] DEBUG: #### Entry: 83329 ...model.impl.sync.SynchronizationServiceImpl->notifyChange" },
+				{ "2019-05-27 09:42:11,230 [midPointScheduler_Worker-6] DEBUG: ###### args: (ShadowType)" },
+
+				// other entries, also with padded levels and progress information
+				{ "2019-05-27 09:42:11,294 [pool-1-thread-3] INFO (org.example.Recon): ...... (this one: 2984 ms, avg: 2984 ms) (total progress: 1, wall clock avg: 4098 ms)" },
+				{ "2019-05-27 09:42:11,294 [pool-1-thread-3] INFO  (com.evolveum.midpoint.repo.common.task.AbstractSearchIterativeResultHandler): Processed 10 objects" },
+				{ "2019-05-27 09:42:11,336 [midPointScheduler_Worker-6] WARN (com.evolveum.Foo$Bar): Something happened žluťoučký kůň" },
+				{ "2019-05-27 09:42:11,336 [main] ERROR (com.evolveum.Foo): message (with parentheses): and colons: " },
+				{ "2019-05-27 09:42:11,336 [main] ERROR (com.evolveum.Foo): " },
+				{ "2019-05-27 09:42:11,336 [main] INFO: (com.evolveum.Foo): not a logger" },
+				{ "2019-12-31 23:59:59,999 [Thread-1] TRACE (a): last millisecond of the year" },
+				{ "2020-02-29 00:00:00,000 [Thread-1] TRACE (a): leap day" },
+
+				// continuation lines
+				{ "java.lang.RuntimeException: x" },
+				{ "\tat com.evolveum.midpoint.Foo.bar(Foo.java:1)" },
+				{ "" },
+				{ "    (ShadowType, Q{AND(EQUAL: name,PPV(String:u1)), null paging)" },
+
+				// malformed lines
+				{ "2019-05-27 09:42:11,336" },
+				{ "2019-05-27 09:42:11,336 [main]" },
+				{ "2019-05-27 09:42:11,336 [main] INFO" },
+				{ "2019-05-27 09:42:11,336 [main] INFO (a):no space" },
+				{ "2019-05-27 09:42:11.336 [main] INFO (a): wrong millis separator" },
+				{ "2019-05-27T09:42:11,336 [main] INFO (a): ISO timestamp" },
+				{ "2019-05-27 9:42:11,336 [main] INFO (a): short hour" },
+				{ "2019-05-27 09:42:11,336 main INFO (a): no brackets" },
+				{ "2019-05-27 09:42:11,336 [] INFO (a): empty thread" },
+				{ "2019-05-27 09:42:11,336 [main]  INFO (a): two spaces" },
+				{ "2019-05-27 09:42:11,336 [main thread] INFO (a): space in thread" },
+				{ "2019-05-27 09:42:11,336 [main] INFO (a b): space in logger" },
+				{ "2019-05-27 09:42:11,336 [main] INFO (a) b: text after logger" },
+				{ " 2019-05-27 09:42:11,336 [main] INFO (a): leading space" },
+		};
+	}
+
+	@Test(dataProvider = "lines")
+	public void test100SameAsRegex(String line) throws ParseException {
+		assertEquals("tokens of '" + line + "'", parseByRegex(line), tokenize(LogLineTokenizer.getDefault(), line));
+	}
+
+	@Test
+	public void test110TimestampCache() throws ParseException {
+		// a fresh tokenizer, so the cache is empty at the beginning
+		LogLineTokenizer tokenizer = LogLineTokenizer.compile(LogLineTokenizer.DEFAULT_LAYOUT);
+		String[] timestamps = { "2019-05-27 09:42:11,238", "2019-05-27 09:42:11,999", "2019-05-27 09:42:12,000",
+				"2019-05-27 09:42:11,001", "2019-05-28 09:42:11,001", "2019-05-27 09:42:11,001", "2019-06-27 09:42:11,001" };
+		for (String timestamp : timestamps) {
+			String line = timestamp + " [main] INFO (a): message";
+			assertEquals("tokens of '" + line + "'", parseByRegex(line), tokenize(tokenizer, line));
+		}
+	}
+
+	@Test
+	public void test120Padding() throws ParseException {
+		LogLineTokenizer leftJustified = LogLineTokenizer.compile("%d [%thread] %-5level \\(%logger\\): %msg%n");
+		LogLineTokenizer rightJustified = LogLineTokenizer.compile("%d [%thread] %5level \\(%logger\\): %msg%n");
+		String left = "2019-05-27 09:42:11,336 [main] INFO  (a): message";
+		String right = "2019-05-27 09:42:11,336 [main]  INFO (a): message";
+		String expected = parseByRegex(left);
+
+		assertEquals(expected, tokenize(leftJustified, left));
+		assertEquals(expected, tokenize(rightJustified, right));
+		assertNull("padding before a left-justified value", tokenize(leftJustified, right));
+
+		// unlike the regex, the tokenizer knows that "%-5level: " pads levels shorter than 5 characters
+		String withoutLogger = "2019-05-27 09:42:11,336 [main] INFO : message";
+		assertNull(parseByRegex(withoutLogger));
+		assertEquals(parseByRegex("2019-05-27 09:42:11,336 [main] INFO: message"),
+				tokenize(LogLineTokenizer.compile(LogLineTokenizer.DEFAULT_LAYOUT_WITHOUT_LOGGER), withoutLogger));
+	}
+
+	/**
+	 * Describes the tokens in the same way as {@link #parseByRegex(String)}.
+	 */
+	private String tokenize(LogLineTokenizer tokenizer, String line) {
+		LogLineTokenizer.Tokens tokens = new LogLineTokenizer.Tokens();
+		if (!tokenizer.tokenize(line, tokens)) {
+			return null;
+		}
+		return describe(tokens.getTimestamp(), line.substring(tokens.getThreadStart(), tokens.getThreadEnd()),
+				line.substring(tokens.getLevelStart(), tokens.getLevelEnd()),
+				tokens.hasLogger() ? line.substring(tokens.getLoggerStart(), tokens.getLoggerEnd()) : null,
+				line.substring(tokens.getMessageStart()));
+	}
+
+	private String parseByRegex(String line) throws ParseException {
+		Matcher matcher = LOG_LINE_PATTERN.matcher(line);
+		if (!matcher.matches()) {
+			return null;
+		}
+		SimpleDateFormat df = new SimpleDateFormat(LOG_FILE_TIMESTAMP_FORMAT, Locale.US);
+		return describe(df.parse(matcher.group("timestamp")).getTime(), matcher.group("thread"), matcher.group("level"),
+				matcher.group("logger"), matcher.group("message"));
+	}
+
+	private String describe(long timestamp, String thread, String level, String logger, String message) {
+		return timestamp + " [" + thread + "] " + level + " (" + logger + "): " + message;
+	}
+}
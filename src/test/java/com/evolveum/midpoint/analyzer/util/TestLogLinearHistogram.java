@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.analyzer.util;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Precision, merging and corner cases of {@link LogLinearHistogram}.
+ */
+public class TestLogLinearHistogram {
+
+	private static final double[] PERCENTILES = { 0, 0.1, 1, 10, 25, 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+	@Test
+	public void test100BucketBoundaries() {
+		LogLinearHistogram histogram = new LogLinearHistogram(2);
+
+		// 2 significant digits: 256 sub-buckets, so values below 256 are distinguished exactly
+		for (long value = 0; value < 256; value++) {
+			assertEquals("bucket of " + value, value, histogram.getBucketIndex(value));
+		}
+		// above them, each power-of-two range is split into 128 buckets of the same width
+		for (int k = 8; k < 62; k++) {
+			long from = 1L << k;
+			long width = 1L << (k - 7);
+			int first = histogram.getBucketIndex(from);
+			assertEquals("first bucket of 2^" + k, histogram.getBucketIndex(from - 1) + 1, first);
+			assertEquals("end of the first bucket of 2^" + k, first, histogram.getBucketIndex(from + width - 1));
+			assertEquals("second bucket of 2^" + k, first + 1, histogram.getBucketIndex(from + width));
+			assertEquals("last bucket of 2^" + k, first + 127, histogram.getBucketIndex(2 * from - 1));
+		}
+		assertEquals("bucket of a negative value", 0, histogram.getBucketIndex(-5));
+
+		// indices grow with values
+		Random random = new Random(42);
+		long previousValue = 0;
+		int previousIndex = 0;
+		for (int i = 0; i < 10_000; i++) {
+			long value = previousValue + (random.nextLong() >>> (1 + random.nextInt(63))) % 1_000_000_000L;
+			int index = histogram.getBucketIndex(value);
+			assertTrue("bucket of " + value + " is lower than bucket of " + previousValue, index >= previousIndex);
+			previousValue = value;
+			previousIndex = index;
+		}
+	}
+
+	@Test
+	public void test110RelativeError() {
+		Random random = new Random(42);
+		int count = 2_000;
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = random.nextLong() >>> (28 + random.nextInt(36));        // up to 2^36, of all magnitudes
+		}
+		Arrays.sort(values);
+		for (int digits = 1; digits <= 5; digits++) {
+			double maxRelativeError = Math.pow(10, -digits);
+			LogLinearHistogram histogram = new LogLinearHistogram(digits);
+			for (long value : values) {
+				histogram.recordValue(value);
+			}
+			// the percentile of the r-th smallest value is the highest value of its bucket
+			for (int rank = 1; rank < count; rank += 17) {
+				long value = values[rank - 1];
+				long reported = histogram.getValueAtPercentile((rank - 0.5) * 100.0 / count);
+				assertTrue("value " + value + " reported as " + reported, reported >= value);
+				assertTrue("value " + value + " reported as " + reported + " with " + digits + " significant digits",
+						reported - value <= value * maxRelativeError);
+			}
+		}
+	}
+
+	@Test
+	public void test120MergeEqualsRecordingAll() {
+		Random random = new Random(42);
+		LogLinearHistogram all = new LogLinearHistogram(2);
+		LogLinearHistogram[] parts = { new LogLinearHistogram(2), new LogLinearHistogram(2), new LogLinearHistogram(2) };
+		for (int i = 0; i < 100_000; i++) {
+			// values of the parts differ in magnitude, so the merged histograms have different lengths
+			int part = random.nextInt(parts.length);
+			long value = (long) (Math.exp(random.nextGaussian() * 2 + 5 * (part + 1)));
+			all.recordValue(value);
+			parts[part].recordValue(value);
+		}
+		LogLinearHistogram merged = new LogLinearHistogram(2);
+		merged.merge(new LogLinearHistogram(2));                    // merging an empty histogram changes nothing
+		for (int i = parts.length - 1; i >= 0; i--) {
+			merged.merge(parts[i]);
+		}
+
+		assertSame(all, merged);
+		for (long from = 0; from < 10_000_000L; from = from * 3 + 1) {
+			assertEquals("count between " + from + " and " + (from * 2), all.getCountBetween(from, from * 2),
+					merged.getCountBetween(from, from * 2));
+		}
+	}
+
+	@Test
+	public void test130MergeWithDifferentPrecision() {
+		LogLinearHistogram histogram = new LogLinearHistogram(2);
+		try {
+			histogram.merge(new LogLinearHistogram(3));
+			fail("unexpected success");
+		} catch (IllegalArgumentException e) {
+			System.out.println("Got expected exception: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void test140EmptyAndSingleValue() {
+		LogLinearHistogram histogram = new LogLinearHistogram(2);
+		assertEmpty(histogram);
+
+		histogram.recordValue(123_456_789L);
+		assertEquals(1, histogram.getTotalCount());
+		assertEquals(123_456_789L, histogram.getMin());
+		assertEquals(123_456_789L, histogram.getMax());
+		for (double percentile : PERCENTILES) {
+			// the single value is reported exactly, as percentiles are clamped to [min, max]
+			assertEquals("percentile " + percentile, 123_456_789L, histogram.getValueAtPercentile(percentile));
+		}
+
+		histogram.reset();
+		assertEmpty(histogram);
+
+		histogram.recordValue(-10);
+		histogram.recordValue(1_000, 3);
+		assertEquals(4, histogram.getTotalCount());
+		assertEquals("negative value recorded as 0", 0, histogram.getMin());
+		assertEquals(1_000, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(25));
+		assertEquals(1_000, histogram.getValueAtPercentile(26));
+		assertEquals(1, histogram.getCountBetween(-100, 0));
+		assertEquals(3, histogram.getCountBetween(1_000, 1_000));
+	}
+
+	@Test
+	public void test150InvalidPrecision() {
+		for (int digits : new int[] { 0, 6 }) {
+			try {
+				new LogLinearHistogram(digits);
+				fail("unexpected success for " + digits + " significant digits");
+			} catch (IllegalArgumentException e) {
+				System.out.println("Got expected exception: " + e.getMessage());
+			}
+		}
+	}
+
+	private void assertEmpty(LogLinearHistogram histogram) {
+		assertEquals(0, histogram.getTotalCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.getMax());
+		for (double percentile : PERCENTILES) {
+			assertEquals("percentile " + percentile, 0, histogram.getValueAtPercentile(percentile));
+		}
+		assertEquals(0, histogram.getCountBetween(0, Long.MAX_VALUE));
+	}
+
+	private void assertSame(LogLinearHistogram expected, LogLinearHistogram actual) {
+		assertEquals("total count", expected.getTotalCount(), actual.getTotalCount());
+		assertEquals("min", expected.getMin(), actual.getMin());
+		assertEquals("max", expected.getMax(), actual.getMax());
+		for (double percentile : PERCENTILES) {
+			assertEquals("percentile " + percentile, expected.getValueAtPercentile(percentile),
+					actual.getValueAtPercentile(percentile));
+		}
+	}
+}
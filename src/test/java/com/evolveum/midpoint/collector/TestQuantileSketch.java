@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2010-2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.midpoint.collector;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Accuracy of {@link QuantileSketch}, and independence of its results on the order of adding values
+ * and merging sketches, also when the values do not fit into the bins.
+ */
+public class TestQuantileSketch {
+
+	private static final double ACCURACY = QuantileSketch.DEFAULT_RELATIVE_ACCURACY;
+	private static final int BINS = QuantileSketch.DEFAULT_MAX_BINS;
+
+	@Test
+	public void test100Accuracy() {
+		// four orders of magnitude fit into the bins
+		long[] values = randomValues(new Random(42), 100_000, 100, 1_000_000);
+		QuantileSketch sketch = new QuantileSketch();
+		for (long value : values) {
+			sketch.add(value);
+		}
+		Arrays.sort(values);
+
+		assertEquals(values.length, sketch.getCount());
+		for (int rank = 1; rank <= values.length; rank += 97) {
+			long value = values[rank - 1];
+			long estimate = sketch.getValueAtPercentile((rank - 0.5) * 100.0 / values.length);
+			// +1 for rounding the estimate to long
+			assertTrue("value " + value + " estimated as " + estimate, Math.abs(estimate - value) <= value * ACCURACY + 1);
+		}
+	}
+
+	@Test
+	public void test110OrderIndependence() {
+		// nine orders of magnitude: the lowest values are collapsed
+		long[] values = randomValues(new Random(42), 50_000, 1, 1_000_000_000);
+		List<Long> list = new ArrayList<>();
+		for (long value : values) {
+			list.add(value);
+		}
+
+		QuantileSketch inOrder = sketchOf(list);
+		Collections.sort(list);
+		QuantileSketch ascending = sketchOf(list);
+		Collections.reverse(list);
+		QuantileSketch descending = sketchOf(list);
+		Collections.shuffle(list, new Random(7));
+		QuantileSketch shuffled = sketchOf(list);
+
+		assertSame(inOrder, ascending);
+		assertSame(inOrder, descending);
+		assertSame(inOrder, shuffled);
+	}
+
+	@Test
+	public void test120MergeEquivalence() {
+		Random random = new Random(42);
+		QuantileSketch all = new QuantileSketch();
+		QuantileSketch[] parts = new QuantileSketch[5];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new QuantileSketch();
+		}
+		for (int i = 0; i < 50_000; i++) {
+			// the parts have different ranges, some of them not fitting into the bins (and some values are zero)
+			int part = random.nextInt(parts.length);
+			long value = random.nextInt(100) == 0 ? 0 : (long) Math.pow(10, random.nextDouble() * (part + 5));
+			all.add(value);
+			parts[part].add(value);
+		}
+
+		QuantileSketch mergedForward = new QuantileSketch();
+		QuantileSketch mergedBackward = new QuantileSketch();
+		mergedForward.merge(new QuantileSketch());                  // merging an empty sketch changes nothing
+		for (int i = 0; i < parts.length; i++) {
+			mergedForward.merge(parts[i]);
+			mergedBackward.merge(parts[parts.length - 1 - i]);
+		}
+		// merging into a sketch that already has values
+		QuantileSketch mergedIntoPart = new QuantileSketch();
+		mergedIntoPart.merge(parts[2]);
+		for (int i = 0; i < parts.length; i++) {
+			if (i != 2) {
+				mergedIntoPart.merge(parts[i]);
+			}
+		}
+
+		assertSame(all, mergedForward);
+		assertSame(all, mergedBackward);
+		assertSame(all, mergedIntoPart);
+	}
+
+	@Test
+	public void test130CollapseBelowWindow() {
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < 900; i++) {
+			sketch.add(1_000_000_000L + i);
+		}
+		for (int i = 1; i <= 100; i++) {
+			sketch.add(i);                      // far below the window: collapsed into its lowest bin
+		}
+
+		long lowest = sketch.getValueAtPercentile(0);
+		double gamma = (1 + ACCURACY) / (1 - ACCURACY);
+		long expectedLowest = Math.round(1_000_000_000L / Math.pow(gamma, BINS - 1));
+		assertTrue("lowest value estimated as " + lowest + ", expected about " + expectedLowest,
+				lowest >= expectedLowest / gamma && lowest <= expectedLowest * gamma);
+		assertEquals("collapsed values", lowest, sketch.getValueAtPercentile(10));
+		// the tail is kept accurate
+		for (double percentile : new double[] { 10.1, 50, 90, 99, 100 }) {
+			long estimate = sketch.getValueAtPercentile(percentile);
+			assertTrue("percentile " + percentile + " estimated as " + estimate,
+					Math.abs(estimate - 1_000_000_450L) <= 1_000_000_900L * ACCURACY);
+		}
+	}
+
+	@Test
+	public void test140ResetAndReuse() {
+		long[] first = randomValues(new Random(1), 10_000, 1, 1_000_000_000);
+		long[] second = randomValues(new Random(2), 10_000, 1_000, 10_000);
+
+		QuantileSketch reused = new QuantileSketch();
+		for (long value : first) {
+			reused.add(value);
+		}
+		reused.add(0);
+		reused.reset();
+		assertEquals(0, reused.getCount());
+		assertEquals(0, reused.getValueAtPercentile(50));
+
+		QuantileSketch fresh = new QuantileSketch();
+		for (long value : second) {
+			reused.add(value);
+			fresh.add(value);
+		}
+		assertSame(fresh, reused);
+	}
+
+	@Test
+	public void test150ZeroAndNegativeValues() {
+		QuantileSketch sketch = new QuantileSketch();
+		assertEquals(0, sketch.getCount());
+		assertEquals(0, sketch.getValueAtPercentile(100));
+
+		sketch.add(-5);
+		sketch.add(0);
+		sketch.add(1000);
+		sketch.add(1000);
+		assertEquals(4, sketch.getCount());
+		assertEquals(0, sketch.getValueAtPercentile(0));
+		assertEquals(0, sketch.getValueAtPercentile(50));
+		long estimate = sketch.getValueAtPercentile(51);
+		assertTrue("1000 estimated as " + estimate, Math.abs(estimate - 1000) <= 1000 * ACCURACY);
+	}
+
+	@Test
+	public void test160MergeWithDifferentParameters() {
+		try {
+			new QuantileSketch().merge(new QuantileSketch(0.01, BINS));
+			fail("unexpected success");
+		} catch (IllegalArgumentException e) {
+			System.out.println("Got expected exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Values with log-uniform distribution in [from, to).
+	 */
+	private long[] randomValues(Random random, int count, long from, long to) {
+		double logFrom = Math.log(from);
+		double logTo = Math.log(to);
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = (long) Math.exp(logFrom + random.nextDouble() * (logTo - logFrom));
+		}
+		return values;
+	}
+
+	private QuantileSketch sketchOf(List<Long> values) {
+		QuantileSketch sketch = new QuantileSketch();
+		values.forEach(sketch::add);
+		return sketch;
+	}
+
+	private void assertSame(QuantileSketch expected, QuantileSketch actual) {
+		assertEquals("count", expected.getCount(), actual.getCount());
+		for (int i = 0; i <= 1000; i++) {
+			double percentile = i / 10.0;
+			assertEquals("percentile " + percentile, expected.getValueAtPercentile(percentile),
+					actual.getValueAtPercentile(percentile));
+		}
+	}
+}